@@ -0,0 +1,72 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Рассылка одного сообщения всем участникам (Server.processMessage -> sendBroadcastMessage).
+// Получатели - настоящие server.Connection со своими потоками-писателями, которые пишут в пустой поток.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int users;
+
+    @Param({"1", "2"})
+    int protocolVersion;
+
+    private final List<Connection> connections = new ArrayList<>();
+    private Connection sender;
+    private final Message message = new Message(MessageType.TEXT, "всем привет, как дела?");
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Logger.getLogger(Server.class.getName()).setLevel(java.util.logging.Level.WARNING);
+        for (int i = 0; i < users; i++) {
+            Connection connection = new Connection(InputStream.nullInputStream(), OutputStream.nullOutputStream(),
+                    new InetSocketAddress(i), () -> { });
+            connection.setProtocolVersion(protocolVersion);
+            // Сброс старых кадров вместо отключения: писатели могут не успевать за рассылкой.
+            connection.startWriter(Server.handlerExecutor(ServerSettings.THREADS_VIRTUAL),
+                    new OutboundQueue(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST));
+            Server.users.claim("user" + i, connection);
+            connections.add(connection);
+        }
+        sender = connections.get(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Connection connection : connections)
+            connection.close();
+        Server.users.clear();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        Server.processMessage(sender, "user0", message);
+    }
+}
@@ -0,0 +1,64 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Кодирование одной рассылки без записи в сокеты: каждое соединение своим кодеком (serial - протокол 1,
+// binary - протокол 2) или один server.SharedFrame на всех (shared), как в sendBroadcastMessage.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastEncodeBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    int users;
+
+    @Param({"serial", "binary", "shared"})
+    String encoding;
+
+    private static final String TEXT = "Иван: всем привет, как дела?";
+    private ProtocolCodec[] codecs;
+    private ByteBuffer[] buffers;
+
+    @Setup
+    public void setUp() {
+        codecs = new ProtocolCodec[users];
+        buffers = new ByteBuffer[users];
+        for (int i = 0; i < users; i++) {
+            codecs[i] = new ProtocolCodec();
+            codecs[i].setVersion(encoding.equals("serial") ? MessageCodec.VERSION_OBJECT_STREAM : MessageCodec.VERSION_BINARY);
+            buffers[i] = ByteBuffer.allocate(256);
+        }
+    }
+
+    @Benchmark
+    public long broadcast() throws Exception {
+        Message message = new Message(MessageType.TEXT, TEXT); // Как в сервере: новое сообщение на каждую рассылку.
+        long bytes = 0;
+        if (encoding.equals("shared")) {
+            SharedFrame frame = new SharedFrame(message);
+            for (int i = 0; i < users; i++)
+                bytes += frame.buffer().remaining(); // Получателю - обёртка над общими байтами.
+            return bytes;
+        }
+        for (int i = 0; i < users; i++) {
+            buffers[i] = codecs[i].encode(message, buffers[i].clear());
+            bytes += buffers[i].position();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,44 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+// Отправка и приём одного сообщения через server.Connection: Java-сериализация (1) и двоичный протокол (2).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"1", "2"})
+    int protocolVersion;
+
+    private Connection connection;
+    private final Message message = new Message(MessageType.TEXT, "Иван: всем привет, как дела?");
+
+    @Setup
+    public void setUp() {
+        LoopbackStream stream = new LoopbackStream();
+        connection = new Connection(stream.input(), stream.output(), new InetSocketAddress(0), () -> { });
+        connection.setProtocolVersion(protocolVersion);
+    }
+
+    @Benchmark
+    public Message sendAndReceive() throws Exception {
+        connection.send(message);
+        return connection.receive();
+    }
+}
@@ -0,0 +1,70 @@
+package server;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Кодирование большого сообщения в кадр версии 2 со сжатием (threshold > 0) и без него.
+// Счётчик frameBytes - размер кадра на операцию: сколько байт сжатие экономит на каждом получателе.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"roster", "text"})
+    String payload;
+
+    @Param({"0", "1024"})
+    int threshold;
+
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private Message message;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class FrameSize {
+        public long frameBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frameBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        StringBuilder data = new StringBuilder();
+        if (payload.equals("roster")) {
+            for (int i = 0; i < 1000; i++) // Список участников большого чата.
+                data.append(i > 0 ? "\n" : "").append("участник").append(i);
+            message = new Message(MessageType.USER_LIST, data.toString());
+        } else {
+            while (data.length() < 4000) // Длинное сообщение: вставленный в чат фрагмент журнала.
+                data.append("2026-10-18 12:00:").append(data.length() % 60).append(" INFO Сообщение доставлено\n");
+            message = new Message(MessageType.TEXT, data.toString());
+        }
+    }
+
+    @Benchmark
+    public int encode(FrameSize size) {
+        buffer = codec.encode(message, buffer.clear(), threshold);
+        size.frameBytes += buffer.position();
+        return buffer.position();
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Байты, записанные в output(), читаются из input() в том же потоке: соединение "само с собой" без сокета.
+class LoopbackStream {
+    private byte[] bytes = new byte[4096];
+    private int readPosition;
+    private int writePosition;
+
+    OutputStream output() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (readPosition == writePosition) { // Всё прочитано - пишем с начала массива.
+                    readPosition = 0;
+                    writePosition = 0;
+                }
+                if (writePosition + len > bytes.length)
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, writePosition + len));
+                System.arraycopy(b, off, bytes, writePosition, len);
+                writePosition += len;
+            }
+        };
+    }
+
+    InputStream input() {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return readPosition < writePosition ? bytes[readPosition++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (readPosition == writePosition)
+                    return -1;
+                int n = Math.min(len, writePosition - readPosition);
+                System.arraycopy(bytes, readPosition, b, off, n);
+                readPosition += n;
+                return n;
+            }
+        };
+    }
+}
@@ -0,0 +1,39 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Стоимость Message.toString(), которая раньше вызывалась в журнале на каждого получателя рассылки.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageToStringBenchmark {
+    @Param({"TEXT", "USER_ADDED", "ROOM_TEXT"})
+    MessageType type;
+
+    private Message message;
+
+    @Setup
+    public void setUp() {
+        message = new Message(type, "java", "Иван: всем привет, как дела?");
+    }
+
+    @Benchmark
+    public String messageToString() {
+        return message.toString();
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Регистрация участника так же, как в ServerHandler: запрос имени, проверка, рассылка USER_ADDED,
+// список остальных участников новичку и выход (USER_REMOVED), чтобы имя можно было занять снова.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistrationBenchmark {
+    @Param({"0", "100", "1000"})
+    int users; // Сколько участников уже в чате.
+
+    private byte[] userNameFrame;
+    private final InetSocketAddress address = new InetSocketAddress(0);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Logger.getLogger(Server.class.getName()).setLevel(java.util.logging.Level.WARNING);
+        ByteBuffer frame = new BinaryMessageCodec().encode(new Message(MessageType.USER_NAME, "новичок"), ByteBuffer.allocate(64));
+        userNameFrame = new byte[frame.position()];
+        frame.flip().get(userNameFrame);
+        for (int i = 0; i < users; i++) { // Остальные участники пишут прямо в пустой поток, без писателей.
+            Connection connection = new Connection(ByteArrayInputStream.nullInputStream(), OutputStream.nullOutputStream(),
+                    new InetSocketAddress(i), () -> { });
+            connection.setProtocolVersion(MessageCodec.VERSION_BINARY);
+            Server.users.claim("user" + i, connection);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Server.users.clear();
+    }
+
+    @Benchmark
+    public String register() throws Exception {
+        Connection connection = new Connection(new ByteArrayInputStream(userNameFrame), OutputStream.nullOutputStream(),
+                address, () -> { });
+        Server.requestUserName(connection);
+        Message message = connection.receive();
+        String userName = Server.acceptUserName(connection, message);
+        Server.userJoined(connection, userName);
+        Server.userLeft(connection, userName);
+        return userName;
+    }
+}
@@ -0,0 +1,82 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// Поиск по индексу истории из миллиона сообщений (server.SearchIndex): редкое слово,
+// частое слово и пара слов, из которых каждое частое, а вместе они встречаются редко.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+    private static final String[] WORDS = {"привет", "как", "дела", "кино", "вечером", "работа", "отпуск",
+            "погода", "кофе", "встреча", "проект", "релиз", "сервер", "клиент", "ошибка", "тест"};
+
+    @Param({"1000000"})
+    int messages;
+
+    @Param({"уникальное", "привет", "кино релиз"})
+    String query;
+
+    private Path directory;
+    private MessageStore history;
+    private SearchIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Logger.getLogger(Server.class.getName()).setLevel(java.util.logging.Level.WARNING);
+        directory = Files.createTempDirectory("search-bench");
+        history = new MessageStore(directory.resolve("history"), 64 * 1024 * 1024, 0, 0, 0);
+        SplittableRandom random = new SplittableRandom(1);
+        for (int i = 0; i < messages; i++) {
+            StringBuilder text = new StringBuilder("user").append(random.nextInt(1000)).append(':');
+            for (int j = 0; j < 6; j++)
+                text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+            if (i % 100_000 == 0)
+                text.append(" уникальное");
+            history.append(new Message(MessageType.TEXT, text.toString()));
+        }
+        index = SearchIndex.open(directory.resolve("search"), history);
+        while (index.getIndexedSequence() < messages)
+            Thread.sleep(100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+        history.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(file);
+        }
+    }
+
+    @Benchmark
+    public List<Message> search() throws IOException {
+        return index.search(query, 20);
+    }
+}
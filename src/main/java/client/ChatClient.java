@@ -0,0 +1,374 @@
+package client;
+import server.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+
+public class ChatClient implements Closeable {
+    private static final long INITIAL_RECONNECT_DELAY_MS = 250; // Первая пауза перед переподключением.
+    // Возможности протокола, которые понимает клиент.
+    private static final int CLIENT_FEATURES = ProtocolCodec.FEATURE_ROSTER | ProtocolCodec.FEATURE_HEARTBEAT
+            | ProtocolCodec.FEATURE_DEFLATE | ProtocolCodec.FEATURE_SHUTDOWN | ProtocolCodec.FEATURE_MAILBOX
+            | ProtocolCodec.FEATURE_ACK;
+    // Один поток подтверждений на все клиенты программы: генератор нагрузки открывает их сотни.
+    private static final ScheduledExecutorService ACK_TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "ack-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Записи пишутся в журнал консольного клиента (client.log), если он настроен.
+    private static final Logger LOGGER = Logger.getLogger(Client.class.getName());
+
+    // Получатель сообщений сервера. Методы вызываются из потока, в котором работает receiveLoop() или run().
+    public interface Listener {
+        // Очередное сообщение сервера после регистрации. Исключение завершает цикл приёма.
+        void onMessage(Message message) throws IOException;
+
+        // Связь потеряна, начинается попытка переподключения с номером attempt.
+        default void onReconnecting(int attempt) {
+        }
+
+        // Связь восстановлена. resumed = false, если сессия на сервере истекла и имя зарегистрировано заново.
+        default void onReconnected(boolean resumed) {
+        }
+
+        // Участник вошёл в чат или вышел из него, по пакету USER_PRESENCE. Вызывается только
+        // для настоящих изменений списка участников, повторы из пакетов отбрасываются.
+        default void onPresenceChanged(String userName, boolean joined) {
+        }
+
+        // Сервер останавливается и советует переподключаться не раньше, чем через retryAfterMillis.
+        default void onServerShutdown(long retryAfterMillis) {
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final Listener listener;
+
+    private volatile Connection connection; // Заменяется новым соединением при переподключении.
+    private volatile boolean closed;
+    private String userName; // Имя, под которым сервер принял клиента.
+    private String resumeToken; // Токен сессии из NAME_ACCEPTED, null - сервер не поддерживает переподключение.
+    private volatile long lastSequence; // Номер последнего полученного сообщения общего чата.
+    private volatile int features; // Возможности протокола, о которых договорились с сервером.
+    private volatile boolean registered; // Сервер принял имя на текущем соединении, можно отправлять ACK.
+    private volatile long acknowledgedSequence; // Номер из последнего отправленного ACK.
+    private ScheduledFuture<?> ackTask; // Периодическая отправка ACK, null - ещё не запущена.
+    private volatile long retryAfterMs; // Пауза перед переподключением из SERVER_SHUTDOWN, 0 - обычная.
+    // Участники чата: нормализованное имя -> имя. Обновляется по USER_LIST, USER_PRESENCE, USER_ADDED и USER_REMOVED.
+    private final ConcurrentHashMap<String, String> users = new ConcurrentHashMap<>();
+
+    public ChatClient(String host, int port, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+    }
+
+    // Подключение к серверу. Регистрация - отдельным вызовом register().
+    public void connect() throws IOException {
+        connection = new Connection(new Socket(host, port));
+    }
+
+    // Регистрация в чате: на каждый запрос сервера отправляется очередное имя из names,
+    // пока сервер не примет одно из них. Возвращает принятое имя.
+    public String register(Supplier<String> names) throws IOException, ClassNotFoundException {
+        while (true) {
+            Message message = connection.receive();
+
+            if (message.getType() == MessageType.NAME_REQUEST) { // Сервер запросил имя пользователя
+                LOGGER.info("Сервер запросил имя.");
+                if (ProtocolCodec.supportsBinary(message)) // Сервер понимает двоичный протокол - переходим на него
+                    connection.setProtocolVersion(MessageCodec.VERSION_BINARY);
+                features = ProtocolCodec.parseFeatures(message.getTarget()) & CLIENT_FEATURES;
+                connection.setFeatures(features); // Сервер, умеющий распаковывать, получает большие сообщения сжатыми.
+                String name = names.get();
+                connection.send(new Message(MessageType.USER_NAME, ProtocolCodec.formatFeatures(features), name));
+                userName = name;
+                LOGGER.info("Отправка имени '" + name + "' на сервер");
+
+            } else if (message.getType() == MessageType.NAME_ACCEPTED) { // Сервер принял имя пользователя
+                LOGGER.info("Сервер принял имя");
+                resumeToken = message.getData();
+                registered = true;
+                startAcks();
+                return userName;
+
+            } else {
+                LOGGER.warning("Неизвестный тип сообщения");
+                throw new IOException("Неизвестный тип сообщения");
+            }
+        }
+    }
+
+    // Приём сообщений текущего соединения, пока оно не оборвётся.
+    public void receiveLoop() throws IOException, ClassNotFoundException {
+        while (true) {
+            Message message = connection.receive();
+            if (message.getType() == MessageType.PING) { // Сервер проверяет, что клиент на связи.
+                connection.send(new Message(MessageType.PONG));
+                continue;
+            }
+            if (message.getType() == MessageType.SERVER_SHUTDOWN) { // Дальше сервер закроет соединение.
+                retryAfterMs = parseRetryAfter(message.getData());
+                LOGGER.info("Сервер останавливается, переподключение через " + retryAfterMs + " мс");
+                listener.onServerShutdown(retryAfterMs);
+                continue;
+            }
+            if (message.getType() == MessageType.MAILBOX) { // Накопленное за время отсутствия, одной пачкой.
+                for (Message missed : MailboxStore.unpack(message.getData())) {
+                    if (missed.getSequence() > 0 && missed.getSequence() <= lastSequence)
+                        continue; // Это сообщение общего чата клиент получил до обрыва.
+                    deliver(missed);
+                }
+                continue;
+            }
+            deliver(message);
+        }
+    }
+
+    private void deliver(Message message) throws IOException {
+        if (message.getSequence() > lastSequence) // Запоминаем, до какого сообщения всё получено.
+            lastSequence = message.getSequence();
+        updateUsers(message);
+        listener.onMessage(message);
+    }
+
+    private static long parseRetryAfter(String data) {
+        try {
+            return data != null ? Math.max(0, Long.parseLong(data.trim())) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void updateUsers(Message message) {
+        switch (message.getType()) {
+            case USER_LIST -> {
+                users.clear();
+                if (message.getData() != null && !message.getData().isEmpty()) {
+                    for (String name : message.getData().split("\n"))
+                        users.put(UserRegistry.normalize(name), name);
+                }
+            }
+            case USER_PRESENCE -> {
+                if (message.getData() == null)
+                    return;
+                for (String change : message.getData().split("\n")) {
+                    if (change.length() < 2)
+                        continue;
+                    String name = change.substring(1);
+                    boolean joined = change.charAt(0) == '+';
+                    boolean changed = joined
+                            ? !name.equals(users.put(UserRegistry.normalize(name), name))
+                            : users.remove(UserRegistry.normalize(name)) != null;
+                    if (changed)
+                        listener.onPresenceChanged(name, joined);
+                }
+            }
+            case USER_ADDED -> users.put(UserRegistry.normalize(message.getData()), message.getData());
+            case USER_REMOVED -> users.remove(UserRegistry.normalize(message.getData()));
+            default -> {
+            }
+        }
+    }
+
+    // Приём сообщений с переподключением после обрывов. Возвращает управление, когда попытки
+    // переподключения кончились или клиент закрыт методом close().
+    public void run() {
+        do {
+            try {
+                receiveLoop();
+            } catch (IOException | ClassNotFoundException e) {
+                if (!closed)
+                    LOGGER.warning("Соединение с сервером оборвалось.");
+            }
+        } while (reconnect());
+    }
+
+    // Переподключение с паузами, растущими вдвое до reconnectMaxDelayMs. Случайная добавка к паузе
+    // не даёт всем клиентам разом прийти на перезапущенный сервер. Возвращает false, если попытки кончились.
+    public boolean reconnect() {
+        registered = false; // Пока сессия не возобновлена, ACK на новое соединение не отправляется.
+        closeConnection();
+        if (resumeToken == null || closed)
+            return false;
+        // Сервер перезапускается: раньше совета он всё равно не ответит.
+        long delay = Math.max(INITIAL_RECONNECT_DELAY_MS, retryAfterMs);
+        retryAfterMs = 0;
+        for (int attempt = 1; attempt <= ServerSettings.getReconnectAttempts() && !closed; attempt++) {
+            listener.onReconnecting(attempt);
+            LOGGER.info("Попытка переподключения " + attempt + ", пауза " + delay + " мс");
+            try {
+                Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+            } catch (InterruptedException e) {
+                return false;
+            }
+            delay = Math.min(delay * 2, ServerSettings.getReconnectMaxDelayMs());
+            try {
+                connect();
+                boolean resumed = resume();
+                registered = true;
+                listener.onReconnected(resumed);
+                return true;
+            } catch (IOException | ClassNotFoundException e) {
+                LOGGER.warning("Не удалось переподключиться: " + e.getMessage());
+                closeConnection();
+            }
+        }
+        return false;
+    }
+
+    // Возобновление сессии: сервер пришлёт только сообщения, пропущенные после lastSequence.
+    // Если сессия на сервере уже истекла (или сервер перезапущен), регистрируемся под тем же именем
+    // и запрашиваем пропущенное из истории. Возвращает true, если сессия возобновлена.
+    private boolean resume() throws IOException, ClassNotFoundException {
+        Message request = connection.receive();
+        if (request.getType() != MessageType.NAME_REQUEST)
+            throw new IOException("Неизвестный тип сообщения");
+        if (ProtocolCodec.supportsBinary(request))
+            connection.setProtocolVersion(MessageCodec.VERSION_BINARY);
+        connection.send(new Message(MessageType.RESUME, userName, resumeToken, lastSequence));
+        Message reply = connection.receive();
+        if (reply.getType() == MessageType.NAME_ACCEPTED) {
+            connection.setFeatures(features); // Сервер восстановил возможности прежнего соединения.
+            LOGGER.info("Сессия возобновлена после номера " + lastSequence);
+            return true;
+        }
+        if (reply.getType() != MessageType.NAME_REQUEST)
+            throw new IOException("Неизвестный тип сообщения");
+        features = ProtocolCodec.parseFeatures(request.getTarget()) & CLIENT_FEATURES;
+        connection.setFeatures(features);
+        connection.send(new Message(MessageType.USER_NAME, ProtocolCodec.formatFeatures(features), userName));
+        reply = connection.receive();
+        if (reply.getType() != MessageType.NAME_ACCEPTED)
+            throw new IOException("Сервер не принял имя '" + userName + "'");
+        resumeToken = reply.getData();
+        acknowledgedSequence = 0; // Новая сессия на сервере ещё ничего не знает о полученном.
+        // Сервер с ящиками сам пришлёт пропущенное пачками MAILBOX.
+        if (lastSequence > 0 && (features & ProtocolCodec.FEATURE_MAILBOX) == 0)
+            connection.send(new Message(MessageType.HISTORY_REQUEST, String.valueOf(lastSequence),
+                    String.valueOf(Integer.MAX_VALUE))); // Сервер сам ограничит размер ответа.
+        LOGGER.info("Сессия на сервере истекла, имя зарегистрировано заново.");
+        return false;
+    }
+
+    private synchronized void startAcks() {
+        long interval = ServerSettings.getAckIntervalMs();
+        if (ackTask == null && interval > 0 && !closed)
+            ackTask = ACK_TIMER.scheduleWithFixedDelay(this::sendAck, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // Накопительное подтверждение: одно ACK с номером последнего полученного сообщения общего чата
+    // на всё, что пришло с прошлого подтверждения. Если нового ничего нет, ничего и не отправляется.
+    void sendAck() {
+        Connection current = connection; // Соединение читается раньше флага: новое соединение до регистрации не подойдёт.
+        long sequence = lastSequence;
+        if (!registered || (features & ProtocolCodec.FEATURE_ACK) == 0 || sequence <= acknowledgedSequence)
+            return;
+        try {
+            current.send(new Message(MessageType.ACK, null, null, sequence));
+            acknowledgedSequence = sequence;
+        } catch (IOException e) {
+            LOGGER.fine("Не удалось отправить подтверждение: " + e.getMessage()); // Уйдёт после переподключения.
+        }
+    }
+
+    public void send(Message message) throws IOException {
+        connection.send(message);
+    }
+
+    // Сообщение в общий чат.
+    public void sendText(String text) throws IOException {
+        connection.send(new Message(MessageType.TEXT, text));
+    }
+
+    // Личное сообщение участнику recipient.
+    public void sendPrivateText(String recipient, String text) throws IOException {
+        connection.send(new Message(MessageType.PRIVATE_TEXT, recipient, text));
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    // Имена участников чата, которых знает клиент.
+    public Collection<String> getUsers() {
+        return Collections.unmodifiableCollection(users.values());
+    }
+
+    // Закрытие клиента: цикл приёма завершается, переподключения больше не будет.
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (ackTask != null)
+                ackTask.cancel(false);
+        }
+        closeConnection();
+    }
+
+    private void closeConnection() {
+        Connection current = connection;
+        if (current == null)
+            return;
+        try {
+            current.close();
+        } catch (IOException e) {
+            LOGGER.warning("Не удалось закрыть соединение с сервером.");
+        }
+    }
+}
+
+
+/**
+ *
+ *   Класс "client.ChatClient" - чат-клиент без консоли, который можно использовать из программы.
+ *
+ *   Он подключается к серверу (connect()), регистрируется под именем (register()), переходит на
+ *   двоичный протокол, если сервер его поддерживает, и передаёт все сообщения сервера получателю
+ *   ChatClient.Listener. Отправить сообщение можно из любого потока методами send*().
+ *
+ *   Метод run() принимает сообщения и после обрыва связи сам переподключается с паузами, растущими
+ *   вдвое, и возобновляет сессию: присылает серверу токен из NAME_ACCEPTED и номер последнего
+ *   полученного сообщения, а в ответ получает только пропущенные сообщения.
+ *
+ *   Если сервер поддерживает возможность "roster", клиент запрашивает её при регистрации и получает
+ *   список участников одним сообщением USER_LIST, а изменения - пакетами USER_PRESENCE. Текущий список
+ *   участников доступен через getUsers(), настоящие изменения приходят в Listener.onPresenceChanged().
+ *
+ *   Клиент также договаривается о возможности "heartbeat" и сам отвечает PONG на PING сервера, поэтому
+ *   сервер не отключает его, пока в чате тихо, а получатель PING не видит.
+ *
+ *   По возможности "shutdown" сервер перед остановкой присылает SERVER_SHUTDOWN с советом, через сколько
+ *   переподключаться. Первая попытка переподключения делается не раньше этого срока, а получатель
+ *   узнаёт об остановке через Listener.onServerShutdown().
+ *
+ *   По возможности "mailbox" сервер после входа присылает то, что накопилось без клиента: сообщения
+ *   общего чата и личные сообщения, пачками MAILBOX. Клиент распаковывает пачку, и получатель видит
+ *   обычные TEXT и PRIVATE_TEXT. Повторно запрашивать историю после регистрации заново не нужно.
+ *
+ *   По возможности "ack" клиент раз в ackIntervalMs подтверждает серверу полученное в общем чате:
+ *   одно сообщение ACK с номером последнего полученного сообщения, а не подтверждение на каждое.
+ *   По этим подтверждениям сервер видит, насколько доставка каждому клиенту отстаёт от рассылки.
+ *
+ *   На этом классе построены консольный клиент (client.Client) и генератор нагрузки
+ *   (client.LoadGenerator), который открывает сотни таких клиентов в одной программе.
+ *
+ */
@@ -1,13 +1,16 @@
 package client;
 import server.*;
 import java.io.IOException;
-import java.net.Socket;
-import java.util.logging.FileHandler;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 public class Client {
-    protected Connection connection;
+    protected volatile ChatClient chat; // Соединение с сервером, регистрация и переподключение.
+
+    private static final int MAX_PRINTED_USERS = 100; // Больший список участников не выводится целиком.
 
     private volatile boolean clientConnected;
 
@@ -18,16 +21,14 @@ public class Client {
         return ConsoleHelper.readString();
     }
 
-    public class SocketThread extends Thread {
+    public class SocketThread implements Runnable, ChatClient.Listener {
         @Override
         public void run() {
 
-            try {// Получаем из файла "settings.json" адрес и порт сервера.
-                String serverSetting = "settings.json";
-                ServerSettings.loadFromFile(serverSetting);
-
+            try {
                 // Создаем соединение с сервером
-                connection = new Connection(new Socket(ServerSettings.getHost(), ServerSettings.getPort()));
+                chat = new ChatClient(ServerSettings.getHost(), ServerSettings.getPort(), this);
+                chat.connect();
 
                 addLoggingClient();
                 ConsoleHelper.writeMessage("Вы подключились к серверу.");
@@ -36,58 +37,113 @@ public class Client {
                 clientMainLoop();
 
             } catch (IOException | ClassNotFoundException e) {
-                notifyConnectionStatusChanged(false);
+                if (!clientConnected) { // Не удалось даже подключиться и зарегистрироваться.
+                    notifyConnectionStatusChanged(false);
+                    return;
+                }
             }
+            // Связь оборвалась: переподключаемся, пока получается, и продолжаем принимать сообщения.
+            while (chat.reconnect()) {
+                try {
+                    clientMainLoop();
+                } catch (IOException | ClassNotFoundException e) {
+                    LOGGER.warning("Соединение с сервером оборвалось.");
+                }
+            }
+            ConsoleHelper.writeMessage("Соединение с сервером потеряно.");
+            LOGGER.warning("Соединение с сервером потеряно.");
+            notifyConnectionStatusChanged(false);
         }
 
-        protected void clientHandshake() throws IOException, ClassNotFoundException {
-            while (true) {
-                Message message = connection.receive();
-
-                if (message.getType() == MessageType.NAME_REQUEST) { // Сервер запросил имя пользователя
-                    ConsoleHelper.writeMessage("Сервер запросил Ваше имя.");
-                    LOGGER.info("Сервер запросил имя.");
-                    // Запрашиваем ввод имени с консоли
-                    String name = getUserName();
-                    // Отправляем имя на сервер
-                    connection.send(new Message(MessageType.USER_NAME, name));
-                    LOGGER.info("Отправка имени '" + name + "' на сервер");
-
-                } else if (message.getType() == MessageType.NAME_ACCEPTED) { // Сервер принял имя пользователя
-                    // Сообщаем главному потоку, что он может продолжить работу
-                    ConsoleHelper.writeMessage("Сервер принял Ваше имя.");
-                    LOGGER.info("Сервер принял имя");
-                    notifyConnectionStatusChanged(true);
-                    return;
+        @Override
+        public void onReconnecting(int attempt) {
+            ConsoleHelper.writeMessage("Нет связи с сервером, попытка переподключения " + attempt + "...");
+        }
 
-                } else {
-                    LOGGER.warning("Неизвестный тип сообщения");
-                    throw new IOException("Неизвестный тип сообщения");
-                }
-            }
+        @Override
+        public void onPresenceChanged(String userName, boolean joined) {
+            if (joined)
+                informAboutAddingNewUser(userName);
+            else
+                informAboutDeletingNewUser(userName);
+        }
+
+        @Override
+        public void onServerShutdown(long retryAfterMillis) {
+            ConsoleHelper.writeMessage("Сервер перезапускается, переподключение через " + retryAfterMillis / 1000.0 + " с.");
+        }
+
+        @Override
+        public void onReconnected(boolean resumed) {
+            ConsoleHelper.writeMessage(resumed ? "Соединение с сервером восстановлено."
+                    : "Соединение с сервером восстановлено, сессия начата заново.");
+        }
+
+        protected void clientHandshake() throws IOException, ClassNotFoundException {
+            chat.register(() -> { // Сервер запросил имя пользователя - запрашиваем ввод имени с консоли
+                ConsoleHelper.writeMessage("Сервер запросил Ваше имя.");
+                return getUserName();
+            });
+            // Сообщаем главному потоку, что он может продолжить работу
+            ConsoleHelper.writeMessage("Сервер принял Ваше имя.");
+            notifyConnectionStatusChanged(true);
         }
 
         protected void clientMainLoop() throws IOException, ClassNotFoundException {
-            // Цикл обработки сообщений сервера
-            while (true) {
-                Message message = connection.receive();
-                if (message.getType() == MessageType.TEXT) { // Сервер прислал сообщение с текстом
-                    processIncomingMessage(message.getData());
-                } else if (MessageType.USER_ADDED == message.getType()) {
-                    informAboutAddingNewUser(message.getData());
-                } else if (MessageType.USER_REMOVED == message.getType()) {
-                    informAboutDeletingNewUser(message.getData());
-                } else {
-                    LOGGER.warning("Неизвестный тип сообщения");
-                    throw new IOException("Неизвестный тип сообщения");
-                }
+            // Цикл обработки сообщений сервера, каждое сообщение приходит в onMessage()
+            chat.receiveLoop();
+        }
+
+        @Override
+        public void onMessage(Message message) throws IOException {
+            if (message.getType() == MessageType.TEXT) { // Сервер прислал сообщение с текстом
+                processIncomingMessage(message.getData());
+            } else if (MessageType.USER_ADDED == message.getType()) {
+                informAboutAddingNewUser(message.getData());
+            } else if (MessageType.USER_REMOVED == message.getType()) {
+                informAboutDeletingNewUser(message.getData());
+            } else if (MessageType.USER_LIST == message.getType()) {
+                informAboutUserList(chat.getUsers());
+            } else if (MessageType.USER_PRESENCE == message.getType()) {
+                LOGGER.fine("Получены изменения списка участников."); // Выводятся в onPresenceChanged().
+            } else if (MessageType.ROOM_TEXT == message.getType()) {
+                processIncomingMessage("[" + message.getTarget() + "] " + message.getData());
+            } else if (MessageType.ROOM_MEMBER_JOINED == message.getType()) {
+                informAboutRoomMember(message.getTarget(), message.getData(), true);
+            } else if (MessageType.ROOM_MEMBER_LEFT == message.getType()) {
+                informAboutRoomMember(message.getTarget(), message.getData(), false);
+            } else if (MessageType.ROOM_LIST == message.getType()) {
+                informAboutRoomList(message.getTarget(), message.getData());
+            } else if (MessageType.PRIVATE_TEXT == message.getType()) {
+                processIncomingMessage("(лично) " + message.getTarget() + ": " + message.getData());
+            } else if (MessageType.PRIVATE_DELIVERED == message.getType()) {
+                LOGGER.info("Личное сообщение доставлено участнику '" + message.getTarget() + "'.");
+            } else if (MessageType.HISTORY_END == message.getType()) {
+                if (message.getTarget() != null) // Повтор после обрыва уместил только последние сообщения.
+                    ConsoleHelper.writeMessage("--- сообщения до номера " + message.getTarget()
+                            + " не повторены, их можно запросить командой /history N после-номера ---");
+                ConsoleHelper.writeMessage("--- конец истории, последний номер " + message.getSequence() + " ---");
+                LOGGER.info("Получена история до номера " + message.getSequence());
+            } else if (MessageType.SEARCH == message.getType()) {
+                List<Message> found = MailboxStore.unpack(message.getData());
+                ConsoleHelper.writeMessage("--- найдено по запросу \"" + message.getTarget() + "\": " + found.size() + " ---");
+                for (Message result : found)
+                    ConsoleHelper.writeMessage("#" + result.getSequence() + " " + result.getData());
+                LOGGER.info("Получены результаты поиска: " + found.size());
+            } else if (MessageType.PRIVATE_UNKNOWN_RECIPIENT == message.getType()) {
+                ConsoleHelper.writeMessage("Участника '" + message.getTarget() + "' нет в чате.");
+                LOGGER.info("Участника '" + message.getTarget() + "' нет в чате.");
+            } else {
+                LOGGER.warning("Неизвестный тип сообщения");
+                throw new IOException("Неизвестный тип сообщения");
             }
         }
 
 
         protected void processIncomingMessage(String message) {  // Вывод текста сообщения в консоль
             ConsoleHelper.writeMessage(message);
-            LOGGER.info("Полученное сообщение: " + message);
+            if (LOGGER.isLoggable(Level.INFO))
+                LOGGER.info("Полученное сообщение: " + message);
         }
 
         protected void informAboutAddingNewUser(String userName) {  // Вывод информации о добавлении участника
@@ -100,6 +156,26 @@ public class Client {
             LOGGER.info("Участник '" + userName + "' покинул чат.");
         }
 
+        protected void informAboutUserList(Collection<String> names) {  // Вывод списка участников чата
+            ConsoleHelper.writeMessage("В чате участников: " + names.size());
+            if (names.size() <= MAX_PRINTED_USERS)
+                ConsoleHelper.writeMessage(String.join(", ", names));
+            LOGGER.info("Получен список участников: " + names.size());
+        }
+
+        protected void informAboutRoomMember(String room, String userName, boolean joined) {
+            String text = "Участник '" + userName + "' " + (joined ? "вошёл в комнату" : "вышел из комнаты")
+                    + " '" + room + "'.";
+            ConsoleHelper.writeMessage(text);
+            LOGGER.info(text);
+        }
+
+        protected void informAboutRoomList(String room, String names) {  // Ответ на команды /rooms и /who
+            ConsoleHelper.writeMessage(room == null ? "Комнаты:" : "Участники комнаты '" + room + "':");
+            if (names != null && !names.isEmpty())
+                ConsoleHelper.writeMessage(names);
+        }
+
         protected void notifyConnectionStatusChanged(boolean clientConnected) {
             Client.this.clientConnected = clientConnected;
             synchronized (Client.this) {
@@ -112,14 +188,60 @@ public class Client {
 
     protected void sendTextMessage(String text) {
         try {
-            connection.send(new Message(MessageType.TEXT, text));
-            LOGGER.info("Отправлено сообщение: " + text);
+            chat.sendText(text);
+            if (LOGGER.isLoggable(Level.INFO))
+                LOGGER.info("Отправлено сообщение: " + text);
 
         } catch (IOException e) {
             ConsoleHelper.writeMessage("Не удалось отправить сообщение");
             LOGGER.warning("Не удалось отправить сообщение");
-            clientConnected = false;
+            // Соединением управляет SocketThread: он переподключится или завершит работу клиента.
+        }
+    }
+
+    // Команды комнат: /join комната, /leave комната, /rooms, /who комната, /to комната текст,
+    // личное сообщение: /msg имя текст, запрос истории: /history [N] [после номера] и поиск: /search [N] слова.
+    // Возвращает false, если строка не является командой.
+    protected boolean sendRoomCommand(String text) {
+        if (!text.startsWith("/"))
+            return false;
+        String[] parts = text.split(" ", 3);
+        Message message;
+        switch (parts[0]) {
+            case "/join" -> message = parts.length > 1 ? new Message(MessageType.ROOM_JOIN, parts[1], null) : null;
+            case "/leave" -> message = parts.length > 1 ? new Message(MessageType.ROOM_LEAVE, parts[1], null) : null;
+            case "/rooms" -> message = new Message(MessageType.ROOM_LIST);
+            case "/who" -> message = parts.length > 1 ? new Message(MessageType.ROOM_LIST, parts[1], null) : null;
+            case "/to" -> message = parts.length > 2 ? new Message(MessageType.ROOM_TEXT, parts[1], parts[2]) : null;
+            case "/history" -> message = new Message(MessageType.HISTORY_REQUEST,
+                    parts.length > 2 ? parts[2] : null, parts.length > 1 ? parts[1] : null);
+            case "/search" -> message = searchRequest(text.substring("/search".length()).trim());
+            case "/msg" -> message = parts.length > 2 ? new Message(MessageType.PRIVATE_TEXT, parts[1], parts[2]) : null;
+            default -> {
+                return false;
+            }
+        }
+        if (message == null) {
+            ConsoleHelper.writeMessage("Не указано имя комнаты, получателя или текст сообщения.");
+            return true;
+        }
+        try {
+            chat.send(message);
+            LOGGER.info("Отправлена команда: " + text);
+        } catch (IOException e) {
+            ConsoleHelper.writeMessage("Не удалось отправить сообщение");
+            LOGGER.warning("Не удалось отправить сообщение");
+            // Соединением управляет SocketThread: он переподключится или завершит работу клиента.
         }
+        return true;
+    }
+
+    // Запрос поиска: "/search слова" или "/search N слова", где N - сколько найденных сообщений показать.
+    private static Message searchRequest(String arguments) {
+        String[] parts = arguments.split(" ", 2);
+        if (parts.length == 2 && !parts[0].isEmpty() && parts[0].chars().allMatch(Character::isDigit))
+            return new Message(MessageType.SEARCH, parts[0], parts[1]);
+        return arguments.isEmpty() ? null : new Message(MessageType.SEARCH, null, arguments);
     }
 
     protected boolean shouldSendTextFromConsole() {
@@ -127,9 +249,17 @@ public class Client {
     }
 
     public void run() {
-        SocketThread socketThread = new SocketThread();
+        try { // Получаем из файла "settings.json" адрес и порт сервера.
+            String serverSetting = "settings.json";
+            ServerSettings.loadFromFile(serverSetting);
+        } catch (IOException e) {
+            ConsoleHelper.writeMessage("Не удалось прочитать настройки.");
+            LOGGER.warning("Не удалось прочитать настройки.");
+        }
 
-        socketThread.setDaemon(true);  // Помечаем поток как daemon
+        Thread socketThread = ServerSettings.THREADS_VIRTUAL.equals(ServerSettings.getThreads())
+                ? Thread.ofVirtual().unstarted(new SocketThread()) // Виртуальные потоки всегда daemon
+                : Thread.ofPlatform().daemon(true).unstarted(new SocketThread());  // Помечаем поток как daemon
         socketThread.start();
 
         try {
@@ -157,21 +287,24 @@ public class Client {
             String text = ConsoleHelper.readString();
             if (text.equalsIgnoreCase("exit"))
                 break;
-            if (shouldSendTextFromConsole())
+            if (shouldSendTextFromConsole() && !sendRoomCommand(text))
                 sendTextMessage(text);
         }
     }
 
     private void addLoggingClient() {
         String nameFileClientLog = "client.log";
-        FileHandler fileHandler = null;  // создаем обработчик файлового вывода
+        AsyncLogHandler logHandler = null;  // создаем асинхронный обработчик файлового вывода
         try {
-            fileHandler = new FileHandler(nameFileClientLog, true);
+            logHandler = new AsyncLogHandler(nameFileClientLog,
+                    ServerSettings.getLogQueueCapacity(), ServerSettings.getLogOverflowPolicy());
         } catch (IOException e) {
             LOGGER.severe("Ошибка при создании log-обработчика.");
+            return;
         }
+        LOGGER.setLevel(ServerSettings.getLogLevel());
         LOGGER.setUseParentHandlers(false); // отключаем логирование в консоль.
-        LOGGER.addHandler(fileHandler);  // добавляем обработчик в наш логгер.
+        LOGGER.addHandler(logHandler);  // добавляем обработчик в наш логгер.
     }
 }
 
@@ -184,7 +317,8 @@ public class Client {
  *   и переопределяет метод run(). Этот метод осуществляет подключение к серверу,
  *   принимает и обрабатывает сообщения от сервера.
  *
- *   В методе run() создается новый поток SocketThread, помеченный как daemon, и запускается методом start().
+ *   В методе run() создается новый поток для SocketThread, помеченный как daemon, и запускается методом start().
+ *   Если в settings.json указано "threads": "virtual", это виртуальный поток Java 21.
  *   Затем главный поток приостанавливается до тех пор, пока не будет уведомлен о том, что клиент подключился к серверу.
  *
  *   После подключения клиента, если соединение было успешно установлено,
@@ -206,11 +340,31 @@ public class Client {
  *
  *    informAboutDeletingNewUser() - вывод информации о выходе пользователя из чата.
  *
+ *    informAboutUserList() - вывод списка участников, который сервер присылает одним сообщением USER_LIST.
+ *
+ *    informAboutRoomMember() и informAboutRoomList() - вывод уведомлений о входе и выходе участников комнат
+ *    и ответов со списком комнат или участников комнаты.
+ *
  *    notifyConnectionStatusChanged() - уведомление главного потока о том, что клиент подключился к серверу.
  *
  *  Client также содержит защищенный метод getUserName(), который запрашивает у пользователя имя.
  *
- *  Класс Logger используется для ведения логов работы клиента.
+ *  Соединение, регистрацию и приём сообщений выполняет client.ChatClient - тот же клиент без консоли,
+ *  на котором построен генератор нагрузки client.LoadGenerator. SocketThread получает от него
+ *  сообщения сервера (onMessage()) и выводит их в консоль.
+ *
+ *  Если связь с сервером оборвалась, ChatClient переподключается сам (reconnect()) с паузами,
+ *  растущими вдвое, и возобновляет сессию: присылает серверу токен из NAME_ACCEPTED
+ *  и номер последнего полученного сообщения, а в ответ получает только пропущенные сообщения.
+ *  Пока идёт переподключение, клиент продолжает работать, но сообщения не отправляются.
+ *
+ *  Класс Logger используется для ведения логов работы клиента. Записи пишутся в client.log
+ *  асинхронно, через server.AsyncLogHandler.
+ *
+ *  Строки, начинающиеся с команды комнат (/join, /leave, /rooms, /who, /to), личного сообщения (/msg)
+ *  запроса истории (/history) или поиска (/search), метод sendRoomCommand() отправляет на сервер
+ *  как сообщения ROOM_*, PRIVATE_TEXT, HISTORY_REQUEST и SEARCH,
+ *  а не как обычный текст в общий чат.
  *
  *  Клиент работает в бесконечном цикле, пока пользователь не введет команду "exit".
  *
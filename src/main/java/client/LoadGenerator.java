@@ -0,0 +1,182 @@
+package client;
+import server.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class LoadGenerator {
+    private static final String MARKER = "#load "; // Начало текста сообщений генератора.
+    private static final long DRAIN_TIMEOUT_MS = 5000; // Сколько ждать доставки после последней отправки.
+
+    private final int users;
+    private final int messagesPerSecond;
+    private final int seconds;
+    private final int messageSize;
+
+    private final List<ChatClient> clients = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder totalReceived = new LongAdder(); // Доставлено всего, всем получателям.
+    private final LongAdder received = new LongAdder(); // Доставлено за время измерения.
+    private final LongAdder sendErrors = new LongAdder();
+    private volatile long measureStart; // Сообщения, назначенные на отправку раньше, - прогрев, не учитываются.
+
+    public LoadGenerator(int users, int messagesPerSecond, int seconds, int messageSize) {
+        this.users = users;
+        this.messagesPerSecond = messagesPerSecond;
+        this.seconds = seconds;
+        this.messageSize = messageSize;
+    }
+
+    // Аргументы: [участников] [сообщений в секунду, всего] [секунд] [размер сообщения, байт].
+    public static void main(String[] args) throws Exception {
+        try {
+            ServerSettings.loadFromFile("settings.json");
+        } catch (IOException e) {
+            ConsoleHelper.writeMessage("Не удалось прочитать настройки.");
+        }
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        if (users < 1 || rate < 1 || seconds < 1) {
+            ConsoleHelper.writeMessage("Использование: LoadGenerator [участников] [сообщений/с] [секунд] [байт]");
+            return;
+        }
+        new LoadGenerator(users, rate, seconds, size).run(ServerSettings.getHost(), ServerSettings.getPort());
+    }
+
+    public void run(String host, int port) throws IOException, ClassNotFoundException, InterruptedException {
+        connectAll(host, port);
+        try {
+            long[] sent = sendAll();
+            awaitDelivery(sent[0] * users);
+            report(sent[0], sent[1]);
+        } finally {
+            for (ChatClient client : clients)
+                client.close();
+        }
+    }
+
+    // Подключение и регистрация всех участников. Каждый принимает сообщения в своём потоке.
+    private void connectAll(String host, int port) throws IOException, ClassNotFoundException {
+        String prefix = "load-" + ProcessHandle.current().pid() + "-";
+        for (int i = 0; i < users; i++) {
+            ChatClient client = new ChatClient(host, port, this::onMessage);
+            client.connect();
+            String name = prefix + i;
+            client.register(() -> name);
+            clients.add(client);
+            Thread thread = ServerSettings.THREADS_VIRTUAL.equals(ServerSettings.getThreads())
+                    ? Thread.ofVirtual().unstarted(client::run)
+                    : Thread.ofPlatform().daemon(true).unstarted(client::run);
+            thread.start();
+        }
+        ConsoleHelper.writeMessage("Подключено участников: " + users);
+    }
+
+    // Отправка с постоянной частотой по очереди от всех участников. В текст записывается время,
+    // на которое отправка была назначена, а не фактическое: если отправитель отстал (сервер не успевает
+    // читать), задержка растёт, а не прячется. Возвращает {отправлено всего, отправлено за время измерения}.
+    private long[] sendAll() {
+        long period = TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        measureStart = start + TimeUnit.SECONDS.toNanos(Math.min(5, seconds / 5)); // Прогрев - пятая часть, до 5 с.
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < messageSize)
+            padding.append('x');
+
+        long sent = 0;
+        long measured = 0;
+        for (long i = 0; ; i++) {
+            long intended = start + i * period;
+            if (intended - end >= 0)
+                break;
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0)
+                LockSupport.parkNanos(wait);
+            try {
+                clients.get((int) (i % users)).sendText(MARKER + intended + " " + padding);
+                sent++;
+                if (intended - measureStart >= 0)
+                    measured++;
+            } catch (IOException e) {
+                sendErrors.increment();
+            }
+        }
+        return new long[]{sent, measured};
+    }
+
+    // Каждое сообщение общего чата доставляется всем участникам, в том числе отправителю.
+    private void awaitDelivery(long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        long total;
+        while ((total = totalReceived.sum()) < expected && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        if (total < expected)
+            ConsoleHelper.writeMessage("Не доставлено за " + DRAIN_TIMEOUT_MS + " мс: " + (expected - total));
+    }
+
+    // Вызывается из потоков приёма всех участников.
+    private void onMessage(Message message) {
+        if (message.getType() != MessageType.TEXT)
+            return;
+        long now = System.nanoTime();
+        String data = message.getData();
+        int from = data.indexOf(MARKER); // Текст приходит в виде "имя: #load время ...".
+        if (from < 0)
+            return;
+        from += MARKER.length();
+        int to = data.indexOf(' ', from);
+        long intended = Long.parseLong(data, from, to, 10);
+        totalReceived.increment();
+        if (intended - measureStart >= 0) {
+            received.increment();
+            latency.record(now - intended);
+        }
+    }
+
+    private void report(long sent, long measuredSent) {
+        double measuredSeconds = seconds - Math.min(5, seconds / 5);
+        ConsoleHelper.writeMessage(String.format("Участников: %d, отправлено: %d (%.0f сообщ./с), ошибок отправки: %d",
+                users, sent, measuredSent / measuredSeconds, sendErrors.sum()));
+        ConsoleHelper.writeMessage(String.format("Доставлено за время измерения: %d (%.0f сообщ./с), ожидалось: %d",
+                received.sum(), received.sum() / measuredSeconds, measuredSent * users));
+        ConsoleHelper.writeMessage(String.format(
+                "Задержка отправка -> получение, мкс: p50 %d, p90 %d, p99 %d, p99.9 %d, max %d",
+                micros(latency.getValueAtPercentile(50)), micros(latency.getValueAtPercentile(90)),
+                micros(latency.getValueAtPercentile(99)), micros(latency.getValueAtPercentile(99.9)),
+                micros(latency.getMax())));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
+
+
+/**
+ *
+ *   Класс "client.LoadGenerator" - генератор нагрузки для проверки сервера целиком, через сеть.
+ *
+ *   Открывает N участников (client.ChatClient) с адресом и портом из settings.json, и они по очереди
+ *   отправляют в общий чат сообщения с заданной общей частотой. В текст каждого сообщения записано
+ *   время отправки (System.nanoTime() - все клиенты в одной программе), поэтому каждый получатель
+ *   измеряет задержку "отправка -> получение" и записывает её в server.LatencyHistogram.
+ *
+ *   Запуск: java -cp target/classes client.LoadGenerator [участников] [сообщений/с] [секунд] [байт],
+ *   по умолчанию 100 участников, 1000 сообщений в секунду, 30 секунд, 64 байта.
+ *
+ *   Первая пятая часть времени (не больше 5 секунд) - прогрев, её сообщения не учитываются.
+ *   В конце печатается число отправленных и доставленных сообщений в секунду (доставок в N раз больше
+ *   отправок: каждое сообщение получают все участники) и процентили задержки p50/p90/p99/p99.9/max.
+ *
+ *   Время в сообщении - время, на которое отправка была назначена по расписанию. Если сервер
+ *   не успевает и отправитель отстаёт от расписания, это видно в задержке (так же, как в wrk2
+ *   и HdrHistogram учитывается "coordinated omission").
+ *
+ */
@@ -0,0 +1,144 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+public final class AsyncLogHandler extends Handler {
+
+    public enum OverflowPolicy {
+        DROP, // Буфер заполнен - запись выбрасывается (считается в dropped).
+        BLOCK; // Буфер заполнен - поток ждёт, пока писатель освободит место.
+
+        public static OverflowPolicy fromSetting(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private static final int BATCH_SIZE = 512; // Записей за один проход писателя, после прохода - flush().
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final LogRingBuffer buffer;
+    private final OverflowPolicy policy;
+    private final Writer writer;
+    private final Thread thread;
+    private final LongAdder dropped = new LongAdder();
+    private long reportedDropped; // Сколько пропусков уже отмечено в журнале (только поток-писатель).
+    private volatile boolean closed;
+
+    public AsyncLogHandler(String fileName, int capacity, OverflowPolicy policy) throws IOException {
+        this.buffer = new LogRingBuffer(capacity);
+        this.policy = policy;
+        this.writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(fileName, true), StandardCharsets.UTF_8), 64 * 1024);
+        setFormatter(new LineFormatter());
+        this.thread = new Thread(this::writeLoop, "async-log-" + fileName);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record))
+            return;
+        while (!buffer.offer(record)) {
+            if (policy == OverflowPolicy.DROP || closed) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.unpark(thread); // BLOCK: будим писателя и ждём, пока он разгрузит буфер.
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    // Поток-писатель: забирает записи пачками и сбрасывает файл один раз на пачку.
+    private void writeLoop() {
+        while (!closed || !buffer.isEmpty()) {
+            int count = buffer.drain(this::write, BATCH_SIZE);
+            if (count == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            reportDropped();
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                reportError("Ошибка записи журнала", e, ErrorManager.FLUSH_FAILURE);
+            }
+        }
+    }
+
+    private void write(LogRecord record) {
+        try {
+            writer.write(getFormatter().format(record));
+        } catch (Exception e) {
+            reportError("Ошибка записи журнала", e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    private void reportDropped() {
+        long total = dropped.sum();
+        if (total == reportedDropped)
+            return;
+        try {
+            writer.write("... пропущено записей журнала: " + (total - reportedDropped) + System.lineSeparator());
+        } catch (IOException e) {
+            reportError("Ошибка записи журнала", e, ErrorManager.WRITE_FAILURE);
+        }
+        reportedDropped = total;
+    }
+
+    @Override
+    public void flush() {
+        // Писатель сбрасывает файл после каждой пачки записей.
+    }
+
+    // Дописывает всё, что осталось в буфере, и закрывает файл.
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+            writer.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            reportError("Ошибка закрытия журнала", e, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.AsyncLogHandler" - асинхронный обработчик журнала вместо FileHandler.
+ *
+ *   FileHandler пишет каждую запись в файл прямо в потоке, который её создал, да ещё под блокировкой,
+ *   поэтому при рассылке сообщения сотням клиентов журналирование становилось самым медленным местом.
+ *   AsyncLogHandler только кладёт запись в кольцевой буфер без блокировок (server.LogRingBuffer),
+ *   а отдельный поток-писатель забирает записи пачками, форматирует их в одну строку (server.LineFormatter)
+ *   и сбрасывает файл один раз на пачку.
+ *
+ *   Если буфер заполнен, действует политика переполнения: DROP - запись выбрасывается
+ *   (в журнал потом попадает строка с числом пропущенных записей), BLOCK - поток ждёт свободного места.
+ *
+ *   Сами сообщения для журнала в горячих местах сервера строятся только после проверки
+ *   LOGGER.isLoggable(...), так что при выключенном уровне строки даже не создаются.
+ *
+ */
@@ -0,0 +1,308 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class BinaryMessageCodec implements MessageCodec {
+    static final int TYPE_MASK = 0x3F; // Младшие биты тега - код типа сообщения.
+    static final int NO_DATA = 0x40; // У сообщения нет данных (data == null), длина и текст не передаются.
+    static final int EXTENDED = 0x80; // После тега идёт байт дополнительных полей.
+    static final int FIELD_TARGET = 0x01; // Дополнительное поле: адресат сообщения (getTarget()).
+    static final int FIELD_SEQUENCE = 0x02; // Дополнительное поле: номер сообщения в истории (getSequence()).
+    static final int FIELD_DEFLATED = 0x04; // Признак: данные сжаты Deflate, перед ними - исходная длина.
+    private static final int KNOWN_FIELDS = FIELD_TARGET | FIELD_SEQUENCE | FIELD_DEFLATED;
+    // Больше сжатые данные не распаковываются: столько же, сколько помещается в буфер чтения (Session.expand).
+    static final int MAX_INFLATED_LENGTH = 2 * MAX_FRAME_LENGTH;
+
+    private byte[] scratch = new byte[256]; // Для декодирования из буферов без доступного массива.
+    private Deflater deflater; // Создаётся при первом сжатии и переиспользуется.
+    private Inflater inflater; // Создаётся при первом сжатом кадре.
+    private byte[] deflateBuffer = new byte[0]; // Сюда сжимаются данные, переиспользуется.
+
+    @Override
+    public ByteBuffer encode(Message message, ByteBuffer out) {
+        return encode(message, out, 0);
+    }
+
+    // Кодирование со сжатием: данные не короче deflateThreshold символов сжимаются Deflate,
+    // если от этого кадр становится меньше. 0 - не сжимать.
+    public ByteBuffer encode(Message message, ByteBuffer out, int deflateThreshold) {
+        String data = message.getData();
+        String target = message.getTarget();
+        long sequence = message.getSequence();
+        int tag = message.getType().getCode();
+        int fields = (target != null ? FIELD_TARGET : 0) | (sequence != 0 ? FIELD_SEQUENCE : 0);
+        byte[] raw = null;
+        int deflatedLength = -1;
+        if (data != null && deflateThreshold > 0 && data.length() >= deflateThreshold) {
+            raw = data.getBytes(StandardCharsets.UTF_8);
+            deflatedLength = deflate(raw);
+            if (deflatedLength >= 0)
+                fields |= FIELD_DEFLATED;
+        }
+        if (data == null)
+            tag |= NO_DATA;
+        if (fields != 0)
+            tag |= EXTENDED;
+        if (tag == (message.getType().getCode() | NO_DATA)) { // Самый частый короткий случай: только тег.
+            out = MessageCodec.ensureCapacity(out, 1);
+            out.put((byte) tag);
+            return out;
+        }
+        int targetLength = target != null ? utf8Length(target) : 0;
+        int length = deflatedLength >= 0 ? deflatedLength : data != null ? utf8Length(data) : 0;
+        out = MessageCodec.ensureCapacity(out, 2 + 5 + targetLength + 10 + 5 + 5 + length);
+        out.put((byte) tag);
+        if (fields != 0)
+            out.put((byte) fields);
+        if (target != null) {
+            writeVarInt(out, targetLength);
+            writeUtf8(out, target);
+        }
+        if (sequence != 0)
+            writeVarLong(out, sequence);
+        if (deflatedLength >= 0) {
+            writeVarInt(out, raw.length);
+            writeVarInt(out, length);
+            out.put(deflateBuffer, 0, length);
+        } else if (data != null) {
+            writeVarInt(out, length);
+            writeUtf8(out, data);
+        }
+        return out;
+    }
+
+    // Сжатие данных Deflate в deflateBuffer. Возвращает длину сжатых данных или -1, если сжатие
+    // не уменьшило размер. Deflater и буфер переиспользуются, поэтому сжимающий кодек принадлежит
+    // одному соединению (или используется под блокировкой, как в server.SharedFrame).
+    private int deflate(byte[] raw) {
+        long start = System.nanoTime();
+        if (deflater == null)
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        if (deflateBuffer.length < raw.length)
+            deflateBuffer = new byte[raw.length];
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            int length = deflater.deflate(deflateBuffer, 0, raw.length);
+            if (!deflater.finished())
+                return -1; // Сжатые данные не меньше исходных.
+            Metrics.DEFLATE_INPUT_BYTES.add(raw.length);
+            Metrics.DEFLATE_OUTPUT_BYTES.add(length);
+            return length;
+        } finally {
+            deflater.reset();
+            Metrics.DEFLATE_TIME.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    // Распаковка данных сжатого кадра. Исходная длина известна заранее и ограничена длиной кадра.
+    private String inflate(ByteBuffer in, int length, int rawLength) throws IOException {
+        if (inflater == null)
+            inflater = new Inflater(true);
+        byte[] raw = new byte[rawLength];
+        try {
+            inflater.setInput(in.slice(in.position(), length));
+            int inflated = inflater.inflate(raw);
+            if (inflated != rawLength || !inflater.finished())
+                throw new IOException("Повреждённые сжатые данные");
+        } catch (DataFormatException e) {
+            throw new IOException("Повреждённые сжатые данные", e);
+        } finally {
+            inflater.reset();
+        }
+        in.position(in.position() + length);
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Message decode(ByteBuffer in) throws IOException {
+        int start = in.position();
+        if (!in.hasRemaining())
+            return null;
+        int tag = in.get() & 0xFF;
+        MessageType type = MessageType.fromCode(tag & TYPE_MASK);
+        if (type == null)
+            throw new IOException("Неизвестный тег сообщения: " + tag);
+        String target = null;
+        long sequence = 0;
+        int fields = 0;
+        if ((tag & EXTENDED) != 0) {
+            if (!in.hasRemaining()) {
+                in.position(start);
+                return null;
+            }
+            fields = in.get() & 0xFF;
+            if ((fields & ~KNOWN_FIELDS) != 0)
+                throw new IOException("Неизвестные поля сообщения: " + fields);
+            if ((fields & FIELD_TARGET) != 0) {
+                int length = readVarInt(in);
+                if (length < 0 || in.remaining() < length) {
+                    in.position(start);
+                    return null;
+                }
+                target = readUtf8(in, length);
+            }
+            if ((fields & FIELD_SEQUENCE) != 0) {
+                sequence = readVarLong(in);
+                if (sequence < 0) {
+                    in.position(start);
+                    return null;
+                }
+            }
+        }
+        if ((tag & NO_DATA) != 0)
+            return new Message(type, target, null, sequence);
+        int rawLength = 0;
+        if ((fields & FIELD_DEFLATED) != 0) {
+            rawLength = readVarInt(in);
+            if (rawLength < 0) {
+                in.position(start);
+                return null;
+            }
+            if (rawLength > MAX_INFLATED_LENGTH)
+                throw new IOException("Слишком большие сжатые данные: " + rawLength);
+        }
+        int length = readVarInt(in);
+        if (length < 0 || in.remaining() < length) { // Кадр ещё не пришёл целиком.
+            in.position(start);
+            return null;
+        }
+        String data = (fields & FIELD_DEFLATED) != 0 ? inflate(in, length, rawLength) : readUtf8(in, length);
+        return new Message(type, target, data, sequence);
+    }
+
+    // Длина varint или -1, если в буфере ещё не все её байты.
+    private static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!in.hasRemaining())
+                return -1;
+            int b = in.get();
+            if (shift == 28 && (b & 0x70) != 0) // Старшие биты пятого байта не помещаются в int.
+                throw new IOException("Повреждённая длина кадра");
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value > MAX_FRAME_LENGTH)
+                    throw new IOException("Недопустимая длина кадра: " + value);
+                return value;
+            }
+        }
+        throw new IOException("Повреждённая длина кадра");
+    }
+
+    // Номер сообщения или -1, если в буфере ещё не все его байты. Номера всегда положительные.
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (!in.hasRemaining())
+                return -1;
+            int b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value <= 0)
+                    throw new IOException("Недопустимый номер сообщения: " + value);
+                return value;
+            }
+        }
+        throw new IOException("Повреждённый номер сообщения");
+    }
+
+    static void writeVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static void writeVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    // Число байт строки в UTF-8 без создания промежуточного массива.
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static void writeUtf8(ByteBuffer out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                if (Character.isSurrogate(c))
+                    c = '?'; // Одиночный суррогат, как и String.getBytes(), заменяем на '?'.
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private String readUtf8(ByteBuffer in, int length) {
+        if (in.hasArray()) {
+            String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return s;
+        }
+        if (scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        in.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.BinaryMessageCodec" - компактный двоичный формат сообщений (версия протокола 2).
+ *
+ *   Кадр: [тег, 1 байт][длина текста, varint][текст в UTF-8].
+ *   Младшие 6 бит тега - код типа сообщения (server.MessageType.getCode()), бит 0x40 означает,
+ *   что у сообщения нет данных, и тогда кадр состоит из одного тега.
+ *   Бит 0x80 означает, что за тегом идёт байт дополнительных полей: адресат (0x01, комната или
+ *   участник) в виде [длина, varint][UTF-8] и номер сообщения в истории (0x02, varint). Поля идут
+ *   в порядке их битов. Неизвестные биты полей отклоняются, чтобы не принять чужой формат за свой.
+ *   Бит поля 0x04 означает, что данные сжаты Deflate: перед длиной сжатых данных идёт их исходная
+ *   длина (varint). Сжатие включается параметром encode(message, out, deflateThreshold): кодек соединения
+ *   сжимает только для собеседника, договорившегося о возможности "deflate" (см. server.ProtocolCodec),
+ *   и только данные не короче порога compressionThreshold, а короткие сообщения идут как раньше.
+ *   Распаковывает кодек всегда, исходная длина ограничена MAX_INFLATED_LENGTH.
+ *
+ *   В отличие от Java-сериализации, в кадре нет описаний классов, а при декодировании
+ *   не используется рефлексия: создаётся только сама строка и объект сообщения.
+ *   Текст кодируется в UTF-8 прямо в буфер соединения, без промежуточного массива байт.
+ *
+ */
@@ -0,0 +1,123 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class BroadcastFanout implements AutoCloseable {
+    static final int PARALLEL_THRESHOLD = 1024; // Меньше получателей - рассылка в вызывающем потоке.
+
+    private final int shards;
+    private final ExecutorService workers; // shards - 1 потоков, null - без параллельной рассылки.
+    private Session[] partitioned; // Снимок получателей, для которого посчитаны группы.
+    private Session[][] groups;
+
+    // shards - на сколько групп делить получателей, 1 - рассылать в вызывающем потоке.
+    public BroadcastFanout(int shards) {
+        this.shards = Math.max(1, shards);
+        if (this.shards == 1) {
+            workers = null;
+            return;
+        }
+        AtomicInteger number = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(this.shards - 1, task -> {
+            Thread thread = new Thread(task, "broadcast-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    // Вызвать action для каждого получателя и вернуться, когда все вызовы закончились.
+    // Одна группа обходится в вызывающем потоке, остальные - потоками пула.
+    public void forEach(Session[] recipients, Consumer<Session> action) {
+        if (workers == null || recipients.length < PARALLEL_THRESHOLD) {
+            for (Session connection : recipients)
+                action.accept(connection);
+            return;
+        }
+        Session[][] groups = groupsOf(recipients);
+        CountDownLatch done = new CountDownLatch(groups.length - 1);
+        for (int i = 1; i < groups.length; i++) {
+            Session[] group = groups[i];
+            workers.execute(() -> {
+                try {
+                    for (Session connection : group)
+                        action.accept(connection);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        for (Session connection : groups[0])
+            action.accept(connection);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true; // Рассылку не бросаем: иначе следующая обгонит её у части получателей.
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    // Группы по хешу соединения. Реестр заменяет массив при каждом входе и выходе,
+    // поэтому разбиение считается один раз на снимок, а не на каждую рассылку.
+    private synchronized Session[][] groupsOf(Session[] recipients) {
+        if (recipients == partitioned)
+            return groups;
+        int[] sizes = new int[shards];
+        for (Session connection : recipients)
+            sizes[shardOf(connection)]++;
+        Session[][] result = new Session[shards][];
+        for (int i = 0; i < shards; i++)
+            result[i] = new Session[sizes[i]];
+        Arrays.fill(sizes, 0);
+        for (Session connection : recipients) {
+            int shard = shardOf(connection);
+            result[shard][sizes[shard]++] = connection;
+        }
+        partitioned = recipients;
+        groups = result;
+        return result;
+    }
+
+    private int shardOf(Session connection) {
+        int hash = System.identityHashCode(connection);
+        return Math.floorMod(hash ^ (hash >>> 16), shards);
+    }
+
+    @Override
+    public void close() {
+        if (workers != null)
+            workers.shutdownNow();
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.BroadcastFanout" - параллельная рассылка большой аудитории.
+ *
+ *   Кадр рассылки кодируется один раз, но поставить его в очередь каждого соединения раньше
+ *   приходилось одному потоку отправителя, и задержка до последнего получателя росла линейно
+ *   с числом участников. Теперь получатели делятся на shards групп по хешу соединения,
+ *   одну группу обходит сам отправитель, остальные - потоки пула, по одному на группу.
+ *
+ *   forEach() возвращается только после того, как кадр поставлен всем получателям, а рассылки идут
+ *   под общей блокировкой сервера. Поэтому порядок сообщений у каждого получателя остаётся тем же,
+ *   что и порядок отправки, в том числе относительно личных сообщений и ответов сервера.
+ *
+ *   Рассылки меньше чем PARALLEL_THRESHOLD получателям идут в вызывающем потоке: передача работы
+ *   пулу стоит дороже, чем обход короткого массива. Число групп задаёт настройка broadcastShards.
+ *
+ */
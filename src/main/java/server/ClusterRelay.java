@@ -0,0 +1,405 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+public class ClusterRelay implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+    static final int SEEN_CAPACITY = 65_536; // Сколько последних номеров сообщений помнит узел.
+    private static final long RECONNECT_MIN_DELAY_MS = 250;
+    private static final long RECONNECT_MAX_DELAY_MS = 10_000;
+
+    // Что делать с событиями других узлов. Вызывается в потоке чтения соединения с узлом.
+    public interface Listener {
+        void remoteText(String text); // Сообщение общего чата от участника другого узла.
+
+        void remoteUserAdded(String userName);
+
+        void remoteUserRemoved(String userName);
+    }
+
+    private final String nodeId;
+    // Запуск узла: у перезапущенного узла с тем же именем счётчик nextId начинается заново,
+    // и без этой части его новые номера совпали бы с уже виденными соседями.
+    private final String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final Listener listener;
+    private final Supplier<String[]> localUsers; // Участники этого узла, для снимка новому соседу.
+    private final List<Link> links = new CopyOnWriteArrayList<>(); // Все открытые соединения, и до знакомства тоже.
+    // Узел -> единственное соединение с ним, по которому идут сообщения (см. attach()).
+    private final ConcurrentHashMap<String, Link> peers = new ConcurrentHashMap<>();
+    // Участники других узлов: нормализованное имя -> участник и узел, на котором он зарегистрирован.
+    private final ConcurrentHashMap<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(); // Счётчик номеров сообщений этого узла.
+    private final ReentrantLock seenLock = new ReentrantLock();
+    // Снимок участников для нового соседа и изменения присутствия ставятся в очереди соединений по одному,
+    // иначе выход участника мог бы обогнать снимок, в котором он ещё есть.
+    private final ReentrantLock presenceLock = new ReentrantLock();
+    // Номера уже обработанных сообщений - защита от повтора при замене соединения с узлом.
+    // Старые вытесняются: повтор приходит сразу, а не через 65 тысяч сообщений.
+    private final Map<String, Boolean> seen = new LinkedHashMap<>(1024, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > SEEN_CAPACITY;
+        }
+    };
+    private volatile boolean closed;
+    private ServerSocket serverSocket;
+
+    private record RemoteUser(String name, String nodeId) {
+    }
+
+    public ClusterRelay(String nodeId, Listener listener, Supplier<String[]> localUsers) {
+        this.nodeId = nodeId;
+        this.listener = listener;
+        this.localUsers = localUsers;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // Приём соединений от других узлов на адресе host. Возвращает порт (при port == 0 он выбирается системой).
+    // Узлы не проверяют друг друга, поэтому порт должен быть виден только из сети, где стоят узлы кластера.
+    public int listen(String host, int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(host));
+        Thread.ofPlatform().daemon().name("cluster-accept").start(() -> {
+            while (!closed) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setKeepAlive(true);
+                    socket.setTcpNoDelay(true);
+                    start(new Link(new Connection(socket), false));
+                } catch (IOException e) {
+                    if (!closed)
+                        LOGGER.warning("Ошибка приёма соединения от узла кластера: " + e.getMessage());
+                }
+            }
+        });
+        ConsoleHelper.writeMessage("Узел " + nodeId + " ждёт другие узлы кластера на " + serverSocket.getLocalSocketAddress());
+        LOGGER.info("Узел " + nodeId + " ждёт другие узлы кластера на " + serverSocket.getLocalSocketAddress());
+        return serverSocket.getLocalPort();
+    }
+
+    // Постоянное соединение с узлом host:port. После обрыва - повторные попытки с растущей паузой.
+    // Пока узел сам держит соединение с этим, второе не открывается.
+    public void connect(String address) {
+        int colon = address.lastIndexOf(':');
+        InetSocketAddress peer = new InetSocketAddress(address.substring(0, colon).trim(),
+                Integer.parseInt(address.substring(colon + 1).trim()));
+        Thread.ofPlatform().daemon().name("cluster-connect-" + address).start(() -> {
+            long delay = RECONNECT_MIN_DELAY_MS;
+            String peerId = null; // Имя узла по этому адресу, известно после первого знакомства.
+            while (!closed) {
+                if (peerId == null || !peers.containsKey(peerId)) {
+                    try {
+                        Socket socket = new Socket(peer.getHostString(), peer.getPort());
+                        socket.setKeepAlive(true);
+                        socket.setTcpNoDelay(true);
+                        Link link = new Link(new Connection(socket), true);
+                        delay = RECONNECT_MIN_DELAY_MS;
+                        run(link); // Возвращается, когда соединение оборвалось или оказалось лишним.
+                        if (link.peerId != null)
+                            peerId = link.peerId;
+                    } catch (IOException e) {
+                        LOGGER.fine("Узел кластера " + address + " недоступен: " + e.getMessage());
+                    }
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                delay = Math.min(delay * 2, RECONNECT_MAX_DELAY_MS);
+            }
+        });
+    }
+
+    // Сообщение общего чата участника этого узла - всем соседям.
+    public void publishText(String text) {
+        publish(MessageType.PEER_TEXT, text);
+    }
+
+    public void publishUserAdded(String userName) {
+        publishPresence("+" + userName);
+    }
+
+    public void publishUserRemoved(String userName) {
+        publishPresence("-" + userName);
+    }
+
+    private void publishPresence(String change) {
+        presenceLock.lock();
+        try {
+            publish(MessageType.PEER_PRESENCE, change);
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // Зарегистрирован ли участник с таким именем на другом узле.
+    public boolean isRemoteUser(String userName) {
+        return remoteUsers.containsKey(UserRegistry.normalize(userName));
+    }
+
+    // Имя участника другого узла в том написании, в каком он регистрировался, или null.
+    public String remoteNameOf(String userName) {
+        RemoteUser user = remoteUsers.get(UserRegistry.normalize(userName));
+        return user != null ? user.name() : null;
+    }
+
+    public Collection<String> remoteUserNames() {
+        List<String> names = new ArrayList<>(remoteUsers.size());
+        for (RemoteUser user : remoteUsers.values())
+            names.add(user.name());
+        return names;
+    }
+
+    // Число соединений с другими узлами, прошедших знакомство.
+    public int peerCount() {
+        return peers.size();
+    }
+
+    private void publish(MessageType type, String data) {
+        send(new SharedFrame(new Message(type, nodeId + ":" + epoch + ":" + nextId.incrementAndGet(), data)));
+    }
+
+    // Кадр кодируется один раз для всех соседей, как при рассылке участникам.
+    private void send(SharedFrame frame) {
+        for (Link link : peers.values()) {
+            try {
+                link.connection.send(frame);
+                Metrics.CLUSTER_RELAYED.increment();
+            } catch (IOException e) {
+                LOGGER.warning("Не получилось отправить сообщение узлу " + link.peerId);
+            }
+        }
+    }
+
+    // true, если сообщение с этим номером пришло впервые.
+    private boolean markSeen(String id) {
+        seenLock.lock();
+        try {
+            return seen.put(id, Boolean.TRUE) == null;
+        } finally {
+            seenLock.unlock();
+        }
+    }
+
+    private void start(Link link) {
+        Thread.ofPlatform().daemon().name("cluster-link").start(() -> run(link));
+    }
+
+    // Обслуживание соединения с узлом: знакомство, снимок участников, затем приём сообщений до обрыва.
+    private void run(Link link) {
+        Connection connection = link.connection;
+        links.add(link);
+        try {
+            connection.setProtocolVersion(MessageCodec.VERSION_BINARY);
+            connection.startWriter(Server.handlerExecutor(ServerSettings.THREADS_PLATFORM), Server.newOutboundQueue());
+            connection.send(new Message(MessageType.PEER_HELLO, nodeId, epoch));
+            Message hello = connection.receive();
+            if (hello.getType() != MessageType.PEER_HELLO || hello.getTarget() == null || hello.getTarget().equals(nodeId))
+                throw new IOException("Узел кластера не представился или это этот же узел");
+            presenceLock.lock();
+            try {
+                link.peerId = hello.getTarget();
+                if (!attach(link)) {
+                    LOGGER.fine("Второе соединение с узлом кластера " + link.peerId + " закрыто");
+                    return;
+                }
+                sendSnapshot(connection); // С этого момента соединение получает рассылки.
+            } finally {
+                presenceLock.unlock();
+            }
+            ConsoleHelper.writeMessage("Установлено соединение с узлом кластера " + link.peerId);
+            LOGGER.info("Установлено соединение с узлом кластера " + link.peerId + ", запуск " + hello.getData()
+                    + " (" + connection.getRemoteSocketAddress() + ")");
+            while (!closed)
+                receive(link, connection.receive());
+        } catch (IOException | ClassNotFoundException e) {
+            if (!closed && !link.superseded && !(e instanceof SocketException))
+                LOGGER.warning("Соединение с узлом кластера " + link.peerId + " прервано: " + e.getMessage());
+        } finally {
+            links.remove(link);
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+                // Соединение и так разорвано.
+            }
+            if (link.peerId != null && peers.remove(link.peerId, link))
+                peerLost(link.peerId);
+        }
+    }
+
+    // Одно соединение на узел. Если узлы подключились друг к другу оба, остаётся соединение, открытое
+    // узлом с меньшим именем: оба узла выбирают одинаково. Так все сообщения узла идут по одному
+    // соединению и приходят в том порядке, в каком отправлены. Вызывается под presenceLock.
+    private boolean attach(Link link) {
+        Link current = peers.get(link.peerId);
+        if (current != null && preferred(current) && !preferred(link))
+            return false;
+        peers.put(link.peerId, link);
+        if (current != null) { // Новое соединение главнее или старое уже оборвалось.
+            current.superseded = true;
+            try {
+                current.connection.close();
+            } catch (IOException ignored) {
+                // Соединение и так разорвано.
+            }
+        }
+        return true;
+    }
+
+    private boolean preferred(Link link) {
+        return link.outgoing == (nodeId.compareTo(link.peerId) < 0);
+    }
+
+    // Все участники этого узла одним сообщением, в формате USER_PRESENCE. Номер у снимка свой для каждого
+    // соседа: снимок не пересылается дальше, и отбрасывать его как повтор нельзя.
+    private void sendSnapshot(Connection connection) throws IOException {
+        String[] names = localUsers.get();
+        if (names.length == 0)
+            return;
+        StringBuilder changes = new StringBuilder();
+        for (String name : names) {
+            if (!changes.isEmpty())
+                changes.append('\n');
+            changes.append('+').append(name);
+        }
+        connection.send(new Message(MessageType.PEER_PRESENCE,
+                nodeId + ":" + epoch + ":snapshot:" + nextId.incrementAndGet(), changes.toString()));
+    }
+
+    private void receive(Link link, Message message) {
+        String id = message.getTarget();
+        if (id == null || !markSeen(id)) {
+            Metrics.CLUSTER_DUPLICATES.increment(); // Уже пришло прежним соединением с тем же узлом.
+            return;
+        }
+        Metrics.CLUSTER_RECEIVED.increment();
+        switch (message.getType()) {
+            case PEER_TEXT -> listener.remoteText(message.getData());
+            case PEER_PRESENCE -> {
+                for (String change : message.getData().split("\n")) {
+                    if (change.length() < 2)
+                        continue;
+                    String name = change.substring(1);
+                    if (change.charAt(0) == '+')
+                        userAdded(name, link.peerId);
+                    else
+                        userRemoved(name, link.peerId);
+                }
+            }
+            default -> LOGGER.warning("Узел " + link.peerId + " прислал сообщение неизвестного типа " + message.getType());
+        }
+    }
+
+    private void userAdded(String name, String peerId) {
+        if (remoteUsers.put(UserRegistry.normalize(name), new RemoteUser(name, peerId)) == null)
+            listener.remoteUserAdded(name);
+    }
+
+    // Выход засчитывается только от узла, на котором участник зарегистрирован.
+    private void userRemoved(String name, String peerId) {
+        String key = UserRegistry.normalize(name);
+        RemoteUser user = remoteUsers.get(key);
+        if (user != null && user.nodeId().equals(peerId) && remoteUsers.remove(key, user))
+            listener.remoteUserRemoved(user.name());
+    }
+
+    // Соединение с узлом оборвалось, и другого нет: его участники покидают чат.
+    private void peerLost(String peerId) {
+        ConsoleHelper.writeMessage("Потеряна связь с узлом кластера " + peerId);
+        LOGGER.warning("Потеряна связь с узлом кластера " + peerId);
+        for (Map.Entry<String, RemoteUser> entry : remoteUsers.entrySet()) {
+            if (peerId.equals(entry.getValue().nodeId()) && remoteUsers.remove(entry.getKey(), entry.getValue()))
+                listener.remoteUserRemoved(entry.getValue().name());
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (serverSocket != null)
+                serverSocket.close();
+        } catch (IOException ignored) {
+            // Сокет и так закрыт.
+        }
+        for (Link link : links) {
+            try {
+                link.connection.close();
+            } catch (IOException ignored) {
+                // Соединение и так разорвано.
+            }
+        }
+    }
+
+    // Соединение с другим узлом. peerId известен после знакомства (PEER_HELLO).
+    private static final class Link {
+        final Connection connection;
+        final boolean outgoing; // Открыто этим узлом (connect), а не принято (listen).
+        volatile String peerId;
+        volatile boolean superseded; // Закрыто, потому что с узлом есть соединение главнее.
+
+        Link(Connection connection, boolean outgoing) {
+            this.connection = connection;
+            this.outgoing = outgoing;
+        }
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.ClusterRelay" - связь нескольких серверов чата в один кластер.
+ *
+ *   Каждый сервер (узел) принимает соединения других узлов на адресе clusterHost и порту clusterPort
+ *   и сам подключается к узлам из списка clusterPeers. Узлы друг друга не проверяют, поэтому
+ *   clusterHost - адрес во внутренней сети кластера (по умолчанию только локальный).
+ *   Узлы говорят по обычному двоичному протоколу (server.Connection, версия 2) тремя типами сообщений:
+ *   - PEER_HELLO - знакомство, в target - имя узла (nodeId), в данных - номер его запуска;
+ *   - PEER_TEXT - сообщение общего чата от участника узла;
+ *   - PEER_PRESENCE - вход ("+имя") и выход ("-имя") участников узла, в формате USER_PRESENCE.
+ *   Сразу после знакомства узел отправляет соседу всех своих участников одним PEER_PRESENCE.
+ *
+ *   Каждый узел рассылает сообщения только своим соединениям: сообщение участника уходит соседям
+ *   одним кадром на узел, а не копией на каждого получателя. Сосед доставляет его своим участникам
+ *   через обычную рассылку (с записью в свою историю и своими номерами) и дальше не пересылает,
+ *   поэтому узлы должны быть соединены каждый с каждым.
+ *
+ *   С каждым узлом работает одно соединение. Если два узла указали друг друга в clusterPeers,
+ *   после знакомства остаётся соединение, открытое узлом с меньшим именем, второе закрывается,
+ *   и узел с большим именем не переподключается, пока первое живо. Поэтому сообщения узла
+ *   не обгоняют друг друга: выход участника не придёт раньше его входа.
+ *
+ *   У каждого сообщения в target есть номер "узел:запуск:счётчик". Если сообщение всё же пришло дважды
+ *   (при замене соединения), повтор отбрасывается по номеру (метрика chat_cluster_duplicates_total).
+ *   Узел помнит SEEN_CAPACITY последних номеров. Запуск - случайное число, выбранное при старте узла:
+ *   счётчик перезапущенного узла начинается заново, но его номера не совпадут с виденными до перезапуска.
+ *
+ *   Оборванное исходящее соединение восстанавливается с растущей паузой. Когда с узлом не остаётся
+ *   ни одного соединения, его участники для остальных покидают чат.
+ *
+ *   Ограничения: имя проверяется на уникальность по участникам этого узла и уже известным
+ *   участникам других узлов, поэтому двое, одновременно занявших одно имя на разных узлах, оба
+ *   останутся в чате. Комнаты и личные сообщения работают только в пределах узла.
+ *
+ */
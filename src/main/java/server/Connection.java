@@ -1,46 +1,292 @@
 package server;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class Connection implements Closeable {
-    private final Socket socket; // Socket позволяет устанавливать соединения через протоколы TCP/IP или UDP/IP.
-    private final ObjectOutputStream out; // Поток вывода объекта.
-    private final ObjectInputStream in; // Поток ввода объекта.
+public class Connection extends Session {
+    static final int BATCH_BYTES = 64 * 1024; // Сколько байт кадров из очереди поток-писатель собирает в одну запись.
+    private final Closeable socket; // Socket позволяет устанавливать соединения через протоколы TCP/IP или UDP/IP.
+    private final SocketAddress remoteAddress;
+    private final OutputStream out; // Поток вывода.
+    private final InputStream in; // Поток ввода.
+    // Блокировки вместо synchronized: виртуальный поток, ждущий на них, не занимает поток-носитель.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ProtocolCodec codec = new ProtocolCodec(); // Кодирование сообщений в кадры.
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // Принятые, но ещё не разобранные байты.
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // Переиспользуется для каждого кадра.
+    private volatile OutboundQueue outbound; // null - запись в потоке отправителя (так работает клиент).
+    // Поток объектов старого собеседника (версия 0). Читает байты из readBuffer и дочитывает сокет сам.
+    private ObjectInputStream legacyIn;
+    private final LegacyInput legacyInput = new LegacyInput();
 
 
     public Connection(Socket socket) throws IOException {
+        this(socket.getInputStream(), socket.getOutputStream(), socket.getRemoteSocketAddress(), socket);
+    }
+
+    // Соединение поверх произвольных потоков, например, внутри одного процесса.
+    Connection(InputStream in, OutputStream out, SocketAddress remoteAddress, Closeable socket) {
         this.socket = socket;
-        this.out = new ObjectOutputStream(socket.getOutputStream());
-        this.in = new ObjectInputStream(socket.getInputStream());
+        this.remoteAddress = remoteAddress;
+        this.out = out;
+        this.in = in;
+    }
+
+    // Включение очереди исходящих кадров: дальше в сокет пишет отдельный поток-писатель.
+    public void startWriter(Executor executor, OutboundQueue queue) {
+        this.outbound = queue;
+        executor.execute(this::writeLoop);
     }
 
+    @Override
     public void send(Message message) throws IOException { // Отправка сообщения.
-        synchronized (out) {
-            out.writeObject(message);
+        if (outbound != null)
+            enqueue(new SharedFrame(message));
+        else
+            write(message);
+    }
+
+    @Override
+    public void send(SharedFrame frame) throws IOException {
+        if (outbound != null)
+            enqueue(frame);
+        else if (codec.getVersion() == MessageCodec.VERSION_BINARY)
+            write(frame);
+        else
+            write(frame.getMessage());
+    }
+
+    private void enqueue(SharedFrame frame) throws IOException {
+        if (!outbound.offer(frame)) {
+            close(); // Медленный клиент: поток обработчика выйдет из receive() и удалит участника.
+            throw new IOException("Соединение с " + remoteAddress + " закрыто: клиент не успевает принимать сообщения");
+        }
+    }
+
+    private void write(Message message) throws IOException {
+        writeLock.lock();
+        try {
+            long start = System.nanoTime();
+            writeBuffer = codec.encode(message, writeBuffer.clear());
+            out.write(writeBuffer.array(), 0, writeBuffer.position());
+            markWritten();
+            Metrics.SEND_TIME.recordNanos(System.nanoTime() - start);
+            Metrics.MESSAGES_SENT.increment();
+            Metrics.BYTES_SENT.add(writeBuffer.position());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void write(SharedFrame frame) throws IOException {
+        boolean deflate = hasFeature(ProtocolCodec.FEATURE_DEFLATE);
+        writeLock.lock();
+        try {
+            long start = System.nanoTime();
+            frame.writeTo(out, deflate); // Общие байты кадра, без повторного кодирования.
+            markWritten();
+            Metrics.SEND_TIME.recordNanos(System.nanoTime() - start);
+            Metrics.MESSAGES_SENT.increment();
+            Metrics.BYTES_SENT.add(frame.length(deflate));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Поток-писатель: отправляет кадры из очереди, пока соединение не закроется. Кадры, накопившиеся
+    // в очереди, собираются в writeBuffer (до BATCH_BYTES) и уходят в сокет одной записью - это и есть
+    // точка сброса: пока в очереди что-то есть, маленькие кадры не пишутся в сокет по одному.
+    private void writeLoop() {
+        try {
+            SharedFrame frame;
+            while ((frame = outbound.take()) != null) {
+                writeLock.lock();
+                try {
+                    long start = System.nanoTime();
+                    int frames = 0;
+                    writeBuffer.clear();
+                    do {
+                        append(frame);
+                        frames++;
+                    } while (writeBuffer.position() < BATCH_BYTES && (frame = outbound.poll()) != null);
+                    out.write(writeBuffer.array(), 0, writeBuffer.position());
+                    out.flush();
+                    markWritten();
+                    Metrics.SEND_TIME.recordNanos(System.nanoTime() - start);
+                    Metrics.MESSAGES_SENT.add(frames);
+                    Metrics.BYTES_SENT.add(writeBuffer.position());
+                } finally {
+                    writeLock.unlock();
+                    outbound.written(); // И при ошибке записи: кадры уже не будут записаны.
+                }
+            }
+        } catch (IOException e) {
+            closeQuietly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeQuietly();
+        }
+    }
+
+    // Кадр в конец writeBuffer: общие байты кадра для версии 2 или своё кодирование для версии 1.
+    private void append(SharedFrame frame) throws IOException {
+        if (codec.getVersion() == MessageCodec.VERSION_BINARY) {
+            ByteBuffer bytes = frame.buffer(hasFeature(ProtocolCodec.FEATURE_DEFLATE));
+            writeBuffer = MessageCodec.ensureCapacity(writeBuffer, bytes.remaining());
+            writeBuffer.put(bytes);
+        } else {
+            writeBuffer = codec.encode(frame.getMessage(), writeBuffer);
         }
     }
 
     public Message receive() throws IOException, ClassNotFoundException {  // Чтение сообщения.
-        synchronized (in) {
-            return (Message) in.readObject();
+        readLock.lock();
+        try {
+            while (true) {
+                readBuffer.flip();
+                long start = System.nanoTime();
+                Message message = codec.decode(readBuffer);
+                if (message == null && codec.isLegacy())
+                    return receiveLegacy(start);
+                int frameLength = readBuffer.position(); // Кадр разбирается с начала буфера.
+                readBuffer.compact();
+                if (message != null) {
+                    setReceivedFrameLength(frameLength);
+                    Metrics.RECEIVE_TIME.recordNanos(System.nanoTime() - start);
+                    Metrics.MESSAGES_RECEIVED.increment();
+                    return message;
+                }
+                if (!readBuffer.hasRemaining())
+                    readBuffer = expand(readBuffer);
+                int count = in.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+                if (count < 0)
+                    throw new EOFException("Соединение закрыто удалённой стороной");
+                Metrics.BYTES_RECEIVED.add(count);
+                markRead();
+                readBuffer.position(readBuffer.position() + count);
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    // Сообщение из потока объектов без кадров. readBuffer на время чтения остаётся в режиме чтения:
+    // ObjectInputStream берёт из него ровно столько байт, сколько занимает сообщение, и остаток
+    // не теряется, если после запроса имени собеседник переключится на другую версию.
+    private Message receiveLegacy(long start) throws IOException, ClassNotFoundException {
+        try {
+            long consumed = legacyInput.consumed;
+            if (legacyIn == null)
+                legacyIn = ObjectStreamCodec.legacyInput(legacyInput);
+            Message message = (Message) legacyIn.readObject();
+            setReceivedFrameLength((int) (legacyInput.consumed - consumed));
+            Metrics.RECEIVE_TIME.recordNanos(System.nanoTime() - start);
+            Metrics.MESSAGES_RECEIVED.increment();
+            return message;
+        } finally {
+            readBuffer.compact();
         }
     }
 
+    // Байты для ObjectInputStream старого собеседника: сначала принятые в readBuffer, затем из сокета.
+    private class LegacyInput extends InputStream {
+        private long consumed; // Сколько байт прочитано из потока объектов, для длины сообщения.
+
+        @Override
+        public int read() throws IOException {
+            if (!readBuffer.hasRemaining() && !fill())
+                return -1;
+            consumed++;
+            return readBuffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!readBuffer.hasRemaining() && !fill())
+                return -1;
+            int n = Math.min(len, readBuffer.remaining());
+            readBuffer.get(b, off, n);
+            consumed += n;
+            return n;
+        }
+
+        // Буфер прочитан целиком - дочитываем сокет в его начало. Буфер остаётся в режиме чтения.
+        private boolean fill() throws IOException {
+            readBuffer.clear();
+            int count = in.read(readBuffer.array(), 0, readBuffer.capacity());
+            if (count < 0) {
+                readBuffer.limit(0);
+                return false;
+            }
+            Metrics.BYTES_RECEIVED.add(count);
+            markRead();
+            readBuffer.limit(count);
+            return true;
+        }
+    }
+
+    public int getProtocolVersion() {
+        return codec.getVersion();
+    }
+
+    @Override
+    public void setFeatures(int features) {
+        super.setFeatures(features);
+        codec.setDeflateThreshold(deflateThreshold());
+    }
+
+    // Переход на другую версию протокола после согласования (см. server.ProtocolCodec).
+    public void setProtocolVersion(int version) {
+        codec.setVersion(version);
+        if (version != MessageCodec.VERSION_LEGACY)
+            legacyIn = null; // Непрочитанные байты так и лежат в readBuffer и разбираются как кадры.
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    // Очередь пуста, и поток-писатель не держит взятых из неё кадров.
+    @Override
+    public boolean isFlushed() {
+        OutboundQueue queue = outbound;
+        return queue == null || queue.isDrained();
+    }
+
+    @Override
     public SocketAddress getRemoteSocketAddress() {
-        return socket.getRemoteSocketAddress(); // возвращает удаленный адрес сокетного соединения
+        return remoteAddress; // возвращает удаленный адрес сокетного соединения
     }
 
     @Override
     public void close() throws IOException {
+        if (outbound != null)
+            outbound.close();
         in.close();
         out.close();
         socket.close();
     }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {
+            // Соединение и так разорвано.
+        }
+    }
 }
 
 
@@ -58,12 +304,20 @@ public class Connection implements Closeable {
  *                                         ***
  *
  *   Метод "send" используется для отправки сообщения через сокет.
- *   отправляет сообщение (server.Message) в исходящий поток данных (ObjectOutputStream),
- *   который был создан в конструкторе класса server.Connection.
+ *   Сообщение (server.Message) кодируется в кадр классом server.ProtocolCodec
+ *   (в переиспользуемый буфер writeBuffer) и одной записью отправляется в исходящий поток сокета.
  *
- *   Метод send() использует блокировку синхронизации на объекте out, чтобы гарантировать,
+ *   Метод send() использует блокировку writeLock (ReentrantLock), чтобы гарантировать,
  *   что только один поток будет записывать данные в этот поток данных в любой момент времени.
  *   Это важно, чтобы избежать ошибок, связанных с одновременной записью в один и тот же поток данных.
+ *   В отличие от synchronized, ожидание на ReentrantLock не "прикалывает" виртуальный поток
+ *   к потоку-носителю, поэтому соединения можно обслуживать виртуальными потоками.
+ *
+ *   На сервере соединение работает с очередью исходящих кадров (server.OutboundQueue, см. startWriter()):
+ *   send() только ставит кадр в очередь, а в сокет пишет отдельный поток-писатель. Так клиент с заполненным
+ *   TCP-окном не задерживает поток, который рассылает сообщение остальным участникам.
+ *   Поток-писатель забирает из очереди всё, что в ней накопилось (до BATCH_BYTES), и пишет это в сокет
+ *   одной записью с flush(), а не отдельной записью на каждый кадр.
  *
  *   Метод send() может выбрасывать исключение IOException, которое может возникнуть
  *   в процессе записи данных в исходящий поток данных.
@@ -72,10 +326,12 @@ public class Connection implements Closeable {
  *                                         ***
  *
  *   Метод "receive" используется для чтения сообщения из входного потока [in].
- *   Он позволяет получить сообщение (server.Message) из входящего потока данных (ObjectInputStream),
- *   который был создан в конструкторе класса server.Connection.
+ *   Он дочитывает байты из сокета в буфер, пока в нём не окажется целый кадр,
+ *   и возвращает декодированное из этого кадра сообщение (server.Message).
+ *   Собеседник первой версии чата пишет поток объектов без кадров (версия 0): его сообщения
+ *   читает ObjectInputStream, который берёт байты из того же буфера и сам дочитывает сокет.
  *
- *   Метод receive() использует блокировку синхронизации на объекте in, что гарантирует,
+ *   Метод receive() использует блокировку readLock (ReentrantLock), что гарантирует,
  *   что только один поток будет читать данные из этого потока данных в любой момент времени.
  *   Это важно, чтобы избежать ошибок, связанных с одновременным чтением и записью в один и тот же поток данных.
  *
@@ -0,0 +1,144 @@
+package server;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class HashedWheelTimer implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+
+    private final long tickNanos;
+    private final Timeout[] wheel; // Голова списка задач каждой ячейки. Трогает только поток таймера.
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>(); // Новые задачи из других потоков.
+    private final long startTime = System.nanoTime(); // Сроки задач отсчитываются от этого момента.
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Thread thread;
+    private volatile boolean closed;
+    private long tick; // Номер текущего шага колеса.
+
+    // Отложенная задача. Отменённая задача остаётся в ячейке, пока до неё не дойдёт колесо, и не выполняется.
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; // Срок в наносекундах от startTime.
+        private long remainingRounds; // Сколько ещё полных оборотов колеса ждать.
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    // tickMillis - шаг колеса, точность срабатывания; ticksPerWheel - число ячеек, округляется до степени двойки.
+    public HashedWheelTimer(String name, long tickMillis, int ticksPerWheel) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.wheel = new Timeout[Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1];
+        this.mask = wheel.length - 1;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+    }
+
+    // Выполнить task в потоке таймера не раньше, чем через delayMillis. Задача должна быть короткой:
+    // пока она выполняется, колесо стоит.
+    public Timeout newTimeout(Runnable task, long delayMillis) {
+        if (started.compareAndSet(false, true))
+            thread.start(); // Поток нужен только тому таймеру, которым пользуются.
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (!closed) {
+            long tickDeadline = tickNanos * (tick + 1);
+            long wait;
+            while (!closed && (wait = startTime + tickDeadline - System.nanoTime()) > 0)
+                LockSupport.parkNanos(wait);
+            transferAdded();
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    // Раскладка новых задач по ячейкам. Задача попадает в ячейку шага, к концу которого наступит её срок.
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled)
+                continue;
+            long expiresAt = Math.max((timeout.deadline + tickNanos - 1) / tickNanos - 1, tick);
+            timeout.remainingRounds = (expiresAt - tick) / wheel.length;
+            int index = (int) (expiresAt & mask);
+            timeout.next = wheel[index];
+            wheel[index] = timeout;
+        }
+    }
+
+    private void expire(int index) {
+        Timeout previous = null;
+        Timeout timeout = wheel[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled || timeout.remainingRounds <= 0) {
+                if (previous == null) // Убираем задачу из ячейки.
+                    wheel[index] = next;
+                else
+                    previous.next = next;
+                timeout.next = null;
+                if (!timeout.cancelled)
+                    runTask(timeout);
+            } else {
+                timeout.remainingRounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    private void runTask(Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Ошибка в задаче таймера " + thread.getName(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.HashedWheelTimer" - таймер для большого числа отложенных задач ("колесо таймеров").
+ *
+ *   Колесо - массив ячеек, каждая ячейка - список задач. Один поток раз в tickMillis переходит к следующей
+ *   ячейке и выполняет задачи, срок которых наступил. Задача, до срока которой больше одного оборота колеса,
+ *   лежит в своей ячейке с числом оставшихся оборотов. Поэтому добавление и отмена задачи стоят O(1)
+ *   независимо от числа задач, в отличие от очереди с приоритетом в ScheduledThreadPoolExecutor.
+ *
+ *   Новые задачи передаются потоку таймера через неблокирующую очередь, а ячейки колеса трогает
+ *   только он сам. Отмена только помечает задачу: её уберёт из ячейки поток таймера.
+ *
+ *   Точность срабатывания - один шаг колеса: задача выполняется в конце шага, в который наступил её срок.
+ *   Таймер используется для сроков бездействия соединений (server.IdleMonitor), где такой точности хватает.
+ *
+ */
@@ -0,0 +1,117 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+public class IdleMonitor implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+    private static final long TICK_MILLIS = 100; // Точность сроков бездействия.
+    private static final int WHEEL_SIZE = 512; // Один оборот колеса - 51,2 секунды.
+
+    private final long readIdleNanos; // Молчание клиента дольше этого срока - соединение закрывается, 0 - никогда.
+    private final long writeIdleNanos; // Сервер молчит дольше этого срока - клиенту уходит PING, 0 - никогда.
+    private final HashedWheelTimer timer = new HashedWheelTimer("idle-timer", TICK_MILLIS, WHEEL_SIZE);
+
+    public IdleMonitor(long readIdleMillis, long writeIdleMillis) {
+        this.readIdleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, readIdleMillis));
+        this.writeIdleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, writeIdleMillis));
+    }
+
+    // Начать следить за соединением. Первая проверка - через срок бездействия.
+    public void watch(Session connection) {
+        long delay = nearest(readIdleNanos, writeIdleNanos);
+        if (delay == 0)
+            return; // Оба срока отключены.
+        HashedWheelTimer.Timeout check = timer.newTimeout(() -> check(connection), TimeUnit.NANOSECONDS.toMillis(delay));
+        HashedWheelTimer.Timeout previous = connection.idleCheck.getAndSet(check);
+        if (previous != null)
+            previous.cancel();
+    }
+
+    // Перестать следить за соединением: оно закрыто или клиент не умеет отвечать на PING.
+    public void unwatch(Session connection) {
+        HashedWheelTimer.Timeout check = connection.idleCheck.getAndSet(null);
+        if (check != null)
+            check.cancel();
+    }
+
+    // Выполняется в потоке таймера. Соединение проверяется по отметкам последнего чтения и записи,
+    // а следующая проверка назначается на ближайший из двух сроков.
+    private void check(Session connection) {
+        HashedWheelTimer.Timeout current = connection.idleCheck.get();
+        if (current == null)
+            return; // Соединение уже не проверяется.
+        long now = System.nanoTime();
+        long readDeadline = connection.getLastReadNanos() + readIdleNanos;
+        if (readIdleNanos > 0 && now - readDeadline >= 0) {
+            connection.idleCheck.compareAndSet(current, null);
+            Metrics.IDLE_DISCONNECTS.increment();
+            ConsoleHelper.writeMessage("Клиент " + connection.getRemoteSocketAddress() + " не отвечает, соединение закрыто");
+            LOGGER.warning("Клиент " + connection.getRemoteSocketAddress() + " не отвечает "
+                    + TimeUnit.NANOSECONDS.toMillis(now - connection.getLastReadNanos()) + " мс, соединение закрыто");
+            try {
+                connection.close(); // Обработчик соединения удалит участника обычным путём, через userLeft().
+            } catch (IOException e) {
+                LOGGER.warning("Не удалось закрыть соединение с " + connection.getRemoteSocketAddress());
+            }
+            return;
+        }
+        long writeDeadline = connection.getLastWriteNanos() + writeIdleNanos;
+        if (writeIdleNanos > 0 && now - writeDeadline >= 0) {
+            if (connection.hasFeature(ProtocolCodec.FEATURE_HEARTBEAT))
+                ping(connection);
+            writeDeadline = now + writeIdleNanos; // Следующий PING - не раньше, даже если этот ещё в очереди.
+        }
+        long delay = nearest(readIdleNanos > 0 ? readDeadline - now : 0, writeIdleNanos > 0 ? writeDeadline - now : 0);
+        HashedWheelTimer.Timeout next = timer.newTimeout(() -> check(connection),
+                Math.max(TICK_MILLIS, TimeUnit.NANOSECONDS.toMillis(delay)));
+        if (!connection.idleCheck.compareAndSet(current, next))
+            next.cancel(); // Пока шла проверка, соединение сняли с проверки.
+    }
+
+    private static void ping(Session connection) {
+        try {
+            connection.send(new Message(MessageType.PING));
+            Metrics.PINGS_SENT.increment();
+        } catch (IOException e) {
+            LOGGER.warning("Не получилось отправить PING " + connection.getRemoteSocketAddress());
+        }
+    }
+
+    // Меньший из положительных сроков, 0 - если оба отключены.
+    private static long nearest(long first, long second) {
+        if (first <= 0)
+            return Math.max(second, 0);
+        return second <= 0 ? first : Math.min(first, second);
+    }
+
+    @Override
+    public void close() {
+        timer.close();
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.IdleMonitor" - поиск соединений, клиенты которых пропали.
+ *
+ *   Клиент, пропавший без закрытия соединения (выключен компьютер, оборвалась сеть), не присылает FIN,
+ *   и поток его обработчика вечно ждёт в receive(), а участник остаётся в чате и получает рассылки.
+ *   Монитор закрывает соединение, от которого readIdleTimeoutMs миллисекунд не пришло ни байта.
+ *   Дальше всё идёт как при обычном отключении: обработчик выходит из receive(), участник удаляется
+ *   через userLeft(), и остальные получают USER_REMOVED.
+ *
+ *   Чтобы молчащий, но живой клиент не был отключён, сервер отправляет ему PING, если сам ничего
+ *   не отправлял writeIdleTimeoutMs миллисекунд, а клиент отвечает PONG. PING получают только клиенты,
+ *   договорившиеся при регистрации о возможности "heartbeat". Старых клиентов, которые не умеют
+ *   отвечать на PING, сервер после регистрации не проверяет (для них включён SO_KEEPALIVE).
+ *
+ *   Все соединения проверяет один поток с колесом таймеров (server.HashedWheelTimer). Чтение и запись
+ *   только обновляют отметку времени в соединении, а колесо не трогают. Проверка, которая застала
+ *   соединение активным, переносится на срок, отсчитанный от последней отметки, поэтому на каждое
+ *   соединение в колесе лежит не больше одной задачи, и обслуживание стоит O(1) на соединение за срок.
+ *
+ */
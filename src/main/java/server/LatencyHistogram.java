@@ -0,0 +1,95 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7; // 128 значений на интервал: погрешность не больше 1/64.
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * HALF_COUNT + HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    private final LongAdder sum = new LongAdder();
+
+    // Запись одного значения (например, задержки в наносекундах). Отрицательные значения считаются нулём.
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        max.accumulate(value);
+        sum.add(value);
+    }
+
+    // Номер ячейки: значения меньше 128 хранятся точно, бо́льшие - по 7 старшим битам.
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * HALF_COUNT + (int) (value >>> shift);
+    }
+
+    // Наибольшее значение, попадающее в ячейку index.
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+        int shift = index / HALF_COUNT - 1;
+        long subBucket = index - (long) shift * HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // Сумма всех записанных значений.
+    public long getSum() {
+        return sum.sum();
+    }
+
+    // Значение, не превышенное percentile процентами записей (50 - медиана, 99.9 - три девятки).
+    public long getValueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueAt(i), getMax());
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            counts.set(i, 0);
+        max.reset();
+        sum.reset();
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.LatencyHistogram" - гистограмма задержек в духе HdrHistogram.
+ *
+ *   Ячейки расположены логарифмически: каждый интервал [2^k, 2^(k+1)) разбит на 64 равные части,
+ *   поэтому процентили считаются с точностью около 1.5% и для микросекунд, и для секунд,
+ *   а вся гистограмма занимает несколько тысяч счётчиков независимо от числа записей.
+ *
+ *   Запись - одно атомарное увеличение счётчика, без блокировок, так что значения можно записывать
+ *   сразу из потоков всех клиентов генератора нагрузки (client.LoadGenerator) или из всех соединений
+ *   сервера (server.Metrics).
+ *
+ */
@@ -0,0 +1,142 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+class LegacyStreamReader extends InputStream {
+    private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+    // Сколько принятых, но ещё не разобранных байт допускается: как наибольший буфер чтения соединения.
+    static final int MAX_PENDING_BYTES = MessageCodec.MAX_FRAME_LENGTH * 2;
+
+    // Получатель разобранных сообщений. Методы вызываются из потока чтения.
+    interface Listener {
+        void onMessage(Message message, int length);
+
+        // Поток закончился или в нём ошибка - соединение нужно закрыть.
+        void onClosed();
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private byte[] bytes = new byte[Session.INITIAL_BUFFER_SIZE];
+    private int readPosition;
+    private int writePosition;
+    private boolean closed;
+    private long consumed; // Прочитано из потока объектов, для длины сообщения. Только поток чтения.
+    private final byte[] single = new byte[1]; // Для побайтового read(), которым ObjectInputStream читает теги.
+
+    // Поток чтения запускается сразу: он ждёт байты, которые цикл событий передаёт в feed().
+    static LegacyStreamReader start(SocketAddress remoteAddress, Listener listener) {
+        LegacyStreamReader reader = new LegacyStreamReader();
+        Thread.ofVirtual().name("legacy-reader").start(() -> reader.run(remoteAddress, listener));
+        return reader;
+    }
+
+    private void run(SocketAddress remoteAddress, Listener listener) {
+        try {
+            ObjectInputStream in = ObjectStreamCodec.legacyInput(this);
+            while (true) {
+                long start = consumed;
+                Message message = (Message) in.readObject();
+                listener.onMessage(message, (int) (consumed - start));
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            if (!isClosed())
+                LOGGER.severe("Ошибка при обмене данных с " + remoteAddress);
+        }
+        listener.onClosed();
+    }
+
+    // Принятые байты из буфера соединения (в режиме чтения). Возвращает false, если разбор
+    // отстал больше чем на MAX_PENDING_BYTES - такого собеседника нужно отключить.
+    boolean feed(ByteBuffer buffer) {
+        lock.lock();
+        try {
+            if (writePosition - readPosition + buffer.remaining() > MAX_PENDING_BYTES)
+                return false;
+            if (writePosition + buffer.remaining() > bytes.length) { // Сдвигаем непрочитанное в начало или растём.
+                int pending = writePosition - readPosition;
+                byte[] target = pending + buffer.remaining() > bytes.length
+                        ? new byte[Math.max(bytes.length * 2, pending + buffer.remaining())] : bytes;
+                System.arraycopy(bytes, readPosition, target, 0, pending);
+                bytes = target;
+                readPosition = 0;
+                writePosition = pending;
+            }
+            int count = buffer.remaining();
+            buffer.get(bytes, writePosition, count);
+            writePosition += count;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        lock.lock();
+        try {
+            while (readPosition == writePosition && !closed)
+                notEmpty.awaitUninterruptibly();
+            if (readPosition == writePosition)
+                return -1;
+            int n = Math.min(len, writePosition - readPosition);
+            System.arraycopy(bytes, readPosition, b, off, n);
+            readPosition += n;
+            consumed += n;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Соединение закрыто: поток чтения дочитает принятое и завершится.
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.LegacyStreamReader" - чтение клиентов первой версии чата в неблокирующем транспорте.
+ *
+ *   Такие клиенты пишут поток объектов Java-сериализации без длины перед сообщениями (версия 0),
+ *   и где кончается сообщение, знает только ObjectInputStream, который при нехватке байт блокируется.
+ *   Поэтому цикл событий (server.NioConnection) не разбирает этот поток сам, а передаёт принятые байты
+ *   в feed(), а разбирает их отдельный виртуальный поток. Разобранные сообщения он отдаёт обратно
+ *   в цикл событий, и дальше они обрабатываются так же, как сообщения в кадрах.
+ *
+ *   Ожидание байт - на ReentrantLock, поэтому ждущий виртуальный поток не занимает поток-носитель.
+ *
+ */
@@ -0,0 +1,43 @@
+package server;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+
+public class LineFormatter extends Formatter {
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    // Одна строка на запись: время, уровень, поток и текст.
+    // Класс и метод источника не выводятся: их определение требует обхода стека,
+    // а в асинхронном журнале запись форматируется уже в другом потоке.
+    @Override
+    public String format(LogRecord record) {
+        StringBuilder line = new StringBuilder(128)
+                .append(TIME.format(Instant.ofEpochMilli(record.getMillis())))
+                .append(' ').append(record.getLevel().getName())
+                .append(" [").append(record.getLongThreadID()).append("] ")
+                .append(formatMessage(record)).append(System.lineSeparator());
+        if (record.getThrown() != null) {
+            StringWriter trace = new StringWriter();
+            record.getThrown().printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+        return line.toString();
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.LineFormatter" - компактный формат журнала: одна строка на запись.
+ *
+ *   Раньше журнал писался стандартным XMLFormatter, и каждая запись занимала в server.log
+ *   около десяти строк XML. Теперь запись выглядит так:
+ *   2023-03-12 12:52:38.497 INFO [16] Запрошено имя у /127.0.0.1:49950
+ *
+ */
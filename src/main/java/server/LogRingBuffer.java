@@ -0,0 +1,65 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.logging.LogRecord;
+
+class LogRingBuffer {
+    private final AtomicReferenceArray<LogRecord> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // Следующая позиция для записи (захватывают производители).
+    private volatile long head; // Следующая позиция для чтения (двигает только поток-писатель).
+
+    LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1; // Степень двойки не меньше capacity.
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    // Добавление записи без блокировок. Возвращает false, если буфер заполнен.
+    boolean offer(LogRecord record) {
+        long position;
+        do {
+            position = tail.get();
+            if (position - head >= slots.length())
+                return false;
+        } while (!tail.compareAndSet(position, position + 1));
+        slots.lazySet((int) (position & mask), record); // Запись становится видна писателю.
+        return true;
+    }
+
+    // Передача писателю до max записей подряд. Возвращает их число.
+    int drain(Consumer<LogRecord> consumer, int max) {
+        long position = head;
+        int count = 0;
+        while (count < max) {
+            int index = (int) (position & mask);
+            LogRecord record = slots.get(index);
+            if (record == null)
+                break; // Позиция занята, но запись ещё не опубликована - заберём в следующий раз.
+            slots.lazySet(index, null);
+            position++;
+            count++;
+            consumer.accept(record);
+        }
+        head = position;
+        return count;
+    }
+
+    boolean isEmpty() {
+        return head == tail.get();
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.LogRingBuffer" - кольцевой буфер записей журнала для server.AsyncLogHandler.
+ *
+ *   Записывать в буфер могут сколько угодно потоков одновременно, читает только поток-писатель журнала.
+ *   Производитель захватывает позицию через compareAndSet счётчика tail и публикует запись в ячейку,
+ *   писатель забирает записи по порядку, пока не встретит ещё не опубликованную ячейку.
+ *   Ни одна сторона не берёт блокировок, поэтому журналирование не задерживает потоки обработки сообщений.
+ *
+ */
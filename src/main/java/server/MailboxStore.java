@@ -0,0 +1,443 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+public final class MailboxStore implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+
+    private static final String SUFFIX = ".mbx";
+    // Запись ящика: [время long][кадр версии 2]. Кадр сам знает свою длину.
+    private static final int TIME_SIZE = Long.BYTES;
+    static final int BATCH_BYTES = 256 * 1024; // До скольких байт собирается пачка в одном кадре MAILBOX.
+    // Запас под заголовок кадра и сериализацию самого MAILBOX: пачка с ним не длиннее MAX_FRAME_LENGTH.
+    private static final int FRAME_OVERHEAD = 4 * 1024;
+    private static final long MAX_SWEEP_INTERVAL_MS = TimeUnit.HOURS.toMillis(1); // Как часто просматриваются все ящики.
+
+    private final Path directory;
+    private final long maxBytes; // Размер ящика одного участника, 0 - без ограничения.
+    private final long maxAgeMillis; // Срок хранения, 0 - без ограничения.
+    private final int maxMessages; // Сколько сообщений общего чата догоняется при входе.
+    private final Set<String> known = ConcurrentHashMap.newKeySet(); // Нормализованные имена, у которых есть ящик.
+    // Все операции с файлами - в одном потоке, по порядку: рассылки и обработчики соединений диск не трогают.
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "mailbox-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MailboxStore(Path directory, long maxBytes, long maxAgeMillis, int maxMessages) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxMessages = maxMessages;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(SUFFIX))
+                    .forEach(name -> known.add(nameOf(name)));
+        }
+        if (maxAgeMillis > 0) { // Просроченное удаляется и из ящиков, в которые давно никто не пишет.
+            long interval = Math.max(1, Math.min(maxAgeMillis / 2, MAX_SWEEP_INTERVAL_MS));
+            writer.scheduleWithFixedDelay(this::sweep, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Ящики по настройкам из settings.json.
+    public static MailboxStore open(Path directory) throws IOException {
+        return new MailboxStore(directory, ServerSettings.getMailboxMaxBytes(),
+                TimeUnit.HOURS.toMillis(ServerSettings.getMailboxMaxAgeHours()),
+                ServerSettings.getMailboxMaxMessages());
+    }
+
+    // Участник, который уже бывал в чате: ему можно оставить сообщение.
+    public boolean isKnown(String userName) {
+        return known.contains(UserRegistry.normalize(userName));
+    }
+
+    // Участник ушёл, последнее сообщение общего чата, которое он мог получить, - lastSequence.
+    // Отметка хранится как HISTORY_END с этим номером.
+    public void departed(String userName, long lastSequence) {
+        known.add(UserRegistry.normalize(userName));
+        submit(() -> append(userName, new Message(MessageType.HISTORY_END, null, null, lastSequence)));
+    }
+
+    // Личное сообщение участнику, которого нет в чате. lastSequence - номер последнего сообщения
+    // общего чата на этот момент: при доставке личное сообщение встанет после него.
+    public void store(String userName, Message message, long lastSequence) {
+        submit(() -> append(userName, new Message(message.getType(), message.getTarget(), message.getData(), lastSequence)));
+    }
+
+    // Доставка накопленного вернувшемуся участнику. Из истории broadcasts (null - не догонять общий чат)
+    // берутся сообщения после отметки ухода. Клиент с возможностью "mailbox" получает всё пачками
+    // в кадрах MAILBOX, остальным отправляются только личные сообщения, по одному. Ящик очищается,
+    // только когда всё отправлено: если соединение оборвалось, ящик дождётся следующего входа.
+    public void deliver(String userName, Session connection, MessageStore broadcasts) {
+        submit(() -> {
+            Path file = fileOf(userName);
+            if (!Files.exists(file))
+                return;
+            List<Message> backlog;
+            try {
+                backlog = backlog(userName, read(file), broadcasts);
+            } catch (IOException e) {
+                LOGGER.warning("Не удалось прочитать ящик участника " + userName + ": " + e.getMessage());
+                return;
+            }
+            try {
+                if (connection.hasFeature(ProtocolCodec.FEATURE_MAILBOX))
+                    sendBatches(connection, backlog);
+                else {
+                    for (Message message : backlog) {
+                        if (message.getType() == MessageType.PRIVATE_TEXT)
+                            connection.send(new Message(MessageType.PRIVATE_TEXT, message.getTarget(), message.getData()));
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warning("Не получилось доставить ящик участнику " + userName + ": " + e.getMessage());
+                return;
+            }
+            try {
+                Files.write(file, new byte[0]); // Участник остаётся известным.
+            } catch (IOException e) {
+                LOGGER.warning("Не удалось очистить ящик участника " + userName + ": " + e.getMessage());
+            }
+            if (!backlog.isEmpty()) {
+                Metrics.MAILBOX_DELIVERED.add(backlog.size());
+                LOGGER.info("Участнику " + userName + " доставлено из ящика сообщений: " + backlog.size());
+            }
+        });
+    }
+
+    private void submit(Runnable task) {
+        try {
+            writer.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warning("Ящики закрыты, операция пропущена");
+        }
+    }
+
+    private Path fileOf(String userName) {
+        return directory.resolve(HexFormat.of().formatHex(
+                UserRegistry.normalize(userName).getBytes(StandardCharsets.UTF_8)) + SUFFIX);
+    }
+
+    // Нормализованное имя участника по имени файла его ящика.
+    private static String nameOf(String fileName) {
+        return new String(HexFormat.of().parseHex(fileName.substring(0, fileName.length() - SUFFIX.length())),
+                StandardCharsets.UTF_8);
+    }
+
+    // Записи старше этого времени просрочены.
+    private long oldestAllowed() {
+        return maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : Long.MIN_VALUE;
+    }
+
+    private void append(String userName, Message message) {
+        Path file = fileOf(userName);
+        known.add(UserRegistry.normalize(userName)); // Мог быть забыт sweep() между departed() и этой записью.
+        ByteBuffer frame = new SharedFrame(message).buffer();
+        byte[] record = new byte[TIME_SIZE + frame.remaining()];
+        ByteBuffer.wrap(record).putLong(System.currentTimeMillis()).put(frame);
+        try {
+            try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(record);
+            }
+            if (message.getType() == MessageType.PRIVATE_TEXT)
+                Metrics.MAILBOX_STORED.increment();
+            if ((maxBytes > 0 && Files.size(file) > maxBytes) || firstRecordTime(file) < oldestAllowed())
+                compact(file);
+        } catch (IOException e) {
+            LOGGER.warning("Не удалось записать в ящик участника " + userName + ": " + e.getMessage());
+        }
+    }
+
+    // Из ящика удаляются просроченные записи, а если он больше maxBytes, то и старые: остаются свежие
+    // записи на три четверти лимита. Последняя отметка ухода остаётся, пока не просрочена. Записи лежат
+    // по времени, поэтому остаток - это хвост списка с индекса first. Ящик, в котором ничего
+    // не осталось, удаляется, а участник забывается.
+    private void compact(Path file) throws IOException {
+        List<Record> records = read(file);
+        long oldest = oldestAllowed();
+        int first = 0;
+        while (first < records.size() && records.get(first).time < oldest)
+            first++;
+        long size = 0;
+        for (int i = first; i < records.size(); i++)
+            size += records.get(i).bytes.length;
+        boolean overflow = maxBytes > 0 && size > maxBytes;
+        if (overflow) {
+            long limit = maxBytes * 3 / 4;
+            size = 0;
+            int start = records.size();
+            while (start > first && size + records.get(start - 1).bytes.length <= limit)
+                size += records.get(--start).bytes.length;
+            first = start;
+        }
+        int marker = lastMarker(records);
+        boolean keepMarker = marker >= 0 && marker < first && records.get(marker).time >= oldest;
+        int dropped = 0;
+        for (int i = 0; i < first; i++) {
+            if (!records.get(i).isMarker())
+                dropped++;
+        }
+        Metrics.MAILBOX_DROPPED.add(dropped);
+        if (overflow)
+            LOGGER.warning("Ящик " + file.getFileName() + " переполнен, удалено старых сообщений: " + dropped);
+        if (first == records.size() && !keepMarker) {
+            Files.delete(file);
+            known.remove(nameOf(file.getFileName().toString()));
+            return;
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            if (keepMarker)
+                out.write(records.get(marker).bytes);
+            for (int i = first; i < records.size(); i++)
+                out.write(records.get(i).bytes);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Время самой старой записи ящика, у пустого ящика - время последнего изменения файла.
+    private static long firstRecordTime(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] time = in.readNBytes(TIME_SIZE);
+            if (time.length == TIME_SIZE)
+                return ByteBuffer.wrap(time).getLong();
+        }
+        return Files.getLastModifiedTime(file).toMillis();
+    }
+
+    // Периодический просмотр всех ящиков в потоке mailbox-writer: иначе ящик участника, который
+    // не вернулся, и его имя в known остались бы навсегда.
+    private void sweep() {
+        long oldest = oldestAllowed();
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).toList();
+        } catch (IOException e) {
+            LOGGER.warning("Не удалось просмотреть ящики: " + e.getMessage());
+            return;
+        }
+        for (Path file : files) {
+            try {
+                if (firstRecordTime(file) < oldest)
+                    compact(file);
+            } catch (IOException | RuntimeException e) { // Исключение остановило бы следующие просмотры.
+                LOGGER.warning("Не удалось очистить ящик " + file.getFileName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Содержимое ящика (records) без просроченных записей. Сообщения общего чата после отметки ухода
+    // перемежаются с личными в порядке их появления.
+    private List<Message> backlog(String userName, List<Record> records, MessageStore broadcasts) {
+        long oldest = oldestAllowed();
+        List<Message> privates = new ArrayList<>();
+        for (Record record : records) {
+            if (!record.isMarker() && record.time >= oldest)
+                privates.add(record.message);
+        }
+        List<Message> missed = List.of();
+        int markerIndex = lastMarker(records);
+        Record marker = markerIndex >= 0 ? records.get(markerIndex) : null;
+        if (broadcasts != null && marker != null && marker.time >= oldest) {
+            try {
+                long last = broadcasts.getLastSequence();
+                missed = broadcasts.readAfter(Math.max(marker.message.getSequence(), last - maxMessages), maxMessages);
+            } catch (IOException e) {
+                LOGGER.warning("Не удалось прочитать историю для ящика участника " + userName + ": " + e.getMessage());
+            }
+        }
+        List<Message> backlog = new ArrayList<>(privates.size() + missed.size());
+        int next = 0;
+        for (Message message : missed) {
+            if (message.getType() == MessageType.USER_ADDED || message.getType() == MessageType.USER_REMOVED)
+                continue; // Список участников вернувшийся получает заново.
+            while (next < privates.size() && privates.get(next).getSequence() < message.getSequence())
+                backlog.add(withoutSequence(privates.get(next++)));
+            backlog.add(message);
+        }
+        while (next < privates.size())
+            backlog.add(withoutSequence(privates.get(next++)));
+        return backlog;
+    }
+
+    // Номер у личного сообщения служил только для порядка, клиенту он не нужен.
+    private static Message withoutSequence(Message message) {
+        return new Message(message.getType(), message.getTarget(), message.getData());
+    }
+
+    // Индекс последней отметки ухода, -1 - отметки нет.
+    private static int lastMarker(List<Record> records) {
+        for (int i = records.size() - 1; i >= 0; i--) {
+            if (records.get(i).isMarker())
+                return i;
+        }
+        return -1;
+    }
+
+    private static List<Record> read(Path file) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        List<Record> records = new ArrayList<>();
+        while (in.remaining() > TIME_SIZE) {
+            int start = in.position();
+            long time = in.getLong();
+            Message message = codec.decode(in);
+            if (message == null)
+                break; // Запись оборвана на середине: сервер остановился во время записи.
+            byte[] bytes = new byte[in.position() - start];
+            in.get(start, bytes);
+            records.add(new Record(time, message, bytes));
+        }
+        return records;
+    }
+
+    // Пачки ограничены закодированной длиной: заголовки, адресаты и данные в байтах, а не в символах.
+    private static void sendBatches(Session connection, List<Message> backlog) throws IOException {
+        List<Message> batch = new ArrayList<>();
+        int bytes = 0;
+        for (Message message : backlog) {
+            int length = packedLength(message);
+            if (length > MessageCodec.MAX_FRAME_LENGTH - FRAME_OVERHEAD) {
+                LOGGER.warning("Сообщение из ящика длиной " + length + " байт не помещается в кадр и пропущено");
+                continue;
+            }
+            if (!batch.isEmpty() && bytes + length > BATCH_BYTES) {
+                connection.send(new Message(MessageType.MAILBOX, pack(batch)));
+                batch.clear();
+                bytes = 0;
+            }
+            batch.add(message);
+            bytes += length;
+        }
+        if (!batch.isEmpty())
+            connection.send(new Message(MessageType.MAILBOX, pack(batch)));
+    }
+
+    // Пачка сообщений в данных одного MAILBOX. На каждое сообщение - строка заголовка
+    // "код номер длина_адресата длина_данных" (длина -1 - поле пустое), затем адресат и данные подряд.
+    public static String pack(List<Message> messages) {
+        StringBuilder packed = new StringBuilder();
+        for (Message message : messages) {
+            packed.append(header(message));
+            if (message.getTarget() != null)
+                packed.append(message.getTarget());
+            if (message.getData() != null)
+                packed.append(message.getData());
+        }
+        return packed.toString();
+    }
+
+    private static String header(Message message) {
+        String target = message.getTarget();
+        String data = message.getData();
+        return message.getType().getCode() + " " + message.getSequence() + " "
+                + (target != null ? target.length() : -1) + " " + (data != null ? data.length() : -1) + "\n";
+    }
+
+    // Сколько байт сообщение займёт в пачке - не меньше, чем в UTF-8 двоичного протокола
+    // и в модифицированном UTF-8 Java-сериализации (там символ вне BMP - 6 байт, по 3 на половину пары).
+    static int packedLength(Message message) {
+        return header(message).length() + encodedLength(message.getTarget()) + encodedLength(message.getData());
+    }
+
+    private static int encodedLength(String text) {
+        if (text == null)
+            return 0;
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            length += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return length;
+    }
+
+    public static List<Message> unpack(String packed) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        int position = 0;
+        try {
+            while (packed != null && position < packed.length()) {
+                int end = packed.indexOf('\n', position);
+                String[] header = packed.substring(position, end).split(" ");
+                position = end + 1;
+                MessageType type = MessageType.fromCode(Integer.parseInt(header[0]));
+                if (type == null)
+                    throw new IOException("Неизвестный тип сообщения в пачке: " + header[0]);
+                long sequence = Long.parseLong(header[1]);
+                int targetLength = Integer.parseInt(header[2]);
+                int dataLength = Integer.parseInt(header[3]);
+                String target = targetLength >= 0 ? packed.substring(position, position += targetLength) : null;
+                String data = dataLength >= 0 ? packed.substring(position, position += dataLength) : null;
+                messages.add(new Message(type, target, data, sequence));
+            }
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new IOException("Повреждена пачка сообщений", e);
+        }
+        return messages;
+    }
+
+    // Дожидается записи всего, что уже поставлено в очередь.
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS))
+                LOGGER.warning("Ящики не успели записаться на диск");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private record Record(long time, Message message, byte[] bytes) {
+        boolean isMarker() {
+            return message.getType() == MessageType.HISTORY_END;
+        }
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.MailboxStore" - ящики для сообщений участникам, которых нет в чате.
+ *
+ *   Раньше участник, ушедший из чата, терял всё, что было отправлено без него, а личное сообщение
+ *   ему отклонялось. Теперь у каждого участника, который хоть раз был в чате, есть ящик - файл
+ *   в каталоге mailboxDir с записями [время][кадр версии 2], тем же компактным форматом, что у истории.
+ *
+ *   В ящик попадают личные сообщения и отметка ухода (HISTORY_END с номером последнего сообщения
+ *   общего чата). Сами сообщения общего чата в ящики не копируются: они уже есть в истории
+ *   (server.MessageStore), и рассылка ни одного ящика не трогает. При входе участник получает
+ *   сообщения истории после отметки (не больше mailboxMaxMessages последних) вместе с личными
+ *   в порядке их появления, пачками до BATCH_BYTES закодированных байт в кадрах MAILBOX. Большой кадр
+ *   к тому же сжимается, если клиент договорился о возможности "deflate". Ящик очищается только
+ *   после того, как все пачки поставлены в очередь соединения.
+ *
+ *   Ящик ограничен размером mailboxMaxBytes (старые личные сообщения вытесняются) и сроком
+ *   mailboxMaxAgeHours. Просроченные записи удаляются при записи в ящик и при периодическом просмотре
+ *   всех ящиков; ящик, в котором ничего не осталось, удаляется, и участник забывается.
+ *   Все операции с файлами выполняет один поток mailbox-writer по порядку поступления, поэтому
+ *   сообщение, оставленное до входа участника, попадёт в его доставку.
+ *
+ */
@@ -3,18 +3,36 @@ package server;
 import java.io.Serializable;
 
 public class Message implements Serializable {
+    // Закреплён явно, чтобы клиенты с Java-сериализацией (протокол версии 1) не ломались при изменении класса.
+    private static final long serialVersionUID = 647241842932577415L;
     private final MessageType type;
     private final String data;
-
+    private final String target; // Адресат сообщения: комната или участник. null - сообщение для всего чата.
+    private final long sequence; // Номер сообщения в истории чата, 0 - номер не присвоен.
 
     public Message(MessageType type) {
         this.type = type;
         this.data = null;
+        this.target = null;
+        this.sequence = 0;
     }
 
     public Message(MessageType type, String data) {
         this.type = type;
         this.data = data;
+        this.target = null;
+        this.sequence = 0;
+    }
+
+    public Message(MessageType type, String target, String data) {
+        this(type, target, data, 0);
+    }
+
+    public Message(MessageType type, String target, String data, long sequence) {
+        this.type = type;
+        this.data = data;
+        this.target = target;
+        this.sequence = sequence;
     }
 
     public MessageType getType() {
@@ -25,6 +43,14 @@ public class Message implements Serializable {
         return data;
     }
 
+    public String getTarget() {
+        return target;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
     @Override
     public String toString() {
 
@@ -49,6 +75,76 @@ public class Message implements Serializable {
             case USER_NAME -> {
                 message = "Имя пользователя ";
             }
+            case ROOM_JOIN -> {
+                message = "Вход в комнату " + target;
+            }
+            case ROOM_LEAVE -> {
+                message = "Выход из комнаты " + target;
+            }
+            case ROOM_LIST -> {
+                message = "Список комнаты " + target + ": " + data;
+            }
+            case ROOM_TEXT -> {
+                message = "Сообщение в комнату " + target + ": " + data;
+            }
+            case ROOM_MEMBER_JOINED -> {
+                message = "В комнату " + target + " вошёл пользователь: " + data;
+            }
+            case ROOM_MEMBER_LEFT -> {
+                message = "Из комнаты " + target + " вышел пользователь: " + data;
+            }
+            case PRIVATE_TEXT -> {
+                message = "Личное сообщение (" + target + "): " + data;
+            }
+            case PRIVATE_DELIVERED -> {
+                message = "Личное сообщение доставлено: " + target;
+            }
+            case PRIVATE_UNKNOWN_RECIPIENT -> {
+                message = "Получатель не найден: " + target;
+            }
+            case HISTORY_REQUEST -> {
+                message = "Запрос истории после " + target + ": " + data;
+            }
+            case RESUME -> {
+                message = "Возобновление сессии " + target + " после " + sequence;
+            }
+            case HISTORY_END -> {
+                message = "Конец истории, последний номер " + sequence
+                        + (target != null ? ", повтор начат после " + target : "");
+            }
+            case USER_LIST -> {
+                message = "Список участников, символов: " + (data != null ? data.length() : 0);
+            }
+            case USER_PRESENCE -> {
+                message = "Изменения списка участников: " + data;
+            }
+            case PING -> {
+                message = "Проверка связи";
+            }
+            case PONG -> {
+                message = "Ответ на проверку связи";
+            }
+            case PEER_HELLO -> {
+                message = "Узел кластера " + target;
+            }
+            case PEER_TEXT -> {
+                message = "Сообщение с узла кластера (" + target + "): " + data;
+            }
+            case PEER_PRESENCE -> {
+                message = "Участники узла кластера (" + target + "): " + data;
+            }
+            case SERVER_SHUTDOWN -> {
+                message = "Сервер останавливается, переподключение через " + data + " мс";
+            }
+            case SEARCH -> {
+                message = "Поиск \"" + target + "\": " + data;
+            }
+            case MAILBOX -> {
+                message = "Пачка сообщений из ящика, символов: " + (data != null ? data.length() : 0);
+            }
+            case ACK -> {
+                message = "Получено всё до номера " + sequence;
+            }
         }
         return message;
     }
@@ -0,0 +1,46 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface MessageCodec {
+    int MAX_FRAME_LENGTH = 1 << 20; // Максимальная длина одного кадра (1 МБ).
+
+    int VERSION_LEGACY = 0; // Поток ObjectOutputStream без кадров, как в первой версии чата (старые клиенты).
+    int VERSION_OBJECT_STREAM = 1; // Сообщения сериализуются ObjectOutputStream в кадрах с длиной.
+    int VERSION_BINARY = 2; // Компактный двоичный формат server.BinaryMessageCodec.
+
+    // Дописывает кадр сообщения в буфер (в режиме записи). Если места не хватает, возвращает новый, увеличенный буфер.
+    ByteBuffer encode(Message message, ByteBuffer out) throws IOException;
+
+    // Извлекает одно сообщение из буфера (в режиме чтения). Возвращает null, если кадр ещё не пришёл целиком.
+    Message decode(ByteBuffer in) throws IOException, ClassNotFoundException;
+
+    // Буфер, в который поместится ещё needed байт.
+    static ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed)
+            return buffer;
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + needed);
+        ByteBuffer expanded = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        expanded.put(buffer);
+        return expanded;
+    }
+}
+
+
+/**
+ *
+ *   Интерфейс "server.MessageCodec" описывает, как сообщение превращается в кадр для передачи по сети и обратно.
+ *
+ *   Кодек работает с переиспользуемыми буферами: encode() дописывает кадр в буфер вызывающего,
+ *   decode() читает из буфера соединения ровно один кадр и не трогает буфер, если кадр неполный.
+ *
+ *   Версии протокола:
+ *   0 - поток объектов Java-сериализации без кадров, как его пишут клиенты первой версии чата
+ *       (server.ObjectStreamCodec без длины; читается не из буфера, а потоком, см. legacyInput());
+ *   1 - server.ObjectStreamCodec, Java-сериализация в кадрах с длиной;
+ *   2 - server.BinaryMessageCodec, [тег типа][длина varint][UTF-8].
+ *   Какую версию использует соединение, решает server.ProtocolCodec во время запроса имени.
+ *
+ */
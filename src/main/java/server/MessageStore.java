@@ -0,0 +1,375 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+public class MessageStore implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+
+    private static final String DATA_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    // Запись сегмента: [длина остатка int32][CRC32C кадра int32][время long][кадр версии 2].
+    private static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES;
+    private static final int MIN_RECORD_SIZE = HEADER_SIZE + 1; // Самый короткий кадр - один тег.
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final long fsyncIntervalMillis;
+    private final ReentrantLock writeLock = new ReentrantLock(); // Писатель один, читатели не блокируются.
+    // Базовый номер сегмента -> сегмент. Номер сообщения ищется через floorEntry().
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Thread flusher;
+    private Segment active; // Сегмент, в который идёт запись. Меняется под writeLock.
+    private volatile long lastSequence; // Номер последнего записанного сообщения, 0 - история пуста.
+    private volatile boolean dirty; // Есть записи, ещё не сброшенные на диск.
+    private volatile boolean closed;
+
+    public MessageStore(Path directory, int segmentSize, long retentionBytes, long retentionMillis,
+                        long fsyncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        Files.createDirectories(directory);
+        recover();
+        if (fsyncIntervalMillis > 0) {
+            this.flusher = new Thread(this::flushLoop, "history-flusher");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    // Хранилище по настройкам из settings.json.
+    public static MessageStore open(Path directory) throws IOException {
+        return new MessageStore(directory, ServerSettings.getHistorySegmentSize(),
+                ServerSettings.getHistoryRetentionBytes(),
+                TimeUnit.HOURS.toMillis(ServerSettings.getHistoryRetentionHours()),
+                ServerSettings.getHistoryFsyncIntervalMs());
+    }
+
+    // Добавление сообщения рассылки в конец истории. Сообщению присваивается следующий номер,
+    // и возвращается кадр уже с этим номером: он же рассылается клиентам.
+    public SharedFrame append(Message message) throws IOException {
+        writeLock.lock();
+        try {
+            if (closed)
+                throw new IOException("Хранилище истории закрыто");
+            long sequence = lastSequence + 1;
+            SharedFrame frame = new SharedFrame(
+                    new Message(message.getType(), message.getTarget(), message.getData(), sequence));
+            ByteBuffer bytes = frame.buffer();
+            int length = bytes.remaining();
+            CRC32C crc = new CRC32C();
+            crc.update(bytes.duplicate());
+            if (HEADER_SIZE + length > segmentSize) // Не поместится и в пустой сегмент - новый не заводим.
+                throw new IOException("Сообщение " + length + " байт больше сегмента истории " + segmentSize);
+            if (!active.fits(length)) {
+                active.force();
+                active = createSegment(sequence);
+                enforceRetention();
+            }
+            active.append(bytes, length, (int) crc.getValue(), System.currentTimeMillis());
+            lastSequence = sequence; // Публикация записи для читателей.
+            if (fsyncIntervalMillis > 0)
+                dirty = true;
+            else
+                active.force();
+            return frame;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    // Номер самого старого сообщения, которое ещё хранится.
+    public long getFirstSequence() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        return first != null ? first.getKey() : lastSequence + 1;
+    }
+
+    // Последние count сообщений.
+    public List<Message> readLast(int count) throws IOException {
+        return readAfter(lastSequence - count, count);
+    }
+
+    // Не больше count сообщений с номерами больше afterSequence, по порядку.
+    public List<Message> readAfter(long afterSequence, int count) throws IOException {
+        long last = lastSequence; // Читаем только уже опубликованные записи.
+        long from = Math.max(afterSequence + 1, getFirstSequence());
+        long to = Math.min(last, from + count - 1);
+        if (count <= 0 || from > to)
+            return Collections.emptyList();
+        List<Message> messages = new ArrayList<>((int) (to - from + 1));
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        Map.Entry<Long, Segment> entry = segments.floorEntry(from);
+        if (entry == null)
+            return messages;
+        Segment segment = entry.getValue();
+        for (long sequence = from; sequence <= to; sequence++) {
+            if (!segment.contains(sequence)) {
+                entry = segments.floorEntry(sequence);
+                if (entry == null || !entry.getValue().contains(sequence))
+                    break; // Сегмент удалён по сроку хранения, пока мы читали.
+                segment = entry.getValue();
+            }
+            Message message = codec.decode(segment.frame(sequence));
+            if (message == null)
+                throw new IOException("Повреждена запись истории " + sequence);
+            messages.add(new Message(message.getType(), message.getTarget(), message.getData(), sequence));
+        }
+        return messages;
+    }
+
+    // Удаление старых сегментов сверх лимита размера или срока хранения (0 - без ограничения).
+    // Активный сегмент не удаляется.
+    private void enforceRetention() {
+        long total = 0;
+        for (Segment segment : segments.values())
+            total += segment.size();
+        long expired = System.currentTimeMillis() - retentionMillis;
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if ((retentionBytes <= 0 || total <= retentionBytes)
+                    && (retentionMillis <= 0 || oldest.lastTimestamp >= expired))
+                break;
+            segments.pollFirstEntry();
+            total -= oldest.size();
+            oldest.delete();
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(fsyncIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Segment segment = null;
+            writeLock.lock();
+            try {
+                if (closed)
+                    return;
+                if (dirty) {
+                    dirty = false;
+                    segment = active;
+                }
+                enforceRetention();
+            } finally {
+                writeLock.unlock();
+            }
+            try {
+                if (segment != null)
+                    segment.force(); // Одна синхронизация на все записи за интервал, писатели её не ждут.
+            } catch (RuntimeException e) {
+                LOGGER.warning("Не удалось сохранить историю сообщений на диск: " + e.getMessage());
+            }
+        }
+    }
+
+    // Открытие сегментов, оставшихся от прошлого запуска. Записи проверяются по CRC, хвост после
+    // первой неполной или повреждённой записи отбрасывается.
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(path -> path.getFileName().toString().endsWith(DATA_SUFFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseSequence;
+            try {
+                baseSequence = Long.parseLong(name.substring(0, name.length() - DATA_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = openSegment(baseSequence, (int) Math.max(Files.size(file), segmentSize));
+            if (segment.count == 0 && !segments.isEmpty()) {
+                segment.delete();
+                continue;
+            }
+            segments.put(baseSequence, segment);
+            lastSequence = baseSequence + segment.count - 1;
+        }
+        if (segments.isEmpty()) {
+            active = createSegment(1);
+            lastSequence = 0;
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        LOGGER.info("История сообщений: " + directory + ", сегментов " + segments.size()
+                + ", последний номер " + lastSequence);
+    }
+
+    private Segment createSegment(long baseSequence) throws IOException {
+        Segment segment = openSegment(baseSequence, segmentSize);
+        segments.put(baseSequence, segment);
+        return segment;
+    }
+
+    private Segment openSegment(long baseSequence, int size) throws IOException {
+        String name = String.format("%020d", baseSequence);
+        return new Segment(baseSequence, directory.resolve(name + DATA_SUFFIX), directory.resolve(name + INDEX_SUFFIX), size);
+    }
+
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            active.force();
+        } finally {
+            writeLock.unlock();
+        }
+        if (flusher != null)
+            flusher.interrupt();
+    }
+
+    // Сегмент истории: файл записей и файл индекса, оба отображены в память.
+    private static class Segment {
+        final long baseSequence;
+        final Path dataFile;
+        final Path indexFile;
+        final MappedByteBuffer data;
+        final MappedByteBuffer index; // Позиция i-й записи сегмента, по 4 байта на запись.
+        volatile int count; // Число записей. Читатели сверяются с MessageStore.lastSequence.
+        int position; // Конец последней записи. Меняется только писателем.
+        volatile long lastTimestamp;
+
+        Segment(long baseSequence, Path dataFile, Path indexFile, int size) throws IOException {
+            this.baseSequence = baseSequence;
+            this.dataFile = dataFile;
+            this.indexFile = indexFile;
+            try (FileChannel channel = FileChannel.open(dataFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.data = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // Отображение живёт и после закрытия канала.
+            }
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.index = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        (long) (size / MIN_RECORD_SIZE + 1) * Integer.BYTES);
+            }
+            scan();
+        }
+
+        // Восстановление числа записей и индекса по содержимому файла.
+        private void scan() {
+            CRC32C crc = new CRC32C();
+            int position = 0;
+            int count = 0;
+            while (position + HEADER_SIZE <= data.capacity()) {
+                int length = data.getInt(position);
+                if (length <= HEADER_SIZE - Integer.BYTES || position + Integer.BYTES + length > data.capacity())
+                    break;
+                crc.reset();
+                crc.update(data.slice(position + HEADER_SIZE, length + Integer.BYTES - HEADER_SIZE));
+                if ((int) crc.getValue() != data.getInt(position + Integer.BYTES))
+                    break;
+                index.putInt(count * Integer.BYTES, position);
+                lastTimestamp = data.getLong(position + Integer.BYTES * 2);
+                position += Integer.BYTES + length;
+                count++;
+            }
+            this.position = position;
+            this.count = count;
+        }
+
+        boolean fits(int frameLength) {
+            return position + HEADER_SIZE + frameLength <= data.capacity()
+                    && (count + 1) * Integer.BYTES <= index.capacity();
+        }
+
+        // Длина записи пишется последней: запись без длины при восстановлении считается концом сегмента.
+        void append(ByteBuffer frame, int length, int crc, long timestamp) {
+            data.put(position + HEADER_SIZE, frame, frame.position(), length);
+            data.putInt(position + Integer.BYTES, crc);
+            data.putLong(position + Integer.BYTES * 2, timestamp);
+            data.putInt(position, length + HEADER_SIZE - Integer.BYTES);
+            index.putInt(count * Integer.BYTES, position);
+            position += HEADER_SIZE + length;
+            lastTimestamp = timestamp;
+            count++;
+        }
+
+        boolean contains(long sequence) {
+            return sequence >= baseSequence && sequence < baseSequence + count;
+        }
+
+        // Кадр сообщения с указанным номером. Отдельный буфер: чтения не мешают писателю.
+        ByteBuffer frame(long sequence) {
+            int position = index.getInt((int) (sequence - baseSequence) * Integer.BYTES);
+            int length = data.getInt(position) + Integer.BYTES - HEADER_SIZE;
+            return data.slice(position + HEADER_SIZE, length);
+        }
+
+        long size() {
+            return position;
+        }
+
+        void force() {
+            data.force();
+            index.force();
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(dataFile);
+                Files.deleteIfExists(indexFile);
+            } catch (IOException e) {
+                LOGGER.warning("Не удалось удалить сегмент истории " + dataFile);
+            }
+        }
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.MessageStore" - история сообщений чата на диске.
+ *
+ *   Каждое сообщение общей рассылки получает номер и дописывается в конец текущего сегмента.
+ *   Номер записывается в само сообщение, поэтому клиенты знают номер последнего полученного
+ *   сообщения и после переподключения запрашивают только пропущенные.
+ *   Сегмент - это пара файлов в каталоге истории: записи (<номер первого сообщения>.log) и индекс
+ *   (.idx) с позицией каждой записи. Оба файла отображены в память (MappedByteBuffer), поэтому запись
+ *   сообщения - это копирование байт в память без системного вызова, а чтение по номеру - одно
+ *   обращение к индексу и последовательное чтение соседних записей.
+ *
+ *   В записи хранится тот же кадр двоичного протокола, который уже закодирован для рассылки
+ *   (server.SharedFrame), поэтому сообщение не кодируется второй раз. Контрольная сумма CRC32C
+ *   и порядок записи (длина пишется последней) позволяют после сбоя отбросить недописанный хвост.
+ *
+ *   На диск изменения сбрасываются пачками: фоновый поток вызывает force() не чаще раза
+ *   в historyFsyncIntervalMs миллисекунд (0 - после каждого сообщения). Старые сегменты удаляются,
+ *   когда история превышает historyRetentionBytes байт или historyRetentionHours часов.
+ *
+ *   Клиент запрашивает историю сообщением HISTORY_REQUEST: последние N сообщений или сообщения
+ *   после известного ему номера. Ответ - сами сообщения с номерами (Message.getSequence())
+ *   и завершающее HISTORY_END.
+ *
+ */
@@ -1,10 +1,55 @@
 package server;
 
 public enum MessageType {
-    NAME_REQUEST, // запрос имени
-    USER_NAME, // имя пользователя
-    NAME_ACCEPTED, // имя принято
-    TEXT, // текстовое сообщение
-    USER_ADDED, // пользователь добавлен
-    USER_REMOVED // пользователь удалён
+    NAME_REQUEST(1), // запрос имени
+    USER_NAME(2), // имя пользователя
+    NAME_ACCEPTED(3), // имя принято
+    TEXT(4), // текстовое сообщение
+    USER_ADDED(5), // пользователь добавлен
+    USER_REMOVED(6), // пользователь удалён
+    ROOM_JOIN(7), // вход в комнату
+    ROOM_LEAVE(8), // выход из комнаты
+    ROOM_LIST(9), // список комнат или участников комнаты
+    ROOM_TEXT(10), // текстовое сообщение в комнату
+    ROOM_MEMBER_JOINED(11), // участник вошёл в комнату
+    ROOM_MEMBER_LEFT(12), // участник вышел из комнаты
+    PRIVATE_TEXT(13), // личное сообщение
+    PRIVATE_DELIVERED(14), // личное сообщение передано получателю
+    PRIVATE_UNKNOWN_RECIPIENT(15), // получателя личного сообщения нет в чате
+    HISTORY_REQUEST(16), // запрос истории сообщений
+    HISTORY_END(17), // конец ответа на запрос истории
+    RESUME(18), // возобновление сессии после переподключения
+    USER_LIST(19), // список всех участников чата
+    USER_PRESENCE(20), // накопленные изменения списка участников
+    PING(21), // проверка, что собеседник на связи
+    PONG(22), // ответ на PING
+    PEER_HELLO(23), // знакомство узлов кластера
+    PEER_TEXT(24), // сообщение общего чата с другого узла кластера
+    PEER_PRESENCE(25), // вход и выход участников другого узла кластера
+    SERVER_SHUTDOWN(26), // сервер останавливается, в данных - через сколько миллисекунд переподключаться
+    MAILBOX(27), // пачка сообщений, накопленных для участника, пока его не было в чате
+    SEARCH(28), // поиск по истории общего чата и ответ на него
+    ACK(29); // подтверждение: получены все сообщения общего чата до номера sequence включительно
+
+    private static final MessageType[] BY_CODE = new MessageType[64];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final int code; // Код типа в двоичном протоколе, не зависит от порядка констант.
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public static MessageType fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
 }
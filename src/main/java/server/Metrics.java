@@ -0,0 +1,266 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class Metrics {
+    public static final Metrics SERVER = new Metrics(); // Метрики сервера, их отдаёт /metrics.
+
+    static final Counter MESSAGES_RECEIVED = SERVER.counter("chat_messages_received_total",
+            "Принято сообщений от клиентов");
+    static final Counter MESSAGES_SENT = SERVER.counter("chat_messages_sent_total",
+            "Отправлено сообщений клиентам");
+    static final Counter BYTES_RECEIVED = SERVER.counter("chat_bytes_received_total", "Принято байт");
+    static final Counter BYTES_SENT = SERVER.counter("chat_bytes_sent_total", "Отправлено байт");
+    static final Summary RECEIVE_TIME = SERVER.summary("chat_receive_seconds",
+            "Разбор одного принятого кадра в сообщение");
+    static final Summary SEND_TIME = SERVER.summary("chat_send_seconds",
+            "Кодирование и запись в сокет одного кадра или пачки кадров из очереди");
+    static final Summary BROADCAST_TIME = SERVER.summary("chat_broadcast_seconds",
+            "Рассылка сообщения общего чата всем участникам, вместе с ожиданием предыдущей рассылки");
+    static final Counter CONNECTIONS = SERVER.counter("chat_connections_total", "Принято соединений");
+    static final Counter REGISTRATIONS = SERVER.counter("chat_registrations_total",
+            "Зарегистрировано участников");
+    static final Counter RESUMES = SERVER.counter("chat_resumes_total", "Возобновлено сессий");
+    static final Counter IDLE_DISCONNECTS = SERVER.counter("chat_idle_disconnects_total",
+            "Закрыто соединений, клиенты которых перестали отвечать");
+    static final Counter PINGS_SENT = SERVER.counter("chat_pings_sent_total", "Отправлено PING молчащим соединениям");
+    static final Counter LIMITED_MESSAGES = SERVER.counter("chat_rate_limited_total{reason=\"messages\"}",
+            "Отброшено сообщений сверх ограничений");
+    static final Counter LIMITED_BYTES = SERVER.counter("chat_rate_limited_total{reason=\"bytes\"}",
+            "Отброшено сообщений сверх ограничений");
+    static final Counter LIMITED_SIZE = SERVER.counter("chat_rate_limited_total{reason=\"size\"}",
+            "Отброшено сообщений сверх ограничений");
+    static final Counter LIMITED_FANOUT = SERVER.counter("chat_rate_limited_total{reason=\"fanout\"}",
+            "Отброшено сообщений сверх ограничений");
+    static final Counter RATE_LIMIT_DISCONNECTS = SERVER.counter("chat_rate_limit_disconnects_total",
+            "Отключено участников, превысивших ограничения");
+    static final Counter DEFLATE_INPUT_BYTES = SERVER.counter("chat_deflate_input_bytes_total",
+            "Байт данных до сжатия Deflate");
+    static final Counter DEFLATE_OUTPUT_BYTES = SERVER.counter("chat_deflate_output_bytes_total",
+            "Байт данных после сжатия Deflate");
+    static final Summary DEFLATE_TIME = SERVER.summary("chat_deflate_seconds", "Сжатие данных одного кадра");
+    static final Counter CLUSTER_RELAYED = SERVER.counter("chat_cluster_relayed_total",
+            "Отправлено сообщений другим узлам кластера");
+    static final Counter CLUSTER_RECEIVED = SERVER.counter("chat_cluster_received_total",
+            "Принято сообщений от других узлов кластера");
+    static final Counter CLUSTER_DUPLICATES = SERVER.counter("chat_cluster_duplicates_total",
+            "Отброшено повторно пришедших сообщений других узлов кластера");
+    static final Counter MAILBOX_STORED = SERVER.counter("chat_mailbox_stored_total",
+            "Личных сообщений оставлено в ящиках участников, которых нет в чате");
+    static final Counter MAILBOX_DELIVERED = SERVER.counter("chat_mailbox_delivered_total",
+            "Доставлено сообщений из ящиков вернувшимся участникам");
+    static final Counter MAILBOX_DROPPED = SERVER.counter("chat_mailbox_dropped_total",
+            "Вытеснено старых сообщений из переполненных ящиков");
+    static final Counter SEARCH_QUERIES = SERVER.counter("chat_search_queries_total", "Выполнено поисковых запросов");
+    static final Summary SEARCH_TIME = SERVER.summary("chat_search_seconds", "Поиск по индексу и чтение найденных сообщений");
+    static final Counter SEARCH_MERGES = SERVER.counter("chat_search_merges_total",
+            "Слияний сегментов поискового индекса");
+    static final Counter ACKS_RECEIVED = SERVER.counter("chat_acks_received_total",
+            "Принято подтверждений доставки ACK");
+    static final Counter REJECTED_PROTOCOL = SERVER.counter("chat_registration_rejections_total{reason=\"protocol\"}",
+            "Отклонено попыток регистрации");
+    static final Counter REJECTED_INVALID = SERVER.counter("chat_registration_rejections_total{reason=\"invalid\"}",
+            "Отклонено попыток регистрации");
+    static final Counter REJECTED_TAKEN = SERVER.counter("chat_registration_rejections_total{reason=\"taken\"}",
+            "Отклонено попыток регистрации");
+    static final Counter REJECTED_RESUME = SERVER.counter("chat_registration_rejections_total{reason=\"resume\"}",
+            "Отклонено попыток регистрации");
+
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    // Общая часть всех метрик: имя (может содержать метки в фигурных скобках) и описание.
+    abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        // Имя без меток: строки HELP и TYPE выводятся один раз на все метрики с этим именем.
+        String family() {
+            int labels = name.indexOf('{');
+            return labels < 0 ? name : name.substring(0, labels);
+        }
+
+        abstract String type();
+
+        abstract void writeSamples(StringBuilder out);
+    }
+
+    // Счётчик, который только растёт. LongAdder раскладывает увеличения по ячейкам разных потоков,
+    // поэтому счётчик не становится точкой конкуренции, даже если его увеличивают все соединения.
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            out.append(name).append(' ').append(get()).append('\n');
+        }
+    }
+
+    // Текущее значение, которое читается в момент запроса, например, число участников.
+    public static class Gauge extends Metric {
+        private final LongSupplier value;
+
+        Gauge(String name, String help, LongSupplier value) {
+            super(name, help);
+            this.value = value;
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            out.append(name).append(' ').append(value.getAsLong()).append('\n');
+        }
+    }
+
+    // Распределение длительностей. Записывается в наносекундах, отдаётся в секундах
+    // процентилями 0.5, 0.9, 0.99, 0.999, суммой и числом записей.
+    public static class Summary extends Metric {
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        Summary(String name, String help) {
+            super(name, help);
+        }
+
+        public void recordNanos(long nanos) {
+            histogram.record(nanos);
+        }
+
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        @Override
+        String type() {
+            return "summary";
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            for (double quantile : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+            }
+            out.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+            out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        }
+
+        private static double seconds(long nanos) {
+            return nanos / 1e9;
+        }
+    }
+
+    public Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    public Gauge gauge(String name, String help, LongSupplier value) {
+        return register(new Gauge(name, help, value));
+    }
+
+    public Summary summary(String name, String help) {
+        return register(new Summary(name, help));
+    }
+
+    private <T extends Metric> T register(T metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    // Все метрики в текстовом формате Prometheus.
+    public String format() {
+        StringBuilder out = new StringBuilder(4096);
+        String family = null;
+        for (Metric metric : metrics) {
+            if (!metric.family().equals(family)) {
+                family = metric.family();
+                out.append("# HELP ").append(family).append(' ').append(metric.help).append('\n');
+                out.append("# TYPE ").append(family).append(' ').append(metric.type()).append('\n');
+            }
+            metric.writeSamples(out);
+        }
+        return out.toString();
+    }
+
+    // HTTP-сервер, отдающий метрики по адресу http://127.0.0.1:port/metrics. Слушает только
+    // локальный адрес: снаружи метрики не видны. Порт 0 - любой свободный.
+    public HttpServer startHttpEndpoint(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.setExecutor(Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        http.start();
+        return http;
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.Metrics" - встроенные метрики сервера.
+ *
+ *   Счётчики (LongAdder), текущие значения и распределения длительностей (server.LatencyHistogram)
+ *   регистрируются в реестре по имени. Метрики самого сервера объявлены здесь же как статические
+ *   поля реестра Metrics.SERVER: принятые и отправленные сообщения и байты, время разбора и записи
+ *   одного кадра (server.Connection, server.NioConnection), время рассылки в общий чат, регистрации
+ *   участников и причины отказов. Число участников и комнат сервер регистрирует сам, при запуске.
+ *
+ *   Если в settings.json указан metricsPort, сервер отдаёт все метрики в текстовом формате Prometheus
+ *   по адресу http://127.0.0.1:metricsPort/metrics. Их можно смотреть под нагрузкой через curl
+ *   или собирать Prometheus, не подключая к серверу профилировщик.
+ *
+ *   Запись метрики - увеличение счётчика без блокировок и, для длительностей, два вызова
+ *   System.nanoTime(), поэтому метрики собираются всегда, а не только во время диагностики.
+ *
+ */
@@ -0,0 +1,320 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+class NioConnection extends Session {
+    private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+    static final int MAX_INBOUND = 64; // Сколько принятых сообщений может ждать обработки, пока чтение не остановится.
+
+    private final NioEventLoop eventLoop;
+    private final SocketChannel channel;
+    private final SocketAddress remoteAddress;
+    private final ProtocolCodec codec = new ProtocolCodec();
+    private final OutboundQueue outbound; // Кадры, ожидающие записи.
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(); // Запись уже запланирована в цикле событий.
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Executor workers; // Здесь обрабатываются принятые сообщения, чтобы не занимать цикл событий.
+    private final Queue<Runnable> inbound = new ConcurrentLinkedQueue<>(); // Принятые сообщения, ждущие обработки.
+    private final AtomicInteger inboundCount = new AtomicInteger();
+    private volatile boolean readPaused; // Чтение из сокета остановлено, пока обработка не разберёт очередь.
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE); // Сюда кодируются кадры версии 1.
+    private ByteBuffer pending; // Кадр, который сейчас пишется в сокет.
+    private SelectionKey key;
+    private String userName; // null, пока участник не прошёл регистрацию. Читается и пишется только при обработке.
+    private LegacyStreamReader legacyReader; // Клиент первой версии: его поток объектов разбирает отдельный поток.
+
+    NioConnection(NioEventLoop eventLoop, SocketChannel channel, OutboundQueue outbound, Executor workers) {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.outbound = outbound;
+        this.workers = workers;
+        this.remoteAddress = channel.socket().getRemoteSocketAddress();
+    }
+
+    // Соединение зарегистрировано в селекторе - начинаем регистрацию участника.
+    void open(SelectionKey key) throws IOException {
+        this.key = key;
+        ConsoleHelper.writeMessage("Установлено новое соединение с " + remoteAddress);
+        LOGGER.info("Установлено новое соединение с " + remoteAddress);
+        Server.idle.watch(this);
+        Server.requestUserName(this);
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        send(new SharedFrame(message));
+    }
+
+    @Override
+    public void send(SharedFrame frame) throws IOException {
+        if (closed.get())
+            throw new IOException("Соединение с " + remoteAddress + " закрыто");
+        if (!outbound.offer(frame)) {
+            eventLoop.execute(this::close); // Медленный клиент: отключаем его в потоке цикла событий.
+            throw new IOException("Соединение с " + remoteAddress + " закрыто: клиент не успевает принимать сообщения");
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (eventLoop.inEventLoop())
+                flush();
+            else
+                eventLoop.execute(this::flush);
+        }
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return remoteAddress;
+    }
+
+    // Очередь пуста, и запись не запланирована и не ждёт освобождения буфера сокета.
+    @Override
+    public boolean isFlushed() {
+        return outbound.isEmpty() && !flushScheduled.get();
+    }
+
+    void onReadable() {
+        try {
+            if (!readBuffer.hasRemaining())
+                readBuffer = expand(readBuffer);
+            int count = channel.read(readBuffer);
+            if (count < 0) {
+                close();
+                return;
+            }
+            Metrics.BYTES_RECEIVED.add(count);
+            markRead();
+            readBuffer.flip();
+            if (legacyReader != null) { // Поток объектов без кадров: байты целиком уходят потоку разбора.
+                feedLegacy();
+                return;
+            }
+            decodeFrames();
+        } catch (IOException | ClassNotFoundException e) {
+            LOGGER.severe("Ошибка при обмене данных с " + remoteAddress);
+            close();
+        }
+    }
+
+    // Разбор накопленных кадров (буфер чтения в режиме чтения) и передача сообщений на обработку.
+    // Если обработки ждут MAX_INBOUND сообщений, чтение из сокета останавливается до разбора очереди.
+    private void decodeFrames() throws IOException, ClassNotFoundException {
+        Message message;
+        long start = System.nanoTime();
+        int frameStart = readBuffer.position();
+        while (!closed.get() && inboundCount.get() < MAX_INBOUND && (message = codec.decode(readBuffer)) != null) {
+            int length = readBuffer.position() - frameStart;
+            frameStart = readBuffer.position();
+            Metrics.RECEIVE_TIME.recordNanos(System.nanoTime() - start);
+            Metrics.MESSAGES_RECEIVED.increment();
+            Message received = message;
+            dispatch(() -> process(received, length));
+            start = System.nanoTime();
+        }
+        if (codec.isLegacy() && !closed.get()) {
+            legacyReader = LegacyStreamReader.start(remoteAddress, new LegacyStreamReader.Listener() {
+                @Override
+                public void onMessage(Message message, int length) {
+                    Metrics.MESSAGES_RECEIVED.increment();
+                    dispatch(() -> process(message, length));
+                }
+
+                @Override
+                public void onClosed() {
+                    close();
+                }
+            });
+            feedLegacy();
+            return;
+        }
+        readBuffer.compact();
+        if (inboundCount.get() >= MAX_INBOUND && !closed.get()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            readPaused = true;
+            if (inboundCount.get() == 0) // Обработка успела разобрать очередь до остановки чтения.
+                eventLoop.execute(this::resumeReading);
+        }
+    }
+
+    // Возобновление чтения, когда очередь обработки разобрана. Выполняется в цикле событий.
+    private void resumeReading() {
+        if (closed.get() || !readPaused)
+            return;
+        readPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        try {
+            readBuffer.flip();
+            decodeFrames(); // Сначала кадры, которые уже лежат в буфере.
+        } catch (IOException | ClassNotFoundException e) {
+            LOGGER.severe("Ошибка при обмене данных с " + remoteAddress);
+            close();
+        }
+    }
+
+    // Передача задачи на обработку. Задачи соединения выполняются по одной и в порядке поступления,
+    // но не в цикле событий: обработка может ждать блокировок, диска и других участников.
+    private void dispatch(Runnable task) {
+        inbound.add(task);
+        if (inboundCount.getAndIncrement() == 0)
+            workers.execute(this::processInbound);
+    }
+
+    private void processInbound() {
+        do {
+            inbound.poll().run();
+        } while (inboundCount.decrementAndGet() > 0);
+        if (readPaused)
+            eventLoop.execute(this::resumeReading);
+    }
+
+    private void feedLegacy() {
+        if (!legacyReader.feed(readBuffer)) {
+            LOGGER.warning("Клиент " + remoteAddress + " присылает больше, чем сервер успевает разобрать");
+            close();
+        }
+        readBuffer.clear();
+    }
+
+    // Обработка принятого сообщения длиной length байт. Выполняется в потоке обработки, не в цикле событий.
+    private void process(Message message, int length) {
+        if (closed.get())
+            return;
+        setReceivedFrameLength(length);
+        try {
+            handle(message);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.severe("Ошибка при обмене данных с " + remoteAddress);
+            close();
+        }
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    // Запись накопленных кадров, пока сокет их принимает. Выполняется в потоке цикла событий.
+    private void flush() {
+        if (closed.get())
+            return;
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                while (pending != null || (pending = encode(outbound.poll())) != null) {
+                    Metrics.BYTES_SENT.add(channel.write(pending));
+                    if (pending.hasRemaining()) { // Буфер сокета заполнен - дождёмся OP_WRITE.
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pending = null;
+                    markWritten();
+                    long now = System.nanoTime();
+                    Metrics.SEND_TIME.recordNanos(now - start);
+                    Metrics.MESSAGES_SENT.increment();
+                    start = now;
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                flushScheduled.set(false);
+                if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true))
+                    return;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warning("Не получилось отправить сообщение " + remoteAddress);
+            close();
+        }
+    }
+
+    // Байты кадра для записи: общий кадр для версии 2 или закодированный в encodeBuffer для версии 1.
+    private ByteBuffer encode(SharedFrame frame) throws IOException {
+        if (frame == null)
+            return null;
+        if (codec.getVersion() == MessageCodec.VERSION_BINARY) // Без копирования: ссылается на общий массив кадра.
+            return frame.buffer(hasFeature(ProtocolCodec.FEATURE_DEFLATE));
+        encodeBuffer = codec.encode(frame.getMessage(), encodeBuffer.clear());
+        return encodeBuffer.flip();
+    }
+
+    private void handle(Message message) throws IOException {
+        if (userName != null) {
+            Server.processMessage(this, userName, message);
+            return;
+        }
+        userName = Server.acceptUserName(this, message);
+        if (userName == null)
+            Server.requestUserName(this);
+        else if (message.getType() != MessageType.RESUME)
+            Server.userJoined(this, userName);
+    }
+
+    private void leave() {
+        if (userName != null)
+            Server.userLeft(this, userName);
+    }
+
+    // Соединение закрывается в потоке своего цикла событий, даже если close() вызван из другого потока
+    // (например, таймером бездействия или при возобновлении сессии через новое соединение).
+    @Override
+    public void close() {
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(this::close);
+            return;
+        }
+        if (!closed.compareAndSet(false, true))
+            return;
+        Server.idle.unwatch(this);
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warning("Не удалось закрыть соединение с " + remoteAddress);
+        }
+        outbound.close();
+        if (legacyReader != null)
+            legacyReader.close();
+        dispatch(this::leave); // После уже начатой обработки: она могла как раз регистрировать участника.
+        ConsoleHelper.writeMessage("Соединение с " + remoteAddress + " закрыто");
+        LOGGER.info("Соединение с " + remoteAddress + " закрыто");
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.NioConnection" - соединение с клиентом в неблокирующем транспорте.
+ *
+ *   Соединение принадлежит одному циклу событий (server.NioEventLoop): чтение и запись сокета выполняются
+ *   только в его потоке. Входящие байты копятся в буфере соединения, из которого server.ProtocolCodec
+ *   достаёт целые кадры. У клиента первой версии чата кадров нет: его байты передаются
+ *   server.LegacyStreamReader, который разбирает поток объектов в отдельном потоке.
+ *
+ *   Разобранные сообщения обрабатываются не в цикле событий, а в виртуальных потоках: по одному и по
+ *   порядку для каждого соединения. Пока участник не зарегистрирован, сообщения идут в ту же проверку
+ *   имени, что и у блокирующего сервера, после регистрации - в общий обработчик сообщений server.Server.
+ *   Если обработки ждут MAX_INBOUND сообщений, соединение перестаёт читать сокет, пока очередь не разберут.
+ *
+ *   Метод send() может вызываться из любого потока (например, при рассылке сообщения всем участникам):
+ *   он только кладёт кадр в ограниченную очередь (server.OutboundQueue), а кодирование и запись выполняет
+ *   цикл событий. Если очередь переполнена, действует политика переполнения, вплоть до отключения клиента.
+ *   Если сокет не принимает данные, соединение подписывается на OP_WRITE и дописывает очередь позже,
+ *   не блокируя ни отправителя, ни остальных клиентов.
+ *
+ */
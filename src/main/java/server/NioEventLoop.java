@@ -0,0 +1,109 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+class NioEventLoop implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Executor workers; // Здесь соединения обрабатывают принятые сообщения.
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Задачи из других потоков.
+    private volatile boolean running = true;
+
+    NioEventLoop(String name, Executor workers) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.workers = workers;
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // Выполнение задачи в потоке цикла событий.
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    // Передача принятого канала этому циклу событий.
+    void register(SocketChannel channel) {
+        execute(() -> {
+            NioConnection connection = new NioConnection(this, channel, Server.newOutboundQueue(), workers);
+            try {
+                connection.open(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                LOGGER.warning("Не удалось зарегистрировать соединение " + connection.getRemoteSocketAddress());
+                connection.close();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable())
+                        connection.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        connection.onWritable();
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Ошибка в цикле событий " + thread.getName(), e);
+            }
+        }
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            ((NioConnection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.warning("Не удалось закрыть селектор " + thread.getName());
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.NioEventLoop" - цикл событий неблокирующего транспорта.
+ *
+ *   Каждый цикл работает в своём потоке и обслуживает свой Selector с частью соединений сервера.
+ *   Поток ждёт в select(), пока какой-нибудь канал не станет готов к чтению или записи,
+ *   и передаёт событие соответствующему server.NioConnection.
+ *
+ *   Другие потоки не трогают Selector напрямую: регистрация канала и начало записи
+ *   передаются в цикл через очередь задач (execute), после чего селектор будится вызовом wakeup().
+ *
+ */
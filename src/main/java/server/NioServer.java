@@ -0,0 +1,83 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+public class NioServer implements Closeable {
+    private final ServerSocketChannel serverChannel;
+    private final NioEventLoop[] eventLoops;
+    private int nextLoop; // Циклы событий получают соединения по очереди.
+
+    public NioServer(int port, int threads) throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.eventLoops = new NioEventLoop[threads];
+        // Принятые сообщения обрабатываются в виртуальных потоках: циклы событий заняты только вводом-выводом.
+        Executor workers = Server.handlerExecutor(ServerSettings.THREADS_VIRTUAL);
+        for (int i = 0; i < threads; i++) {
+            eventLoops[i] = new NioEventLoop("nio-event-loop-" + i, workers);
+        }
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Запуск циклов событий и приём входящих соединений в текущем потоке.
+    public void run() throws IOException {
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+        while (serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept(); // Ожидаем входящее соединение.
+            } catch (IOException e) {
+                if (!serverChannel.isOpen())
+                    return; // Сервер остановлен методом close().
+                throw e;
+            }
+            Metrics.CONNECTIONS.increment();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            eventLoops[nextLoop].register(channel);
+            nextLoop = (nextLoop + 1) % eventLoops.length;
+        }
+    }
+
+    // Прекратить приём соединений. Циклы событий продолжают обслуживать уже принятые соединения.
+    public void stopAccepting() throws IOException {
+        serverChannel.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.NioServer" - неблокирующий транспорт чат-сервера на ServerSocketChannel и Selector.
+ *
+ *   В отличие от server.Server.ServerHandler, который держит отдельный поток на каждого клиента,
+ *   здесь все соединения обслуживает небольшой пул циклов событий (по умолчанию по одному на ядро).
+ *   Метод run() принимает соединения в текущем потоке и раздаёт их циклам событий по кругу.
+ *
+ *   Регистрация участников и рассылка сообщений выполняются теми же методами server.Server,
+ *   что и в блокирующем режиме, поэтому оба транспорта ведут себя для клиента одинаково.
+ *   Эти методы могут ждать блокировок, диска и других участников, поэтому выполняются не в циклах
+ *   событий, а в виртуальных потоках, общих для всех соединений сервера.
+ *   Транспорт выбирается при запуске параметром "transport" в файле settings.json.
+ *
+ */
@@ -0,0 +1,167 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+public class ObjectStreamCodec implements MessageCodec {
+    private static final int LENGTH_SIZE = Integer.BYTES;
+    // Поток объектов помнит каждый записанный объект, пока не вызван reset(). Сброс - не реже, чем раз
+    // в столько сообщений или байт: так память соединения ограничена, сколько бы оно ни жило.
+    static final int RESET_INTERVAL_MESSAGES = 1024;
+    static final int RESET_INTERVAL_BYTES = 256 * 1024;
+    // Из потока можно прочитать только сообщения чата: любые другие классы отклоняются до их создания.
+    private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter(
+            "server.Message;server.MessageType;java.lang.Enum;maxdepth=4;!*");
+
+    private final boolean framed; // false - поток объектов без длины перед сообщениями (версия 0).
+    private final FrameOutputStream frameOut = new FrameOutputStream();
+    private final FrameInputStream frameIn = new FrameInputStream();
+    private ObjectOutputStream out; // Создаётся при первой отправке, заголовок потока уходит в первом кадре.
+    private ObjectInputStream in; // Создаётся при первом полученном кадре.
+    private int messagesSinceReset;
+    private long bytesSinceReset;
+
+    public ObjectStreamCodec() {
+        this(true);
+    }
+
+    ObjectStreamCodec(boolean framed) {
+        this.framed = framed;
+    }
+
+    // Поток объектов старого клиента (версия 0). Читается прямо из потока байт: где кончается
+    // сообщение без длины, знает только сам ObjectInputStream.
+    static ObjectInputStream legacyInput(InputStream in) throws IOException {
+        ObjectInputStream objects = new ObjectInputStream(in);
+        objects.setObjectInputFilter(FILTER);
+        return objects;
+    }
+
+    // Кодирование сообщения в кадр [длина][байты потока объектов] или, без кадров, в одни байты потока.
+    @Override
+    public ByteBuffer encode(Message message, ByteBuffer buffer) throws IOException {
+        frameOut.reset();
+        if (out == null) {
+            out = new ObjectOutputStream(frameOut);
+        } else if (messagesSinceReset >= RESET_INTERVAL_MESSAGES || bytesSinceReset >= RESET_INTERVAL_BYTES) {
+            // Метка TC_RESET уходит в начале кадра: получатель тоже забывает прочитанные объекты.
+            // Описания классов после сброса передаются заново, это около 200 байт.
+            out.reset();
+            messagesSinceReset = 0;
+            bytesSinceReset = 0;
+        }
+        out.writeObject(message);
+        out.flush();
+        messagesSinceReset++;
+        bytesSinceReset += frameOut.size();
+        if (!framed) {
+            buffer = MessageCodec.ensureCapacity(buffer, frameOut.size());
+            return frameOut.writeTo(buffer);
+        }
+        buffer = MessageCodec.ensureCapacity(buffer, LENGTH_SIZE + frameOut.size());
+        buffer.putInt(frameOut.size());
+        return frameOut.writeTo(buffer);
+    }
+
+    // Извлечение одного сообщения из буфера. Возвращает null, если кадр ещё не пришёл целиком.
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException, ClassNotFoundException {
+        if (!framed)
+            throw new IllegalStateException("Поток объектов без кадров читается через legacyInput()");
+        if (buffer.remaining() < LENGTH_SIZE)
+            return null;
+        int length = buffer.getInt(buffer.position());
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Недопустимая длина кадра: " + length);
+        if (buffer.remaining() < LENGTH_SIZE + length)
+            return null;
+        buffer.position(buffer.position() + LENGTH_SIZE);
+        frameIn.fill(buffer, length);
+        if (in == null) {
+            in = new ObjectInputStream(frameIn);
+            in.setObjectInputFilter(FILTER);
+        }
+        return (Message) in.readObject();
+    }
+
+    // Переиспользуемый буфер байтов одного сообщения.
+    private static class FrameOutputStream extends ByteArrayOutputStream {
+        ByteBuffer writeTo(ByteBuffer buffer) {
+            return buffer.put(buf, 0, count);
+        }
+    }
+
+    // Поток, отдающий ObjectInputStream байты ровно одного кадра.
+    private static class FrameInputStream extends InputStream {
+        private byte[] bytes = new byte[256];
+        private int position;
+        private int limit;
+
+        void fill(ByteBuffer buffer, int length) {
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            buffer.get(bytes, 0, length);
+            position = 0;
+            limit = length;
+        }
+
+        @Override
+        public int read() {
+            return position < limit ? bytes[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= limit)
+                return -1;
+            int n = Math.min(len, limit - position);
+            System.arraycopy(bytes, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.ObjectStreamCodec" отвечает за то, как сообщения (server.Message) передаются по сети.
+ *
+ *   Сообщения по-прежнему сериализуются стандартным ObjectOutputStream, и поток объектов живёт
+ *   всё время соединения (описания классов передаются один раз). Но байты каждого сообщения
+ *   отправляются отдельным кадром с длиной в начале: [длина int32][байты потока объектов].
+ *
+ *   Поток объектов хранит ссылку на каждый записанный объект (чтобы повторно записать его коротким
+ *   номером), а читающий поток - на каждый прочитанный. На соединении, которое живёт днями, это утечка:
+ *   в памяти остаются все сообщения, когда-либо отправленные по нему. Поэтому кодек вызывает reset()
+ *   каждые RESET_INTERVAL_MESSAGES сообщений или RESET_INTERVAL_BYTES байт. Метка сброса - часть
+ *   стандартного формата, её понимают и старые клиенты, и их таблица прочитанных объектов тоже очищается.
+ *
+ *   Клиенты первой версии чата пишут тот же поток объектов без длины (версия 0). Для них кодек
+ *   создаётся с framed = false: encode() не добавляет длину, а читает такой поток сам ObjectInputStream
+ *   из legacyInput(), потому что конец сообщения без длины заранее не известен.
+ *
+ *   Благодаря длине получатель заранее знает, пришло ли сообщение целиком, поэтому кадры можно
+ *   собирать из неблокирующего канала (server.NioConnection), не останавливая поток на чтении.
+ *   Блокирующее соединение (server.Connection) использует тот же формат, и клиенту всё равно,
+ *   какой транспорт выбран на сервере.
+ *
+ *   Это версия протокола 1 (server.MessageCodec.VERSION_OBJECT_STREAM). Читаются только классы
+ *   server.Message и server.MessageType: фильтр ObjectInputFilter отклоняет всё остальное,
+ *   чтобы через сериализацию нельзя было создать на сервере произвольный объект.
+ *
+ *   Метод decode() вызывается для буфера в режиме чтения и либо возвращает очередное сообщение,
+ *   сдвигая позицию буфера за его кадр, либо возвращает null и оставляет буфер без изменений.
+ *
+ */
@@ -0,0 +1,169 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class OutboundQueue {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, // Выбросить самый старый кадр и поставить новый.
+        DROP_NEW, // Выбросить новый кадр.
+        DISCONNECT; // Отключить клиента, который не успевает читать.
+
+        public static OverflowPolicy fromSetting(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<SharedFrame> frames;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LongAdder queued = new LongAdder(); // Всего принято в очередь.
+    private final LongAdder dropped = new LongAdder(); // Всего выброшено из-за переполнения.
+    private boolean closed;
+    private boolean writing; // Писатель взял кадры через take() и ещё не отметил их записанными (written()).
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.frames = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+
+    // Постановка кадра в очередь. Возвращает false, если по политике DISCONNECT клиента нужно отключить.
+    public boolean offer(SharedFrame frame) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+            if (frames.size() >= capacity) {
+                switch (policy) {
+                    case DROP_NEW -> {
+                        dropped.increment();
+                        return true;
+                    }
+                    case DROP_OLDEST -> {
+                        frames.pollFirst();
+                        dropped.increment();
+                    }
+                    case DISCONNECT -> {
+                        dropped.increment();
+                        return false;
+                    }
+                }
+            }
+            frames.addLast(frame);
+            queued.increment();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Следующий кадр или null, если очередь пуста.
+    public SharedFrame poll() {
+        lock.lock();
+        try {
+            return frames.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ожидание следующего кадра. Возвращает null, когда очередь закрыта. Взятый кадр и кадры,
+    // добранные к нему через poll(), считаются незаписанными до вызова written().
+    public SharedFrame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            SharedFrame frame = frames.pollFirst();
+            writing = frame != null;
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Писатель записал в сокет всё, что взял из очереди.
+    public void written() {
+        lock.lock();
+        try {
+            writing = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Очередь пуста, и писатель не держит взятых из неё кадров. Проверяется под той же блокировкой,
+    // что и take(), поэтому кадр, который уже вынут, но ещё не записан, не пропадает из виду.
+    public boolean isDrained() {
+        lock.lock();
+        try {
+            return frames.isEmpty() && !writing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Закрытие очереди: новые кадры не принимаются, ожидающий писатель просыпается.
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.OutboundQueue" - ограниченная очередь исходящих кадров одного соединения.
+ *
+ *   Отправитель (например, поток, рассылающий сообщение всем участникам) только кладёт кадр в очередь
+ *   и сразу идёт дальше, а в сокет кадры пишет отдельный писатель соединения: свой поток у server.Connection
+ *   или цикл событий у server.NioConnection. Поэтому клиент с заполненным TCP-окном задерживает только себя.
+ *
+ *   Если клиент не успевает читать и очередь заполнилась, действует политика OverflowPolicy:
+ *   выбросить самый старый кадр, выбросить новый или отключить медленного клиента.
+ *   Счётчики queued и dropped показывают, сколько кадров было принято и сколько выброшено.
+ *
+ *   В очереди лежат server.SharedFrame, а не готовые байты: кадр кодируется писателем при отправке,
+ *   поэтому выброс кадра не ломает поток Java-сериализации у клиентов с протоколом версии 1.
+ *
+ */
@@ -0,0 +1,68 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+public class PresenceBatcher {
+    private final long windowMillis;
+    private final Consumer<List<String>> flusher; // Получает имена участников, чьё присутствие изменилось.
+    // Нормализованное имя -> имя. Повторные изменения одного участника за окно схлопываются в одно.
+    private final ConcurrentHashMap<String, String> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "presence-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // windowMillis - сколько копить изменения перед отправкой, 0 - отправлять каждое сразу.
+    public PresenceBatcher(long windowMillis, Consumer<List<String>> flusher) {
+        this.windowMillis = windowMillis;
+        this.flusher = flusher;
+    }
+
+    // Участник вошёл или вышел. Что именно произошло, решает flusher в момент отправки.
+    public void changed(String userName) {
+        pending.put(UserRegistry.normalize(userName), userName);
+        if (windowMillis <= 0)
+            flush();
+        else if (scheduled.compareAndSet(false, true))
+            timer.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void flush() {
+        scheduled.set(false); // Изменения, пришедшие во время отправки, запланируют следующую.
+        if (pending.isEmpty())
+            return;
+        List<String> names = new ArrayList<>(pending.size());
+        for (String key : pending.keySet()) {
+            String name = pending.remove(key); // Забираем атомарно: новое изменение не потеряется.
+            if (name != null)
+                names.add(name);
+        }
+        if (!names.isEmpty())
+            flusher.accept(names);
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.PresenceBatcher" - накопление изменений списка участников.
+ *
+ *   Раньше о каждом входе и выходе рассылалось отдельное сообщение всем участникам, и массовое
+ *   переподключение тысяч клиентов стоило O(n^2) кадров. Теперь клиенты, договорившиеся о возможности
+ *   "roster", получают изменения пакетом: имена копятся presenceBatchMs миллисекунд, после чего
+ *   сервер один раз рассылает USER_PRESENCE со всеми изменениями за это окно.
+ *
+ *   Хранится только имя, а не событие: вошёл участник или вышел, сервер проверяет в момент отправки.
+ *   Поэтому участник, который за окно вышел и вернулся, даёт одну строку с итоговым состоянием, а порядок,
+ *   в котором разные потоки сообщили об изменениях, не может оставить в пакете устаревшее состояние.
+ *
+ */
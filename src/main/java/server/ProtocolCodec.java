@@ -0,0 +1,146 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ProtocolCodec implements MessageCodec {
+    private static final int UNKNOWN = -1;
+    private static final byte STREAM_MAGIC_FIRST_BYTE = (byte) 0xAC; // ObjectOutputStream начинает поток с 0xACED.
+
+    // Возможности протокола, о которых стороны договариваются при регистрации (битовая маска).
+    public static final int FEATURE_ROSTER = 1; // Список участников одним USER_LIST и пакеты USER_PRESENCE.
+    public static final int FEATURE_HEARTBEAT = 2; // Клиент отвечает PONG на PING сервера.
+    public static final int FEATURE_DEFLATE = 4; // Большие кадры версии 2 могут приходить сжатыми.
+    public static final int FEATURE_SHUTDOWN = 8; // Клиент понимает SERVER_SHUTDOWN перед остановкой сервера.
+    public static final int FEATURE_MAILBOX = 16; // Накопленное за время отсутствия приходит пачками MAILBOX.
+    public static final int FEATURE_ACK = 32; // Клиент подтверждает полученное в общем чате сообщениями ACK.
+    // Что поддерживает этот сервер. "mailbox" он предлагает, только если ведёт ящики участников.
+    public static final int SERVER_FEATURES = FEATURE_ROSTER | FEATURE_HEARTBEAT | FEATURE_DEFLATE | FEATURE_SHUTDOWN
+            | FEATURE_MAILBOX | FEATURE_ACK;
+    // Имя возможности для бита 1 << i.
+    private static final String[] FEATURE_NAMES = {"roster", "heartbeat", "deflate", "shutdown", "mailbox", "ack"};
+
+    private final ObjectStreamCodec legacyCodec = new ObjectStreamCodec(false);
+    private final ObjectStreamCodec objectStreamCodec = new ObjectStreamCodec();
+    private final BinaryMessageCodec binaryCodec = new BinaryMessageCodec();
+    private volatile int version = UNKNOWN; // Определяется по первому полученному кадру.
+    private volatile int deflateThreshold; // С какой длины данных сжимать кадры версии 2, 0 - не сжимать.
+
+    public int getVersion() {
+        return version == UNKNOWN ? VERSION_LEGACY : version;
+    }
+
+    // Собеседник пишет поток объектов без кадров: сообщения читаются не decode(), а через
+    // ObjectStreamCodec.legacyInput() прямо из потока байт соединения.
+    public boolean isLegacy() {
+        return version == VERSION_LEGACY;
+    }
+
+    // Явное переключение версии после того, как собеседник сообщил, что поддерживает её.
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    // Включение сжатия после того, как собеседник сообщил, что умеет распаковывать (FEATURE_DEFLATE).
+    public void setDeflateThreshold(int deflateThreshold) {
+        this.deflateThreshold = deflateThreshold;
+    }
+
+    @Override
+    public ByteBuffer encode(Message message, ByteBuffer out) throws IOException {
+        return switch (getVersion()) {
+            case VERSION_BINARY -> binaryCodec.encode(message, out, deflateThreshold);
+            case VERSION_OBJECT_STREAM -> objectStreamCodec.encode(message, out);
+            default -> legacyCodec.encode(message, out); // Пока версия не известна, говорим на понятном всем языке.
+        };
+    }
+
+    @Override
+    public Message decode(ByteBuffer in) throws IOException, ClassNotFoundException {
+        if (version == UNKNOWN) {
+            if (!in.hasRemaining())
+                return null;
+            // Поток объектов без кадров начинается с 0xAC. Кадр версии 1 начинается со старшего байта длины,
+            // а он всегда 0 (кадры меньше 16 МБ). Тег двоичного кадра нулём не бывает, а с байтом 0xAC
+            // у него был бы код типа 44 - такого типа нет.
+            byte first = in.get(in.position());
+            version = first == STREAM_MAGIC_FIRST_BYTE ? VERSION_LEGACY
+                    : first == 0 ? VERSION_OBJECT_STREAM : VERSION_BINARY;
+        }
+        return switch (version) {
+            case VERSION_BINARY -> binaryCodec.decode(in);
+            case VERSION_OBJECT_STREAM -> objectStreamCodec.decode(in);
+            default -> null; // Версия 0: соединение читает поток само (isLegacy()).
+        };
+    }
+
+    // Маска возможностей из списка имён через запятую. Незнакомые имена пропускаются.
+    public static int parseFeatures(String list) {
+        int features = 0;
+        if (list == null)
+            return features;
+        for (String name : list.split(",")) {
+            for (int i = 0; i < FEATURE_NAMES.length; i++) {
+                if (FEATURE_NAMES[i].equals(name.trim()))
+                    features |= 1 << i;
+            }
+        }
+        return features;
+    }
+
+    // Список имён возможностей через запятую или null, если возможностей нет.
+    public static String formatFeatures(int features) {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < FEATURE_NAMES.length; i++) {
+            if ((features & (1 << i)) == 0)
+                continue;
+            if (!list.isEmpty())
+                list.append(',');
+            list.append(FEATURE_NAMES[i]);
+        }
+        return list.isEmpty() ? null : list.toString();
+    }
+
+    // Поддерживает ли собеседник двоичный протокол, судя по данным запроса имени.
+    public static boolean supportsBinary(Message nameRequest) {
+        String data = nameRequest.getData();
+        if (data == null)
+            return false; // Старый сервер не сообщает версию.
+        try {
+            return Integer.parseInt(data.trim()) >= VERSION_BINARY;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.ProtocolCodec" выбирает версию протокола соединения и делегирует кодирование
+ *   server.ObjectStreamCodec (версия 1) или server.BinaryMessageCodec (версия 2).
+ *
+ *   Согласование версии происходит во время регистрации:
+ *   - сервер отправляет NAME_REQUEST так же, как сервер первой версии чата: потоком объектов без кадров
+ *     (версия 0), а в данных сообщения указывает максимальную поддерживаемую версию ("2").
+ *     Старые клиенты данные запроса имени игнорируют;
+ *   - новый клиент узнаёт поток объектов по первому байту 0xAC, а увидев версию 2, переключает своё
+ *     соединение и отвечает USER_NAME уже в двоичном виде; старый клиент отвечает как раньше, своим
+ *     потоком объектов;
+ *   - сервер определяет версию по первому байту ответа и дальше говорит с клиентом на ней же.
+ *     Поток объектов без кадров соединения читают через ObjectStreamCodec.legacyInput(): длины
+ *     у таких сообщений нет, и их нельзя достать из буфера по одному, как кадры.
+ *
+ *   Кроме версии, сервер перечисляет в поле target запроса имени дополнительные возможности
+ *   (например, "roster"), а клиент в поле target ответа USER_NAME - те из них, которые понимает.
+ *   Сервер включает возможность только для клиентов, которые её запросили, поэтому старые клиенты
+ *   получают прежние сообщения.
+ *
+ *   Возможность "deflate" разрешает отправлять собеседнику большие кадры версии 2 сжатыми
+ *   (см. server.BinaryMessageCodec). Принимать сжатые кадры кодек умеет всегда, а сжимает только
+ *   после setDeflateThreshold(), поэтому старый клиент сжатых кадров не получает.
+ *
+ *   Новый клиент и старый сервер тоже договорятся: старый сервер не указывает версию в NAME_REQUEST,
+ *   и клиент остаётся на его потоке объектов без кадров.
+ *
+ */
@@ -0,0 +1,89 @@
+package server;
+
+public class RateLimits {
+    private final long messagesPerSecond; // 0 - без ограничения.
+    private final long bytesPerSecond; // 0 - без ограничения.
+    private final int maxTextLength; // Наибольшая длина текста сообщения в символах, 0 - без ограничения.
+    private final TokenBucket fanout; // Общий на сервер бюджет доставок в секунду, null - без ограничения.
+    private final boolean disconnect; // Отключать ли клиента, превысившего свои ограничения.
+
+    public RateLimits(long messagesPerSecond, long bytesPerSecond, int maxTextLength, long fanoutPerSecond,
+                      boolean disconnect) {
+        this.messagesPerSecond = messagesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxTextLength = maxTextLength;
+        this.fanout = fanoutPerSecond > 0 ? new TokenBucket(fanoutPerSecond, fanoutPerSecond) : null;
+        this.disconnect = disconnect;
+    }
+
+    // Ограничения из settings.json.
+    public static RateLimits fromSettings() {
+        return new RateLimits(ServerSettings.getRateLimitMessagesPerSecond(), ServerSettings.getRateLimitBytesPerSecond(),
+                ServerSettings.getMaxTextLength(), ServerSettings.getFanoutPerSecond(), ServerSettings.isRateLimitDisconnect());
+    }
+
+    // Ведра участника создаются один раз, при регистрации. Вместимость - секунда на полной скорости.
+    public void attach(Session connection) {
+        connection.messageLimit = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, messagesPerSecond) : null;
+        connection.byteLimit = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+    }
+
+    // Очередное сообщение участника укладывается в его частоту сообщений и байт.
+    public boolean admit(Session connection) {
+        TokenBucket messages = connection.messageLimit;
+        if (messages != null && !messages.tryAcquire(1)) {
+            Metrics.LIMITED_MESSAGES.increment();
+            return false;
+        }
+        TokenBucket bytes = connection.byteLimit;
+        if (bytes != null && !bytes.tryAcquire(connection.getReceivedFrameLength())) {
+            Metrics.LIMITED_BYTES.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // Текст не длиннее maxTextLength символов.
+    public boolean admitText(String text) {
+        if (maxTextLength > 0 && text != null && text.length() > maxTextLength) {
+            Metrics.LIMITED_SIZE.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // Рассылка recipients получателям укладывается в общий бюджет сервера. Рассылка больше всего
+    // бюджета стоит весь бюджет, иначе в очень большом чате нельзя было бы отправить ничего.
+    public boolean admitFanout(int recipients) {
+        if (fanout == null || fanout.tryAcquire(Math.min(recipients, fanout.getCapacity())))
+            return true;
+        Metrics.LIMITED_FANOUT.increment();
+        return false;
+    }
+
+    public boolean isDisconnect() {
+        return disconnect;
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.RateLimits" - защита сервера от слишком частых и слишком больших сообщений.
+ *
+ *   Каждое сообщение общего чата сервер рассылает всем участникам, поэтому один клиент, отправляющий
+ *   сообщения так быстро, как может, заставляет сервер писать в N раз больше. Ограничения:
+ *
+ *   - частота сообщений и байт каждого участника (rateLimitMessagesPerSecond, rateLimitBytesPerSecond) -
+ *     два ведра жетонов (server.TokenBucket) в его соединении;
+ *   - длина текста сообщения (maxTextLength) - проверяется до рассылки;
+ *   - общий бюджет доставок сервера в секунду (fanoutPerSecond): сообщение общего чата стоит столько
+ *     доставок, сколько в чате участников. Когда бюджет исчерпан, сообщения отбрасываются, пока он
+ *     не восстановится, - сервер не копит в очередях больше, чем успевает отправить.
+ *
+ *   Превышения считаются в метрике chat_rate_limited_total по причинам. Сообщение сверх ограничений
+ *   участника отбрасывается, а если включено rateLimitDisconnect - участник отключается.
+ *   Проверка - несколько сравнений и compareAndSet() без создания объектов, её можно делать для каждого
+ *   сообщения.
+ *
+ */
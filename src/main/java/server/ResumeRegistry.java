@@ -0,0 +1,120 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public class ResumeRegistry {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long timeoutMillis;
+    private final Consumer<String> onExpired; // Вызывается, если участник не вернулся вовремя.
+    // Нормализованное имя (server.UserRegistry.normalize) -> сессия участника.
+    private final ConcurrentHashMap<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "resume-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ResumeRegistry(long timeoutMillis, Consumer<String> onExpired) {
+        this.timeoutMillis = timeoutMillis;
+        this.onExpired = onExpired;
+    }
+
+    // Сессия участника, по токену которой можно вернуться после обрыва связи.
+    private static class Ticket {
+        final String token;
+        final int features; // Возможности протокола, о которых договорились при регистрации.
+        Session connection; // null, пока участник отключён и ждёт переподключения.
+        ScheduledFuture<?> expiry;
+        boolean expired;
+
+        Ticket(String token, Session connection) {
+            this.token = token;
+            this.features = connection.getFeatures();
+            this.connection = connection;
+        }
+    }
+
+    // Новая сессия для только что зарегистрированного участника. Возвращает токен для возобновления.
+    public String issue(String userName, Session connection) {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        tickets.put(UserRegistry.normalize(userName), new Ticket(token, connection));
+        return token;
+    }
+
+    // Соединение участника закрылось. Возвращает true, если его сессия ждёт переподключения,
+    // и false, если сессии нет или её уже заняло другое соединение (участник вернулся раньше,
+    // чем сервер заметил обрыв старого).
+    public boolean detach(String userName, Session connection) {
+        Ticket ticket = tickets.get(UserRegistry.normalize(userName));
+        if (ticket == null)
+            return false;
+        synchronized (ticket) {
+            if (ticket.connection != connection || ticket.expired)
+                return false;
+            ticket.connection = null;
+            ticket.expiry = timer.schedule(() -> expire(userName, ticket), timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+    }
+
+    // Возобновление сессии новым соединением. Возвращает false, если токен не подходит или сессия истекла.
+    // Новое соединение получает возможности протокола, о которых клиент договорился при регистрации.
+    public boolean resume(String userName, String token, Session connection) {
+        Ticket ticket = userName != null ? tickets.get(UserRegistry.normalize(userName)) : null;
+        if (ticket == null || !ticket.token.equals(token))
+            return false;
+        synchronized (ticket) {
+            if (ticket.expired)
+                return false;
+            if (ticket.expiry != null) {
+                ticket.expiry.cancel(false);
+                ticket.expiry = null;
+            }
+            ticket.connection = connection;
+            connection.setFeatures(ticket.features);
+            return true;
+        }
+    }
+
+    // Имя занято участником, который отключился и ещё может вернуться.
+    public boolean isReserved(String userName) {
+        return tickets.containsKey(UserRegistry.normalize(userName));
+    }
+
+    private void expire(String userName, Ticket ticket) {
+        synchronized (ticket) {
+            if (ticket.connection != null || ticket.expired)
+                return;
+            ticket.expired = true;
+            tickets.remove(UserRegistry.normalize(userName), ticket);
+        }
+        onExpired.accept(userName);
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.ResumeRegistry" - короткоживущие сессии участников для переподключения.
+ *
+ *   При регистрации участник получает случайный токен (в данных NAME_ACCEPTED). Если соединение
+ *   обрывается, сервер не удаляет участника сразу: имя остаётся за ним resumeTimeoutMs миллисекунд,
+ *   и остальные не получают USER_REMOVED. Вернувшийся клиент присылает RESUME с именем, токеном
+ *   и номером последнего полученного сообщения - и получает только пропущенные сообщения из истории
+ *   (server.MessageStore), без повторной рассылки USER_ADDED и списка участников.
+ *
+ *   Если клиент не вернулся вовремя, срабатывает таймер, и участник удаляется обычным путём.
+ *   Переходы состояния одной сессии выполняются под её монитором, поэтому возобновление и истечение
+ *   срока не могут сработать одновременно.
+ *
+ */
@@ -0,0 +1,113 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class RoomRegistry {
+    static final int MAX_ROOM_NAME_LENGTH = 64; // Ограничение длины имени комнаты.
+
+    // Комната -> участники комнаты (имя -> соединение). Пустых комнат в словаре нет.
+    private final ConcurrentHashMap<String, Map<String, Session>> rooms = new ConcurrentHashMap<>();
+    // Участник -> комнаты, в которых он состоит. Нужен, чтобы при отключении не обходить все комнаты.
+    private final ConcurrentHashMap<String, Set<String>> roomsByUser = new ConcurrentHashMap<>();
+
+    // Проверка имени комнаты, присланного клиентом. Перевод строки разделяет имена в ответе ROOM_LIST.
+    public static boolean isValidName(String room) {
+        return room != null && !room.isBlank() && room.length() <= MAX_ROOM_NAME_LENGTH && room.indexOf('\n') < 0;
+    }
+
+    // Добавление участника в комнату. Возвращает false, если он уже в ней.
+    public boolean join(String room, String userName, Session connection) {
+        boolean[] added = new boolean[1];
+        rooms.compute(room, (name, members) -> { // Атомарно для одной комнаты, другие комнаты не блокируются.
+            if (members == null)
+                members = new ConcurrentHashMap<>();
+            added[0] = members.putIfAbsent(userName, connection) == null;
+            return members;
+        });
+        if (added[0])
+            roomsByUser.computeIfAbsent(userName, name -> ConcurrentHashMap.newKeySet()).add(room);
+        return added[0];
+    }
+
+    // Удаление участника из комнаты. Опустевшая комната удаляется в той же атомарной операции.
+    public boolean leave(String room, String userName) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(userName) != null;
+            return members.isEmpty() ? null : members;
+        });
+        if (removed[0]) {
+            roomsByUser.computeIfPresent(userName, (name, userRooms) -> {
+                userRooms.remove(room);
+                return userRooms.isEmpty() ? null : userRooms;
+            });
+        }
+        return removed[0];
+    }
+
+    // Удаление участника из всех его комнат. Возвращает комнаты, из которых он вышел.
+    public List<String> leaveAll(String userName) {
+        Set<String> userRooms = roomsByUser.remove(userName);
+        if (userRooms == null)
+            return Collections.emptyList();
+        List<String> left = new ArrayList<>(userRooms.size());
+        for (String room : userRooms) {
+            boolean[] removed = new boolean[1];
+            rooms.computeIfPresent(room, (name, members) -> {
+                removed[0] = members.remove(userName) != null;
+                return members.isEmpty() ? null : members;
+            });
+            if (removed[0])
+                left.add(room);
+        }
+        return left;
+    }
+
+    // Соединения участников комнаты. Пустая коллекция, если комнаты нет.
+    public Collection<Session> members(String room) {
+        Map<String, Session> members = rooms.get(room);
+        return members != null ? members.values() : Collections.emptyList();
+    }
+
+    // Имена участников комнаты.
+    public Set<String> memberNames(String room) {
+        Map<String, Session> members = rooms.get(room);
+        return members != null ? members.keySet() : Collections.emptySet();
+    }
+
+    public boolean isMember(String room, String userName) {
+        Map<String, Session> members = rooms.get(room);
+        return members != null && members.containsKey(userName);
+    }
+
+    // Имена существующих (непустых) комнат.
+    public Set<String> roomNames() {
+        return rooms.keySet();
+    }
+
+    public int roomCount() {
+        return rooms.size();
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.RoomRegistry" - реестр комнат чата и их участников.
+ *
+ *   Для каждой комнаты хранится словарь её участников, поэтому сообщение в комнату рассылается
+ *   только её участникам, не обходя всех подключённых клиентов из реестра участников (server.UserRegistry).
+ *   Обратный индекс "участник -> комнаты" позволяет при отключении выйти только из своих комнат.
+ *
+ *   Общей блокировки нет: вход и выход выполняются методами compute() словаря ConcurrentHashMap,
+ *   которые блокируют только одну комнату. Поэтому десятки тысяч комнат могут одновременно
+ *   наполняться и пустеть, а комната, из которой вышел последний участник, удаляется той же
+ *   операцией и не может "потерять" участника, который в этот момент входит в неё.
+ *
+ */
@@ -0,0 +1,530 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+public class SearchIndex implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+
+    static final int FLUSH_MESSAGES = 65_536; // Сколько сообщений копится в памяти до записи сегмента.
+    static final int MERGE_FACTOR = 4; // Столько сегментов одного уровня сливаются в один следующего уровня.
+    static final int MIN_TERM_LENGTH = 2;
+    static final int MAX_TERM_LENGTH = 64; // Более длинные слова обрезаются.
+    private static final int BATCH_SIZE = 1024; // Сколько сообщений истории индексируется за один захват блокировки.
+    private static final long RETRY_MIN_NANOS = TimeUnit.SECONDS.toNanos(1); // Пауза после ошибки индексатора,
+    private static final long RETRY_MAX_NANOS = TimeUnit.MINUTES.toNanos(1); // растёт вдвое до этой.
+    private static final int MAGIC = 0x53524348; // "SRCH"
+    private static final String SUFFIX = ".idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final MessageStore history;
+    private final int flushMessages;
+    // Запись - поток-индексатор и замена сегментов после слияния, чтение - поиск.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Map<String, Postings> memory = new HashMap<>(); // Ещё не записанные слова. Меняет только индексатор.
+    private int memoryMessages;
+    private long memoryFirstSequence; // Номер первого сообщения в памяти, 0 - в памяти пусто.
+    private volatile List<Segment> segments = List.of(); // По возрастанию номеров, меняется под lock.
+    private volatile long indexedSequence; // Последнее сообщение истории, которое уже в индексе.
+    private volatile Thread indexer; // Запускается в start().
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "search-merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed;
+
+    private SearchIndex(Path directory, MessageStore history, int flushMessages) throws IOException {
+        this.directory = directory;
+        this.history = history;
+        this.flushMessages = flushMessages;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    // Индекс по настройкам из settings.json.
+    public static SearchIndex open(Path directory, MessageStore history) throws IOException {
+        return open(directory, history, FLUSH_MESSAGES);
+    }
+
+    // Индекс с сегментами по flushMessages сообщений. Потоки запускаются, когда индекс уже собран.
+    static SearchIndex open(Path directory, MessageStore history, int flushMessages) throws IOException {
+        SearchIndex index = new SearchIndex(directory, history, flushMessages);
+        index.start();
+        return index;
+    }
+
+    private void start() {
+        Thread thread = new Thread(this::indexLoop, "search-indexer");
+        thread.setDaemon(true);
+        indexer = thread;
+        thread.start();
+        merger.execute(this::merge); // Слияние могло прерваться при остановке сервера.
+    }
+
+    // В историю добавлено сообщение. Рассылка только будит индексатор: слова разбирает он сам,
+    // читая историю, поэтому к задержке рассылки индекс ничего не добавляет и ничего не теряет.
+    public void changed() {
+        LockSupport.unpark(indexer);
+    }
+
+    public long getIndexedSequence() {
+        return indexedSequence;
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    // Не больше limit самых новых сообщений, в которых есть все слова запроса, от новых к старым.
+    public List<Message> search(String query, int limit) throws IOException {
+        Set<String> terms = new LinkedHashSet<>(tokenize(query));
+        if (terms.isEmpty() || limit <= 0)
+            return List.of();
+        List<long[]> lists = new ArrayList<>(terms.size());
+        lock.readLock().lock();
+        try {
+            for (String term : terms) {
+                long[] postings = postings(term);
+                if (postings.length == 0)
+                    return List.of();
+                lists.add(postings);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lists.sort(Comparator.comparingInt(postings -> postings.length));
+        List<Message> found = new ArrayList<>(Math.min(limit, lists.get(0).length));
+        long[] shortest = lists.get(0);
+        for (int i = shortest.length - 1; i >= 0 && found.size() < limit; i--) {
+            long sequence = shortest[i];
+            boolean all = true;
+            for (int j = 1; j < lists.size() && all; j++)
+                all = Arrays.binarySearch(lists.get(j), sequence) >= 0;
+            if (!all)
+                continue;
+            List<Message> messages = history.readAfter(sequence - 1, 1);
+            if (!messages.isEmpty() && messages.get(0).getSequence() == sequence) // Иначе удалено по сроку хранения.
+                found.add(messages.get(0));
+        }
+        return found;
+    }
+
+    // Номера сообщений со словом term по возрастанию: сегменты по порядку, затем память.
+    private long[] postings(String term) {
+        List<long[]> parts = new ArrayList<>();
+        int total = 0;
+        for (Segment segment : segments) {
+            long[] part = segment.postings(term);
+            if (part != null) {
+                parts.add(part);
+                total += part.length;
+            }
+        }
+        Postings recent = memory.get(term);
+        if (recent != null) {
+            parts.add(Arrays.copyOf(recent.sequences, recent.size));
+            total += recent.size;
+        }
+        if (parts.size() == 1)
+            return parts.get(0);
+        long[] all = new long[total];
+        int position = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, all, position, part.length);
+            position += part.length;
+        }
+        return all;
+    }
+
+    // Слова текста: буквы и цифры в нижнем регистре, от MIN_TERM_LENGTH символов.
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null)
+            return terms;
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (term.length() < MAX_TERM_LENGTH)
+                    term.appendCodePoint(Character.toLowerCase(codePoint));
+            } else {
+                if (term.length() >= MIN_TERM_LENGTH)
+                    terms.add(term.toString());
+                term.setLength(0);
+            }
+            i += i < text.length() ? Character.charCount(codePoint) : 1;
+        }
+        return terms;
+    }
+
+    private void indexLoop() {
+        long retry = RETRY_MIN_NANOS;
+        while (!closed) {
+            try {
+                if (indexedSequence >= history.getLastSequence()) {
+                    LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+                    continue;
+                }
+                List<Message> batch = history.readAfter(indexedSequence, BATCH_SIZE);
+                if (batch.isEmpty()) { // Начало истории удалено по сроку хранения.
+                    indexedSequence = Math.max(indexedSequence, history.getFirstSequence() - 1);
+                    continue;
+                }
+                index(batch);
+                if (memoryMessages >= flushMessages)
+                    flush();
+                retry = RETRY_MIN_NANOS;
+            } catch (IOException | RuntimeException e) { // Необработанное исключение молча остановило бы индексатор.
+                LOGGER.log(Level.WARNING, "Не удалось обновить поисковый индекс, повтор через "
+                        + TimeUnit.NANOSECONDS.toSeconds(retry) + " с", e);
+                LockSupport.parkNanos(this, retry);
+                retry = Math.min(retry * 2, RETRY_MAX_NANOS);
+            }
+        }
+    }
+
+    private void index(List<Message> batch) {
+        lock.writeLock().lock();
+        try {
+            for (Message message : batch) {
+                if (message.getType() != MessageType.TEXT)
+                    continue;
+                long sequence = message.getSequence();
+                for (String term : tokenize(message.getData()))
+                    memory.computeIfAbsent(term, key -> new Postings()).add(sequence);
+                if (memoryFirstSequence == 0)
+                    memoryFirstSequence = sequence;
+                memoryMessages++;
+            }
+            indexedSequence = batch.get(batch.size() - 1).getSequence();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Запись слов из памяти в новый сегмент нулевого уровня.
+    private void flush() throws IOException {
+        long first = memoryFirstSequence;
+        long last = indexedSequence;
+        TreeMap<String, long[]> sorted = new TreeMap<>();
+        for (Map.Entry<String, Postings> entry : memory.entrySet()) // Память меняет только этот поток.
+            sorted.put(entry.getKey(), Arrays.copyOf(entry.getValue().sequences, entry.getValue().size));
+        Segment segment = write(0, first, last, sorted);
+        lock.writeLock().lock();
+        try {
+            List<Segment> updated = new ArrayList<>(segments);
+            updated.add(segment);
+            segments = List.copyOf(updated);
+            memory = new HashMap<>();
+            memoryMessages = 0;
+            memoryFirstSequence = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOGGER.info("Записан сегмент поискового индекса " + first + "-" + last + ", слов: " + sorted.size());
+        merger.execute(this::merge);
+    }
+
+    // Слияние: пока есть MERGE_FACTOR соседних сегментов одного уровня, они заменяются одним.
+    // Сегменты покрывают непересекающиеся отрезки номеров, поэтому списки слова просто сцепляются.
+    // Номера сообщений, уже удалённых из истории по сроку хранения, при слиянии отбрасываются.
+    private void merge() {
+        while (!closed) {
+            List<Segment> current = segments;
+            int start = -1;
+            for (int i = 0; i + MERGE_FACTOR <= current.size() && start < 0; i++) {
+                int level = current.get(i).level;
+                boolean same = true;
+                for (int j = i + 1; j < i + MERGE_FACTOR && same; j++)
+                    same = current.get(j).level == level;
+                if (same)
+                    start = i;
+            }
+            if (start < 0)
+                return;
+            List<Segment> inputs = current.subList(start, start + MERGE_FACTOR);
+            long oldest = history.getFirstSequence();
+            TreeSet<String> terms = new TreeSet<>();
+            for (Segment segment : inputs)
+                terms.addAll(segment.dictionary.keySet());
+            TreeMap<String, long[]> merged = new TreeMap<>();
+            for (String term : terms) {
+                long[] postings = new long[16];
+                int size = 0;
+                for (Segment segment : inputs) {
+                    long[] part = segment.postings(term);
+                    if (part == null)
+                        continue;
+                    for (long sequence : part) {
+                        if (sequence < oldest)
+                            continue;
+                        if (size == postings.length)
+                            postings = Arrays.copyOf(postings, size * 2);
+                        postings[size++] = sequence;
+                    }
+                }
+                if (size > 0)
+                    merged.put(term, Arrays.copyOf(postings, size));
+            }
+            Segment output;
+            try {
+                output = write(inputs.get(0).level + 1, inputs.get(0).firstSequence,
+                        inputs.get(inputs.size() - 1).lastSequence, merged);
+            } catch (IOException e) {
+                LOGGER.warning("Не удалось слить сегменты поискового индекса: " + e.getMessage());
+                return;
+            }
+            lock.writeLock().lock();
+            try {
+                List<Segment> updated = new ArrayList<>(segments); // Индексатор мог добавить сегменты в конец.
+                int position = updated.indexOf(inputs.get(0));
+                updated.subList(position, position + MERGE_FACTOR).clear();
+                updated.add(position, output);
+                segments = List.copyOf(updated);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            for (Segment segment : inputs)
+                segment.delete();
+            Metrics.SEARCH_MERGES.increment();
+            LOGGER.info("Слиты сегменты поискового индекса " + output.firstSequence + "-" + output.lastSequence
+                    + ", уровень " + output.level + ", слов: " + merged.size());
+        }
+    }
+
+    // Файл сегмента: [MAGIC][уровень int][первый номер long][последний номер long][число слов int],
+    // затем по словам в порядке возрастания: [длина слова varint][слово UTF-8][число номеров varint]
+    // [длина списка в байтах varint][номера varint: первый - разность с первым номером сегмента, дальше - с предыдущим].
+    private Segment write(int level, long first, long last, TreeMap<String, long[]> terms) throws IOException {
+        Path file = directory.resolve(String.format("%020d-%020d", first, last) + SUFFIX);
+        Path temporary = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(level);
+            out.writeLong(first);
+            out.writeLong(last);
+            out.writeInt(terms.size());
+            for (Map.Entry<String, long[]> entry : terms.entrySet()) {
+                byte[] term = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                list.reset();
+                long previous = first;
+                for (long sequence : entry.getValue()) {
+                    writeVarLong(list, sequence - previous);
+                    previous = sequence;
+                }
+                writeVarLong(out, term.length);
+                out.write(term);
+                writeVarLong(out, entry.getValue().length);
+                writeVarLong(out, list.size());
+                list.writeTo(out);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new Segment(file);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalStateException("Повреждённое число в сегменте индекса");
+    }
+
+    // Открытие сегментов после перезапуска. Сегмент, отрезок которого целиком покрыт другим, остался
+    // от прерванного слияния и удаляется. Если индекс не согласуется с историей, он строится заново.
+    private void recover() throws IOException {
+        List<Segment> found = new ArrayList<>();
+        boolean broken = false;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.delete(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    try {
+                        found.add(new Segment(file));
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.warning("Повреждён сегмент поискового индекса " + name + ": " + e.getMessage());
+                        broken = true;
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong((Segment segment) -> segment.firstSequence)
+                .thenComparing(segment -> -segment.lastSequence));
+        List<Segment> kept = new ArrayList<>();
+        for (Segment segment : found) {
+            if (!kept.isEmpty() && segment.lastSequence <= kept.get(kept.size() - 1).lastSequence)
+                segment.delete();
+            else
+                kept.add(segment);
+        }
+        long last = kept.isEmpty() ? 0 : kept.get(kept.size() - 1).lastSequence;
+        if (broken || last > history.getLastSequence()) {
+            LOGGER.warning("Поисковый индекс не согласуется с историей и будет построен заново");
+            for (Segment segment : kept)
+                segment.delete();
+            kept.clear();
+            last = 0;
+        }
+        segments = List.copyOf(kept);
+        indexedSequence = last;
+    }
+
+    // Слова в памяти не сохраняются: после перезапуска индексатор заново прочитает их из истории.
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(indexer);
+        merger.shutdown();
+        try {
+            indexer.join(TimeUnit.SECONDS.toMillis(5));
+            merger.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Растущий список номеров одного слова в памяти.
+    private static class Postings {
+        long[] sequences = new long[4];
+        int size;
+
+        void add(long sequence) {
+            if (size > 0 && sequences[size - 1] == sequence)
+                return; // Слово повторяется в одном сообщении.
+            if (size == sequences.length)
+                sequences = Arrays.copyOf(sequences, size * 2);
+            sequences[size++] = sequence;
+        }
+    }
+
+    // Неизменяемый сегмент: файл отображён в память, словарь "слово -> позиция списка" загружен при открытии.
+    private static class Segment {
+        final Path file;
+        final MappedByteBuffer data;
+        final int level;
+        final long firstSequence;
+        final long lastSequence;
+        final Map<String, Integer> dictionary;
+
+        Segment(Path file) throws IOException {
+            this.file = file;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            try {
+                if (data.getInt(0) != MAGIC)
+                    throw new IOException("Неизвестный формат файла");
+                ByteBuffer in = data.duplicate().position(Integer.BYTES);
+                level = in.getInt();
+                firstSequence = in.getLong();
+                lastSequence = in.getLong();
+                int count = in.getInt();
+                dictionary = new HashMap<>(count * 4 / 3 + 1);
+                for (int i = 0; i < count; i++) {
+                    byte[] term = new byte[(int) readVarLong(in)];
+                    in.get(term);
+                    dictionary.put(new String(term, StandardCharsets.UTF_8), in.position());
+                    readVarLong(in);
+                    int length = (int) readVarLong(in);
+                    in.position(in.position() + length);
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException("Файл обрезан", e);
+            }
+        }
+
+        long[] postings(String term) {
+            Integer position = dictionary.get(term);
+            if (position == null)
+                return null;
+            ByteBuffer in = data.duplicate().position(position);
+            long[] sequences = new long[(int) readVarLong(in)];
+            readVarLong(in);
+            long sequence = firstSequence;
+            for (int i = 0; i < sequences.length; i++) {
+                sequence += readVarLong(in);
+                sequences[i] = sequence;
+            }
+            return sequences;
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(file); // Отображение в память остаётся у текущих читателей.
+            } catch (IOException e) {
+                LOGGER.warning("Не удалось удалить сегмент поискового индекса " + file + ": " + e.getMessage());
+            }
+        }
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.SearchIndex" - полнотекстовый поиск по истории общего чата.
+ *
+ *   Обратный индекс: для каждого слова хранится список номеров сообщений истории (server.MessageStore),
+ *   в которых оно встречается. Запрос SEARCH находит номера, общие для всех слов запроса, начиная
+ *   с самых новых, а сами сообщения читаются из истории. Ответ ограничен searchMaxResults сообщениями.
+ *
+ *   Рассылка только будит поток search-indexer (changed()), а он читает из истории всё, что ещё
+ *   не проиндексировано, поэтому задержка рассылки не растёт и индекс не пропускает сообщений, даже
+ *   если отстал. Новые слова копятся в памяти, а каждые FLUSH_MESSAGES сообщений записываются
+ *   в неизменяемый файл-сегмент. Номера в списке слова хранятся разностями с предыдущим в формате
+ *   varint, поэтому типичный номер занимает один-два байта.
+ *
+ *   Поток search-merger сливает MERGE_FACTOR соседних сегментов одного уровня в один сегмент
+ *   следующего уровня, так что сегментов остаётся O(log n), а каждый номер переписывается O(log n) раз.
+ *   Поиск и слияние не мешают друг другу: готовый сегмент подменяет исходные под короткой блокировкой.
+ *   После перезапуска индекс открывает сегменты и дочитывает историю с последнего записанного номера.
+ *
+ */
@@ -1,165 +1,979 @@
 package server;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.logging.FileHandler;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class Server {
-    public static Map<String, Connection> connectionMap = new ConcurrentHashMap<>();
-    // Ключом является имя клиента, а значением - соединение с ним.
+    static final UserRegistry users = new UserRegistry(); // Участники чата: имя -> соединение.
+    public static final RoomRegistry rooms = new RoomRegistry(); // Комнаты и их участники.
+    static final int MAX_ROOM_LIST_SIZE = 1000; // Сколько имён комнат отдаётся в ответ на ROOM_LIST.
+    static final int DEFAULT_HISTORY_COUNT = 50; // Сколько сообщений истории отдаётся, если клиент не указал.
+    static final int MAX_HISTORY_COUNT = 1000; // Больше сообщений истории за один запрос не отдаётся.
+    static final int DEFAULT_SEARCH_COUNT = 20; // Сколько найденных сообщений отдаётся, если клиент не указал.
+    static MessageStore history; // История общего чата, null - история не ведётся.
+    static ResumeRegistry resumes; // Сессии для переподключения, null - переподключение отключено.
+    static SearchIndex search; // Поиск по истории общего чата, null - поиск отключён.
+    static MailboxStore mailboxes; // Ящики участников, которых нет в чате, null - ящики не ведутся.
+    // Изменения списка участников для клиентов с возможностью "roster", рассылаются пакетами.
+    static PresenceBatcher presence = new PresenceBatcher(ServerSettings.getPresenceBatchMs(), Server::sendPresence);
+    // Сроки бездействия всех соединений: PING молчащим клиентам и отключение пропавших.
+    static IdleMonitor idle = new IdleMonitor(ServerSettings.getReadIdleTimeoutMs(), ServerSettings.getWriteIdleTimeoutMs());
+    static RateLimits limits = RateLimits.fromSettings(); // Ограничения частоты и размера сообщений.
+    static BroadcastFanout fanout = new BroadcastFanout(1); // Рассылка всем участникам, параллельная - после loadSettings.
+    static ClusterRelay cluster; // Связь с другими серверами кластера, null - сервер работает один.
+    static volatile boolean stopping; // Сервер останавливается: участники уходят без рассылки об этом.
+    private static volatile Closeable acceptor; // Закрытие прекращает приём новых соединений.
+    private static final CountDownLatch stopped = new CountDownLatch(1); // Остановка завершена.
+    // Рассылки идут по одной, поэтому номера сообщений приходят каждому получателю по порядку.
+    private static final ReentrantLock broadcastLock = new ReentrantLock();
+    // Номер последней рассылки, если история не ведётся. Меняется под broadcastLock.
+    private static volatile long broadcastSequence;
+    // Номера входов и выходов участников, которые клиенты с "roster" не получают, - для подсчёта отставания.
+    static final SkippedSequences rosterSkipped = new SkippedSequences(4096);
     private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
 
+    static {
+        Metrics.SERVER.gauge("chat_users", "Участников в чате", users::size);
+        Metrics.SERVER.gauge("chat_rooms", "Непустых комнат", rooms::roomCount);
+        Metrics.SERVER.gauge("chat_cluster_peers", "Соединений с другими узлами кластера",
+                () -> cluster != null ? cluster.peerCount() : 0);
+        Metrics.SERVER.gauge("chat_search_lag", "Сообщений истории, ещё не попавших в поисковый индекс",
+                () -> search != null && history != null ? history.getLastSequence() - search.getIndexedSequence() : 0);
+        Metrics.SERVER.gauge("chat_search_segments", "Сегментов поискового индекса",
+                () -> search != null ? search.segmentCount() : 0);
+        Metrics.SERVER.gauge("chat_delivery_lag_max",
+                "Наибольшее число отправленных участнику сообщений общего чата, получение которых он не подтвердил",
+                Server::maxDeliveryLag);
+    }
+
     public static void main(String[] args) {
 
+        loadSettings(args.length > 0 ? args[0] : "settings.json"); // Выбор транспорта, потоков и параметров журнала
         setupLogger(); // Логирование
+        openHistory(); // История сообщений
+        openSearch(); // Поисковый индекс по истории
+        openMailboxes(); // Ящики для ушедших участников
+        if (ServerSettings.getResumeTimeoutMs() > 0) // Переподключение с возобновлением сессии
+            resumes = new ResumeRegistry(ServerSettings.getResumeTimeoutMs(), Server::userRemoved);
+        presence = new PresenceBatcher(ServerSettings.getPresenceBatchMs(), Server::sendPresence);
+        idle = new IdleMonitor(ServerSettings.getReadIdleTimeoutMs(), ServerSettings.getWriteIdleTimeoutMs());
+        limits = RateLimits.fromSettings();
+        fanout = new BroadcastFanout(ServerSettings.getBroadcastShards());
+        startMetrics(); // Метрики по HTTP
+        startCluster(); // Соединения с другими узлами кластера
+        Runtime.getRuntime().addShutdownHook(new Thread(Server::shutdown, "shutdown")); // SIGTERM, Ctrl+C
 
         // Запуск сервера
-        ConsoleHelper.writeMessage("Введите порт сервера: 4444");
-        int port = ConsoleHelper.readInt();
+        int port = ServerSettings.getPort();
+        ConsoleHelper.writeMessage("Порт сервера: " + port);
+        if (ServerSettings.TRANSPORT_NIO.equals(ServerSettings.getTransport()))
+            runNioServer(port);
+        else
+            runBlockingServer(port);
+    }
+
+    // Блокирующий транспорт: отдельный поток на каждое соединение.
+    private static void runBlockingServer(int port) {
+        Executor handlerExecutor = handlerExecutor(ServerSettings.getThreads());
         try (ServerSocket serverSocket = new ServerSocket(port)) {
+            acceptor = serverSocket;
             ConsoleHelper.writeMessage("Чат-сервер запущен.");
-            LOGGER.info("Чат-сервер запущен.");
-            while (true) {
+            LOGGER.info("Чат-сервер запущен, потоки обработчиков: " + ServerSettings.getThreads());
+            while (!stopping) {
                 Socket socket = serverSocket.accept(); // Ожидаем входящее соединение.
-                new ServerHandler(socket).start();  // После того как соединение установлено - запускаем отдельный поток.
+                Metrics.CONNECTIONS.increment();
+                socket.setKeepAlive(true); // Пропавших клиентов без PING найдёт хотя бы TCP.
+                handlerExecutor.execute(new ServerHandler(socket, handlerExecutor));  // После того как соединение установлено - запускаем отдельный поток.
             }
         } catch (Exception e) {
+            if (stopping)
+                return; // accept() прерван закрытием сокета при остановке.
             LOGGER.log(Level.SEVERE,"Произошла ошибка при запуске или при работе сервера.");
             e.printStackTrace();
         }
     }
 
+    // Исполнитель обработчиков соединений: новый платформенный или виртуальный поток на каждую задачу.
+    static Executor handlerExecutor(String threads) {
+        if (ServerSettings.THREADS_VIRTUAL.equals(threads))
+            return task -> Thread.ofVirtual().start(task);
+        return task -> new Thread(task).start();
+    }
+
+    // Очередь исходящих кадров нового соединения по настройкам из settings.json.
+    static OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(ServerSettings.getOutboundQueueCapacity(), ServerSettings.getOverflowPolicy());
+    }
+
+    // Неблокирующий транспорт: соединения обслуживает пул циклов событий.
+    private static void runNioServer(int port) {
+        try (NioServer nioServer = new NioServer(port, ServerSettings.getEventLoops())) {
+            acceptor = nioServer::stopAccepting;
+            ConsoleHelper.writeMessage("Чат-сервер запущен (NIO).");
+            LOGGER.info("Чат-сервер запущен (NIO), циклов событий: " + ServerSettings.getEventLoops());
+            nioServer.run();
+            if (stopping) // Циклы событий нужны, пока очереди дописываются в сокеты.
+                stopped.await();
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE,"Произошла ошибка при запуске или при работе сервера.");
+            e.printStackTrace();
+        }
+    }
 
 
-    public static class ServerHandler extends Thread {
-        private Socket socket;
-        public ServerHandler(Socket socket) {
+
+    public static class ServerHandler implements Runnable {
+        private final Socket socket;
+        private final Connection connection; // Уже открытое соединение, если обработчик создан не для сокета.
+        // Исполнитель, на котором запущен обработчик: поток-писатель соединения запускается на нём же,
+        // поэтому с виртуальными потоками соединение не занимает ни одного платформенного потока.
+        private final Executor executor;
+        public ServerHandler(Socket socket, Executor executor) {
             this.socket = socket;
+            this.connection = null;
+            this.executor = executor;
+        }
+        ServerHandler(Connection connection, Executor executor) {
+            this.socket = null;
+            this.connection = connection;
+            this.executor = executor;
         }
         @Override
         public void run() {
-            ConsoleHelper.writeMessage("Установлено новое соединение с " + socket.getRemoteSocketAddress());
-            LOGGER.info("Установлено новое соединение с " + socket.getRemoteSocketAddress());
+            SocketAddress remoteAddress = socket != null
+                    ? socket.getRemoteSocketAddress() : connection.getRemoteSocketAddress();
+            ConsoleHelper.writeMessage("Установлено новое соединение с " + remoteAddress);
+            LOGGER.info("Установлено новое соединение с " + remoteAddress);
 
             String userName = null;
-            try (Connection connection = new Connection(socket)) {
+            Connection opened = null;
+            try (Connection connection = this.connection != null ? this.connection : new Connection(socket)) {
+                opened = connection;
+                connection.startWriter(executor, newOutboundQueue());
+                idle.watch(connection); // Клиент, пропавший без закрытия соединения, будет отключён.
                 userName = chatRegistration(connection);
-                LOGGER.info("Добавлен участник: " + userName);
-                sendBroadcastMessage(new Message(MessageType.USER_ADDED, userName));
-                notifyUsers(connection, userName);
                 serverMainLoop(connection, userName);
 
             } catch (IOException | ClassNotFoundException e) {
-                LOGGER.severe("Ошибка при обмене данных с " + socket.getRemoteSocketAddress());
-                e.printStackTrace();
-
+                if (!stopping) { // При остановке сервер закрывает соединения сам.
+                    LOGGER.severe("Ошибка при обмене данных с " + remoteAddress);
+                    e.printStackTrace();
+                }
             }
+            if (opened != null)
+                idle.unwatch(opened);
             if (userName != null) {
-                connectionMap.remove(userName);
-                LOGGER.info("Удалён участник: " + userName);
-                sendBroadcastMessage(new Message(MessageType.USER_REMOVED, userName));
+                userLeft(opened, userName);
             }
-            ConsoleHelper.writeMessage("Соединение с " + socket.getRemoteSocketAddress() + " закрыто");
-            LOGGER.info("Соединение с " + socket.getRemoteSocketAddress() + " закрыто");
+            ConsoleHelper.writeMessage("Соединение с " + remoteAddress + " закрыто");
+            LOGGER.info("Соединение с " + remoteAddress + " закрыто");
         }
 
-        // Регистрация в чате.
+        // Регистрация в чате или возобновление прерванной сессии.
         private String chatRegistration(Connection connection) throws IOException, ClassNotFoundException {
             while (true) {
-                connection.send(new Message(MessageType.NAME_REQUEST));
-                ConsoleHelper.writeMessage("Запрошено имя у " + connection.getRemoteSocketAddress());
-                LOGGER.info("Запрошено имя у " + connection.getRemoteSocketAddress());
+                requestUserName(connection);
                 Message message = connection.receive();
-                if (message.getType() != MessageType.USER_NAME) {
-                    ConsoleHelper.writeMessage("Получено сообщение от " + connection.getRemoteSocketAddress()
-                            + ". Тип сообщения не соответствует протоколу");
-                    LOGGER.warning("Получено сообщение от " + connection.getRemoteSocketAddress()
-                            + ". Тип сообщения не соответствует протоколу");
-                    continue;
-                }
-                String userName = message.getData();
-                if (userName.isEmpty()) {
-                    ConsoleHelper.writeMessage("Попытка подключения к серверу с пустым именем от "
-                            + connection.getRemoteSocketAddress());
-                    LOGGER.warning("Попытка подключения к серверу с пустым именем от "
-                            + connection.getRemoteSocketAddress());
-                    continue;
+                String userName = acceptUserName(connection, message);
+                if (userName != null) {
+                    if (message.getType() != MessageType.RESUME) // Вернувшегося участника остальные и так видят.
+                        userJoined(connection, userName);
+                    return userName;
                 }
-                if (Server.connectionMap.containsKey(userName)) {
-                    ConsoleHelper.writeMessage("Попытка подключения к серверу с уже используемым именем от "
-                            + connection.getRemoteSocketAddress());
-                    LOGGER.warning("Попытка подключения к серверу с уже используемым именем от "
-                            + connection.getRemoteSocketAddress());
-                    continue;
-                }
-                Server.connectionMap.put(userName, connection);
-                connection.send(new Message(MessageType.NAME_ACCEPTED));
-                ConsoleHelper.writeMessage("Имя принято у " + connection.getRemoteSocketAddress());
-                LOGGER.info("Имя принято у " + connection.getRemoteSocketAddress());
-                return userName;
             }
         }
 
-        // Уведомление пользователя о других участников чата.
-        private void notifyUsers(Connection connection, String userName) throws IOException {
-            for (String name : Server.connectionMap.keySet()) {
-                if (name.equals(userName))
+        // Основной цикл сервера.
+        protected void serverMainLoop(Connection connection, String userName) throws IOException, ClassNotFoundException {
+            while (true) {
+                processMessage(connection, userName, connection.receive());
+            }
+        }
+    }
+
+    // Запрос имени у нового соединения. В данных - максимальная версия протокола, которую поддерживает сервер,
+    // в target - дополнительные возможности протокола.
+    static void requestUserName(Session connection) throws IOException {
+        connection.send(new Message(MessageType.NAME_REQUEST,
+                ProtocolCodec.formatFeatures(serverFeatures()), String.valueOf(MessageCodec.VERSION_BINARY)));
+        ConsoleHelper.writeMessage("Запрошено имя у " + connection.getRemoteSocketAddress());
+        LOGGER.info("Запрошено имя у " + connection.getRemoteSocketAddress());
+    }
+
+    // Возможности протокола, которые сервер предлагает клиентам.
+    static int serverFeatures() {
+        return mailboxes != null ? ProtocolCodec.SERVER_FEATURES
+                : ProtocolCodec.SERVER_FEATURES & ~ProtocolCodec.FEATURE_MAILBOX;
+    }
+
+    // Проверка присланного имени. Возвращает принятое имя или null, если имя нужно запросить заново.
+    static String acceptUserName(Session connection, Message message) throws IOException {
+        if (message.getType() == MessageType.RESUME)
+            return resumeSession(connection, message);
+        if (message.getType() != MessageType.USER_NAME) {
+            ConsoleHelper.writeMessage("Получено сообщение от " + connection.getRemoteSocketAddress()
+                    + ". Тип сообщения не соответствует протоколу");
+            LOGGER.warning("Получено сообщение от " + connection.getRemoteSocketAddress()
+                    + ". Тип сообщения не соответствует протоколу");
+            Metrics.REJECTED_PROTOCOL.increment();
+            return null;
+        }
+        String userName = message.getData();
+        if (userName == null || userName.isEmpty() || userName.indexOf('\n') >= 0) { // Перевод строки разделяет имена в USER_LIST.
+            ConsoleHelper.writeMessage("Попытка подключения к серверу с пустым или недопустимым именем от "
+                    + connection.getRemoteSocketAddress());
+            LOGGER.warning("Попытка подключения к серверу с пустым или недопустимым именем от "
+                    + connection.getRemoteSocketAddress());
+            Metrics.REJECTED_INVALID.increment();
+            return null;
+        }
+        // Возможности протокола, которые запросил клиент, включаются до регистрации: после неё его уже видят рассылки.
+        connection.setFeatures(ProtocolCodec.parseFeatures(message.getTarget()) & serverFeatures());
+        connection.acknowledge(lastBroadcastSequence()); // Сообщения до входа участнику не положены.
+        if ((resumes != null && resumes.isReserved(userName)) || (cluster != null && cluster.isRemoteUser(userName))
+                || !users.claim(userName, connection)) {
+            ConsoleHelper.writeMessage("Попытка подключения к серверу с уже используемым именем от "
+                    + connection.getRemoteSocketAddress());
+            LOGGER.warning("Попытка подключения к серверу с уже используемым именем от "
+                    + connection.getRemoteSocketAddress());
+            Metrics.REJECTED_TAKEN.increment();
+            return null;
+        }
+        Metrics.REGISTRATIONS.increment();
+        registered(connection);
+        String token = resumes != null ? resumes.issue(userName, connection) : null;
+        connection.send(new Message(MessageType.NAME_ACCEPTED, token)); // Токен нужен клиенту для переподключения.
+        ConsoleHelper.writeMessage("Имя принято у " + connection.getRemoteSocketAddress());
+        LOGGER.info("Имя принято у " + connection.getRemoteSocketAddress());
+        return userName;
+    }
+
+    // Возобновление сессии: имя в target, токен в data, номер последнего полученного сообщения в sequence.
+    // Клиент получает только пропущенные сообщения, остальным участникам ничего не рассылается.
+    private static String resumeSession(Session connection, Message message) throws IOException {
+        String userName = message.getTarget();
+        if (resumes == null || !resumes.resume(userName, message.getData(), connection)) {
+            ConsoleHelper.writeMessage("Не удалось возобновить сессию " + userName + " для "
+                    + connection.getRemoteSocketAddress());
+            LOGGER.warning("Не удалось возобновить сессию " + userName + " для "
+                    + connection.getRemoteSocketAddress());
+            Metrics.REJECTED_RESUME.increment();
+            return null;
+        }
+        Metrics.RESUMES.increment();
+        connection.acknowledge(message.getSequence()); // Всё до этого номера клиент уже получил.
+        registered(connection);
+        connection.send(new Message(MessageType.NAME_ACCEPTED, message.getData()));
+        Session previous;
+        broadcastLock.lock(); // Пока догоняем пропущенное, новые рассылки ждут, чтобы не нарушить порядок.
+        try {
+            sendMissed(connection, message.getSequence());
+            previous = users.replace(userName, connection);
+            if (connection.hasFeature(ProtocolCodec.FEATURE_ROSTER)) // Изменения за время обрыва - новым списком.
+                sendUserList(connection);
+        } finally {
+            broadcastLock.unlock();
+        }
+        if (mailboxes != null) // Пропущенное в общем чате уже отправлено, из ящика - только личные сообщения.
+            mailboxes.deliver(userName, connection, null);
+        if (previous != null && previous != connection) { // Старое соединение ещё не заметило обрыв.
+            try {
+                previous.close();
+            } catch (IOException e) {
+                LOGGER.warning("Не удалось закрыть соединение с " + previous.getRemoteSocketAddress());
+            }
+        }
+        ConsoleHelper.writeMessage("Возобновлена сессия " + userName + " для " + connection.getRemoteSocketAddress());
+        LOGGER.info("Возобновлена сессия " + userName + " для " + connection.getRemoteSocketAddress());
+        return userName;
+    }
+
+    // Участник зарегистрирован или вернулся: с этого момента действуют его ограничения частоты сообщений.
+    // Молчащее соединение до регистрации закрывается всегда, а после неё - только если клиент
+    // отвечает на PING: старый клиент, который на PING не отвечает, был бы отключён в тихом чате.
+    private static void registered(Session connection) {
+        limits.attach(connection);
+        if (!connection.hasFeature(ProtocolCodec.FEATURE_HEARTBEAT))
+            idle.unwatch(connection);
+    }
+
+    // Пропущенные сообщения после afterSequence и HISTORY_END. Если пропущено больше, чем поместится
+    // в очередь соединения, отправляются только последние из них, а HISTORY_END несёт в target номер,
+    // после которого начат повтор: более ранние сообщения клиент может запросить через HISTORY_REQUEST.
+    private static void sendMissed(Session connection, long afterSequence) throws IOException {
+        MessageStore store = history;
+        if (store == null || afterSequence <= 0)
+            return;
+        long lastSequence = store.getLastSequence();
+        long from = Math.max(afterSequence, lastSequence - ServerSettings.getOutboundQueueCapacity() / 2);
+        String skippedUpTo = from > afterSequence ? String.valueOf(from) : null;
+        boolean roster = connection.hasFeature(ProtocolCodec.FEATURE_ROSTER); // Получит новый USER_LIST.
+        int sent = 0;
+        while (from < lastSequence) {
+            List<Message> messages = store.readAfter(from, MAX_HISTORY_COUNT);
+            if (messages.isEmpty())
+                break;
+            for (Message missed : messages) {
+                if (roster && isPresenceChange(missed))
                     continue;
-                connection.send(new Message(MessageType.USER_ADDED, name));
-                LOGGER.info("Уведомление пользователя "
-                        + connection.getRemoteSocketAddress()
-                        + " о других участников чата.");
+                connection.send(missed);
+                connection.markSent(missed.getSequence());
+                sent++;
             }
+            from = messages.get(messages.size() - 1).getSequence();
         }
+        connection.send(new Message(MessageType.HISTORY_END, skippedUpTo, null, lastSequence));
+        if (skippedUpTo != null)
+            LOGGER.info("Не повторены сообщения с " + (afterSequence + 1) + " по " + skippedUpTo
+                    + " для " + connection.getRemoteSocketAddress());
+        LOGGER.info("Отправлено пропущенных сообщений: " + sent + " для " + connection.getRemoteSocketAddress());
+    }
 
-        // Основной цикл сервера.
-        protected void serverMainLoop(Connection connection, String userName) throws IOException, ClassNotFoundException {
-            while (true) {
-                Message message = connection.receive();
-                if (message.getType() == MessageType.TEXT) {
-                    String data = message.getData();
+    // Участник зарегистрирован: сообщаем о нём остальным, а ему - о других участниках.
+    // Клиенты с возможностью "roster" получают весь список одним USER_LIST, а о новом участнике
+    // узнают из очередного пакета USER_PRESENCE. Остальным, как раньше, рассылается USER_ADDED.
+    static void userJoined(Session connection, String userName) throws IOException {
+        LOGGER.info("Добавлен участник: " + userName);
+        sendBroadcastMessage(new Message(MessageType.USER_ADDED, userName));
+        presence.changed(userName);
+        if (cluster != null)
+            cluster.publishUserAdded(userName);
+        if (connection.hasFeature(ProtocolCodec.FEATURE_ROSTER)) {
+            broadcastLock.lock(); // Список и пакеты изменений не должны обогнать друг друга.
+            try {
+                sendUserList(connection);
+            } finally {
+                broadcastLock.unlock();
+            }
+        } else {
+            notifyUsers(connection, userName);
+        }
+        if (mailboxes != null) // Накопленное без участника - после списка участников, в фоновом потоке.
+            mailboxes.deliver(userName, connection, history);
+    }
+
+    // Весь список участников одним сообщением, имена через перевод строки. Большой список сжимается кодеком.
+    private static void sendUserList(Session connection) throws IOException {
+        String names = String.join("\n", users.names());
+        if (cluster != null) {
+            Collection<String> remote = cluster.remoteUserNames();
+            if (!remote.isEmpty())
+                names = names.isEmpty() ? String.join("\n", remote) : names + "\n" + String.join("\n", remote);
+        }
+        connection.send(new Message(MessageType.USER_LIST, names));
+    }
+
+    // Пакет изменений списка участников: строка "+имя" для тех, кто в чате, и "-имя" для тех, кто его покинул.
+    // Участник, ожидающий переподключения, для остальных по-прежнему в чате.
+    static void sendPresence(List<String> names) {
+        StringBuilder changes = new StringBuilder();
+        broadcastLock.lock();
+        try {
+            for (String name : names) {
+                String current = users.nameOf(name);
+                if (current == null && cluster != null)
+                    current = cluster.remoteNameOf(name); // Участник другого узла кластера.
+                if (!changes.isEmpty())
+                    changes.append('\n');
+                if (current != null)
+                    changes.append('+').append(current);
+                else if (resumes != null && resumes.isReserved(name))
+                    changes.append('+').append(name);
+                else
+                    changes.append('-').append(name);
+            }
+            SharedFrame frame = new SharedFrame(new Message(MessageType.USER_PRESENCE, changes.toString()));
+            fanout.forEach(users.sessions(), connection -> {
+                if (connection.hasFeature(ProtocolCodec.FEATURE_ROSTER))
+                    sendFrame(connection, frame);
+            });
+        } finally {
+            broadcastLock.unlock();
+        }
+    }
+
+    // Уведомление пользователя о других участников чата.
+    private static void notifyUsers(Session connection, String userName) throws IOException {
+        for (String name : users.names()) {
+            if (name.equals(userName))
+                continue;
+            connection.send(new Message(MessageType.USER_ADDED, name));
+        }
+        if (cluster != null) {
+            for (String name : cluster.remoteUserNames())
+                connection.send(new Message(MessageType.USER_ADDED, name));
+        }
+        LOGGER.info("Уведомление пользователя "
+                + connection.getRemoteSocketAddress()
+                + " о других участников чата.");
+    }
+
+    // Обработка сообщения зарегистрированного участника.
+    static void processMessage(Session connection, String userName, Message message) {
+        if (!limits.admit(connection)) {
+            rejectFlood(connection, userName);
+            return;
+        }
+        switch (message.getType()) {
+            case TEXT -> {
+                String data = message.getData();
+                if (!limits.admitText(data)) {
+                    rejectFlood(connection, userName);
+                    return;
+                }
+                if (!limits.admitFanout(users.size())) // Сервер перегружен, отправитель не виноват.
+                    return;
+                if (LOGGER.isLoggable(Level.INFO)) // Строка для журнала строится, только если уровень включён.
                     LOGGER.info("Входящее сообщение от " + userName + ": " + data);
-                    sendBroadcastMessage(new Message(MessageType.TEXT, userName + ": " + data));
-                    LOGGER.info(userName + ": " + data);
-                } else {
-                    ConsoleHelper.writeMessage("Получено сообщение от " + connection.getRemoteSocketAddress()
-                            + ". Тип сообщения не соответствует протоколу.");
-                    LOGGER.warning("Получено сообщение от " + connection.getRemoteSocketAddress()
-                            + ". Тип сообщения не соответствует протоколу.");
+                String text = userName + ": " + data;
+                sendBroadcastMessage(new Message(MessageType.TEXT, text));
+                if (cluster != null) // Другие узлы разошлют сообщение своим участникам сами.
+                    cluster.publishText(text);
+            }
+            case ROOM_JOIN -> joinRoom(connection, userName, message.getTarget());
+            case ROOM_LEAVE -> leaveRoom(connection, userName, message.getTarget());
+            case ROOM_LIST -> listRoom(connection, message.getTarget());
+            case ROOM_TEXT -> sendRoomText(connection, userName, message.getTarget(), message.getData());
+            case PRIVATE_TEXT -> sendPrivateText(connection, userName, message.getTarget(), message.getData());
+            case HISTORY_REQUEST -> sendHistory(connection, message.getTarget(), message.getData());
+            case SEARCH -> sendSearchResults(connection, message.getTarget(), message.getData());
+            case ACK -> {
+                // Одна запись в поле соединения, без ответа. Номер больше отправленного бывает у клиента,
+                // пережившего перезапуск сервера без истории, - такое подтверждение ничего не говорит.
+                connection.acknowledge(Math.min(message.getSequence(), connection.getSentSequence()));
+                Metrics.ACKS_RECEIVED.increment();
+            }
+            case PING -> sendQuietly(connection, new Message(MessageType.PONG));
+            case PONG -> {
+                // Отметку о том, что клиент на связи, соединение уже обновило при чтении.
+            }
+            default -> {
+                ConsoleHelper.writeMessage("Получено сообщение от " + connection.getRemoteSocketAddress()
+                        + ". Тип сообщения не соответствует протоколу.");
+                LOGGER.warning("Получено сообщение от " + connection.getRemoteSocketAddress()
+                        + ". Тип сообщения не соответствует протоколу.");
+            }
+        }
+    }
+
+    // Сообщение сверх ограничений участника отбрасывается. Строка журнала на каждое такое сообщение
+    // пишется только на уровне FINE, чтобы поток сообщений не превратился в поток записей журнала.
+    // Если в settings.json включено rateLimitDisconnect, участник отключается.
+    private static void rejectFlood(Session connection, String userName) {
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.fine("Сообщение от " + userName + " отброшено: превышены ограничения");
+        if (!limits.isDisconnect())
+            return;
+        Metrics.RATE_LIMIT_DISCONNECTS.increment();
+        ConsoleHelper.writeMessage("Участник " + userName + " превысил ограничения и отключён");
+        LOGGER.warning("Участник " + userName + " превысил ограничения и отключён");
+        try {
+            connection.close(); // Участника удалит обработчик соединения, как при обычном отключении.
+        } catch (IOException e) {
+            LOGGER.warning("Не удалось закрыть соединение с " + connection.getRemoteSocketAddress());
+        }
+    }
+
+    // Вход в комнату: участники комнаты (и сам вошедший) узнают о нём, вошедший получает список участников.
+    private static void joinRoom(Session connection, String userName, String room) {
+        if (!checkRoomName(connection, room) || !rooms.join(room, userName, connection))
+            return;
+        LOGGER.info("Участник " + userName + " вошёл в комнату " + room);
+        sendRoomMessage(room, new Message(MessageType.ROOM_MEMBER_JOINED, room, userName));
+        sendQuietly(connection, new Message(MessageType.ROOM_LIST, room, String.join("\n", rooms.memberNames(room))));
+    }
+
+    // Выход из комнаты: оставшиеся участники и сам вышедший получают уведомление.
+    private static void leaveRoom(Session connection, String userName, String room) {
+        if (!checkRoomName(connection, room) || !rooms.leave(room, userName))
+            return;
+        LOGGER.info("Участник " + userName + " вышел из комнаты " + room);
+        Message left = new Message(MessageType.ROOM_MEMBER_LEFT, room, userName);
+        sendRoomMessage(room, left);
+        sendQuietly(connection, left);
+    }
+
+    // Без комнаты - список комнат (не больше MAX_ROOM_LIST_SIZE), с комнатой - список её участников.
+    private static void listRoom(Session connection, String room) {
+        String names;
+        if (room == null) {
+            StringBuilder list = new StringBuilder();
+            Iterator<String> iterator = rooms.roomNames().iterator();
+            for (int i = 0; i < MAX_ROOM_LIST_SIZE && iterator.hasNext(); i++) {
+                if (i > 0)
+                    list.append('\n');
+                list.append(iterator.next());
+            }
+            names = list.toString();
+        } else {
+            if (!checkRoomName(connection, room))
+                return;
+            names = String.join("\n", rooms.memberNames(room));
+        }
+        sendQuietly(connection, new Message(MessageType.ROOM_LIST, room, names));
+    }
+
+    // Сообщение в комнату рассылается только её участникам. Писать в комнату могут только они сами.
+    private static void sendRoomText(Session connection, String userName, String room, String data) {
+        if (!checkRoomName(connection, room))
+            return;
+        if (!rooms.isMember(room, userName)) {
+            LOGGER.warning("Участник " + userName + " пишет в комнату " + room + ", в которой не состоит.");
+            return;
+        }
+        if (!limits.admitText(data)) {
+            rejectFlood(connection, userName);
+            return;
+        }
+        if (!limits.admitFanout(rooms.members(room).size()))
+            return;
+        if (LOGGER.isLoggable(Level.INFO))
+            LOGGER.info("Входящее сообщение от " + userName + " в комнату " + room + ": " + data);
+        sendRoomMessage(room, new Message(MessageType.ROOM_TEXT, room, userName + ": " + data));
+    }
+
+    // Личное сообщение: получатель находится одним обращением к реестру участников, без рассылки.
+    // Отправитель получает подтверждение доставки или сообщение о том, что такого участника нет.
+    private static void sendPrivateText(Session connection, String userName, String recipient, String data) {
+        if (!limits.admitText(data)) {
+            rejectFlood(connection, userName);
+            return;
+        }
+        Session recipientConnection = recipient != null ? users.get(recipient) : null;
+        boolean delivered = false;
+        if (recipientConnection == null && recipient != null && mailboxes != null && mailboxes.isKnown(recipient)) {
+            MessageStore store = history;
+            mailboxes.store(recipient, new Message(MessageType.PRIVATE_TEXT, userName, data),
+                    store != null ? store.getLastSequence() : 0);
+            if (LOGGER.isLoggable(Level.INFO))
+                LOGGER.info("Личное сообщение от " + userName + " для " + recipient + " оставлено в ящике");
+            sendQuietly(connection, new Message(MessageType.PRIVATE_DELIVERED, recipient, "mailbox"));
+            return;
+        }
+        if (recipientConnection != null) {
+            try {
+                recipientConnection.send(new Message(MessageType.PRIVATE_TEXT, userName, data)); // В target - отправитель.
+                delivered = true;
+            } catch (IOException e) {
+                LOGGER.warning("Не получилось отправить сообщение " + recipientConnection.getRemoteSocketAddress());
+            }
+        }
+        if (LOGGER.isLoggable(Level.INFO))
+            LOGGER.info("Личное сообщение от " + userName + " для " + recipient
+                    + (delivered ? " передано" : " не доставлено"));
+        sendQuietly(connection, new Message(
+                delivered ? MessageType.PRIVATE_DELIVERED : MessageType.PRIVATE_UNKNOWN_RECIPIENT, recipient, null));
+    }
+
+    // Ответ на запрос истории: последние сообщения или сообщения после номера afterSequence,
+    // каждое со своим номером, и в конце HISTORY_END с номером последнего сообщения в истории.
+    private static void sendHistory(Session connection, String afterSequence, String count) {
+        MessageStore store = history;
+        long lastSequence = 0;
+        if (store != null) {
+            try {
+                int limit = count != null ? Math.min(Integer.parseInt(count), MAX_HISTORY_COUNT) : DEFAULT_HISTORY_COUNT;
+                lastSequence = store.getLastSequence();
+                List<Message> messages = afterSequence != null
+                        ? store.readAfter(Long.parseLong(afterSequence), limit)
+                        : store.readLast(limit);
+                for (Message message : messages) {
+                    connection.send(message);
                 }
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Получен запрос истории с недопустимым номером от " + connection.getRemoteSocketAddress());
+            } catch (IOException e) {
+                LOGGER.warning("Не получилось отправить историю " + connection.getRemoteSocketAddress());
             }
         }
+        sendQuietly(connection, new Message(MessageType.HISTORY_END, null, null, lastSequence));
     }
 
-    // Метод для отправки сообщения всем клиентам
-    private static void sendBroadcastMessage(Message message) {
-        for (Connection connection : connectionMap.values()) {
+    // Ответ на поиск: SEARCH с запросом в target и найденными сообщениями (от новых к старым,
+    // со своими номерами) в данных, в формате пачки MAILBOX. Без индекса ответ пустой.
+    private static void sendSearchResults(Session connection, String count, String query) {
+        long start = System.nanoTime();
+        List<Message> found = List.of();
+        SearchIndex index = search;
+        if (index != null) {
             try {
-                connection.send(message);
+                int limit = Math.min(count != null ? Integer.parseInt(count) : DEFAULT_SEARCH_COUNT,
+                        ServerSettings.getSearchMaxResults());
+                found = index.search(query, limit);
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Получен поисковый запрос с недопустимым числом от " + connection.getRemoteSocketAddress());
+            } catch (IOException e) {
+                LOGGER.warning("Не удалось выполнить поиск \"" + query + "\": " + e.getMessage());
+            }
+        }
+        Metrics.SEARCH_QUERIES.increment();
+        Metrics.SEARCH_TIME.recordNanos(System.nanoTime() - start);
+        if (LOGGER.isLoggable(Level.INFO))
+            LOGGER.info("Поиск \"" + query + "\" от " + connection.getRemoteSocketAddress() + ", найдено: " + found.size());
+        sendQuietly(connection, new Message(MessageType.SEARCH, query, MailboxStore.pack(found)));
+    }
+
+    private static boolean checkRoomName(Session connection, String room) {
+        if (RoomRegistry.isValidName(room))
+            return true;
+        ConsoleHelper.writeMessage("Получено сообщение от " + connection.getRemoteSocketAddress()
+                + " с недопустимым именем комнаты.");
+        LOGGER.warning("Получено сообщение от " + connection.getRemoteSocketAddress()
+                + " с недопустимым именем комнаты.");
+        return false;
+    }
+
+    private static void sendQuietly(Session connection, Message message) {
+        try {
+            connection.send(message);
+        } catch (IOException e) {
+            LOGGER.warning("Не получилось отправить сообщение " + connection.getRemoteSocketAddress());
+        }
+    }
+
+    // Участник отключился: убираем его и сообщаем остальным. Если он может переподключиться,
+    // остальным сообщается об этом только по истечении срока сессии.
+    static void userLeft(Session connection, String userName) {
+        if (!users.release(userName, connection))
+            return; // Участник уже вернулся через новое соединение.
+        if (stopping)
+            return; // Уходят все сразу, рассылать об этом некому.
+        if (mailboxes != null) // С этого сообщения участник начнёт догонять общий чат, если не вернётся сразу.
+            mailboxes.departed(userName, history != null ? history.getLastSequence() : 0);
+        for (String room : rooms.leaveAll(userName)) { // В комнатах об уходе узнают только их участники.
+            sendRoomMessage(room, new Message(MessageType.ROOM_MEMBER_LEFT, room, userName));
+        }
+        if (resumes != null && resumes.detach(userName, connection)) {
+            LOGGER.info("Участник " + userName + " отключился, ожидается переподключение");
+            return;
+        }
+        userRemoved(userName);
+    }
+
+    // Участник окончательно покинул чат.
+    static void userRemoved(String userName) {
+        LOGGER.info("Удалён участник: " + userName);
+        sendBroadcastMessage(new Message(MessageType.USER_REMOVED, userName));
+        presence.changed(userName);
+        if (cluster != null)
+            cluster.publishUserRemoved(userName);
+    }
+
+    // События других узлов кластера. Они рассылаются только участникам этого узла и дальше не пересылаются.
+    static final ClusterRelay.Listener CLUSTER_LISTENER = new ClusterRelay.Listener() {
+        @Override
+        public void remoteText(String text) {
+            sendBroadcastMessage(new Message(MessageType.TEXT, text)); // С записью в историю этого узла.
+        }
+
+        @Override
+        public void remoteUserAdded(String userName) {
+            LOGGER.info("Добавлен участник другого узла: " + userName);
+            sendBroadcastMessage(new Message(MessageType.USER_ADDED, userName));
+            presence.changed(userName);
+        }
+
+        @Override
+        public void remoteUserRemoved(String userName) {
+            LOGGER.info("Удалён участник другого узла: " + userName);
+            sendBroadcastMessage(new Message(MessageType.USER_REMOVED, userName));
+            presence.changed(userName);
+        }
+    };
+
+    // Рассылка сообщения участникам одной комнаты.
+    private static void sendRoomMessage(String room, Message message) {
+        sendToAll(new SharedFrame(message), rooms.members(room));
+    }
+
+    // Метод для отправки сообщения всем клиентам. Сообщение сохраняется в истории общего чата
+    // и получает номер, по которому клиент после переподключения запросит пропущенное.
+    // USER_ADDED и USER_REMOVED не отправляются клиентам с возможностью "roster": они получают пакеты USER_PRESENCE.
+    private static void sendBroadcastMessage(Message message) {
+        long start = System.nanoTime();
+        broadcastLock.lock();
+        try {
+            SharedFrame frame = null;
+            MessageStore store = history;
+            if (store != null) {
+                try {
+                    frame = store.append(message);
+                    if (search != null)
+                        search.changed(); // Индексатор прочитает сообщение из истории сам.
+                } catch (IOException e) {
+                    LOGGER.warning("Не удалось сохранить сообщение в историю: " + e.getMessage());
+                }
+            }
+            if (store == null) // Без истории номер выдаёт сам сервер, по порядку рассылок.
+                frame = new SharedFrame(new Message(message.getType(), message.getTarget(), message.getData(),
+                        ++broadcastSequence));
+            boolean presenceChange = isPresenceChange(message);
+            if (presenceChange && frame != null && frame.getMessage().getSequence() > 0)
+                rosterSkipped.add(frame.getMessage().getSequence());
+            sendToAll(frame != null ? frame : new SharedFrame(message), users.sessions(),
+                    presenceChange ? ProtocolCodec.FEATURE_ROSTER : 0);
+        } finally {
+            broadcastLock.unlock();
+        }
+        Metrics.BROADCAST_TIME.recordNanos(System.nanoTime() - start);
+    }
+
+    private static boolean isPresenceChange(Message message) {
+        return message.getType() == MessageType.USER_ADDED || message.getType() == MessageType.USER_REMOVED;
+    }
+
+    // Рассылка сообщения списку получателей. Сообщение кодируется один раз на всю рассылку.
+    private static void sendToAll(SharedFrame frame, Collection<Session> recipients) {
+        for (Session connection : recipients) {
+            sendFrame(connection, frame);
+        }
+    }
+
+    // Рассылка всем участникам: обход готового массива соединений из реестра, большого - в несколько потоков.
+    // Участники с возможностью skipFeature пропускаются, 0 - сообщение получают все.
+    private static void sendToAll(SharedFrame frame, Session[] recipients, int skipFeature) {
+        fanout.forEach(recipients, connection -> {
+            if (skipFeature == 0 || !connection.hasFeature(skipFeature))
+                sendFrame(connection, frame);
+        });
+    }
+
+    private static void sendFrame(Session connection, SharedFrame frame) {
+        try {
+            connection.send(frame);
+            long sequence = frame.getMessage().getSequence();
+            if (sequence > 0) // Отметка для подсчёта отставания доставки, сообщения комнат номеров не имеют.
+                connection.markSent(sequence);
+            if (LOGGER.isLoggable(Level.FINE)) { // Строка на каждого получателя - только в подробном журнале.
                 ConsoleHelper.writeMessage(connection.getRemoteSocketAddress()
-                        + " отправлено сообщение: " + message);
-                LOGGER.info(connection.getRemoteSocketAddress()
-                        + " отправлено сообщение: " + message);
+                        + " отправлено сообщение: " + frame.getMessage());
+                LOGGER.fine(connection.getRemoteSocketAddress()
+                        + " отправлено сообщение: " + frame.getMessage());
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Не получилось отправить сообщение " + connection.getRemoteSocketAddress());
+        }
+    }
+
+    private static void openSearch() {
+        if (ServerSettings.getSearchDir().isEmpty() || history == null)
+            return;
+        try {
+            search = SearchIndex.open(Path.of(ServerSettings.getSearchDir()), history);
+        } catch (IOException e) {
+            ConsoleHelper.writeMessage("Не удалось открыть поисковый индекс, поиск отключён.");
+            LOGGER.log(Level.SEVERE, "Не удалось открыть поисковый индекс " + ServerSettings.getSearchDir(), e);
+        }
+    }
+
+    private static void openMailboxes() {
+        if (ServerSettings.getMailboxDir().isEmpty())
+            return;
+        try {
+            mailboxes = MailboxStore.open(Path.of(ServerSettings.getMailboxDir()));
+        } catch (IOException e) {
+            ConsoleHelper.writeMessage("Не удалось открыть ящики участников, сообщения ушедшим не сохраняются.");
+            LOGGER.log(Level.SEVERE, "Не удалось открыть ящики участников " + ServerSettings.getMailboxDir(), e);
+        }
+    }
+
+    private static void openHistory() {
+        if (ServerSettings.getHistoryDir().isEmpty())
+            return;
+        try {
+            history = MessageStore.open(Path.of(ServerSettings.getHistoryDir()));
+        } catch (IOException e) {
+            ConsoleHelper.writeMessage("Не удалось открыть историю сообщений, история не ведётся.");
+            LOGGER.log(Level.SEVERE, "Не удалось открыть историю сообщений " + ServerSettings.getHistoryDir(), e);
+        }
+    }
+
+    private static void startMetrics() {
+        if (ServerSettings.getMetricsPort() <= 0)
+            return;
+        try {
+            HttpServer http = Metrics.SERVER.startHttpEndpoint(ServerSettings.getMetricsPort());
+            http.createContext("/delivery", exchange -> {
+                byte[] body = deliveryReport().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            LOGGER.info("Метрики доступны на http://127.0.0.1:" + ServerSettings.getMetricsPort() + "/metrics");
+        } catch (IOException e) {
+            ConsoleHelper.writeMessage("Не удалось запустить HTTP-сервер метрик.");
+            LOGGER.log(Level.SEVERE, "Не удалось запустить HTTP-сервер метрик на порту "
+                    + ServerSettings.getMetricsPort(), e);
+        }
+    }
+
+    // Номер последнего сообщения общего чата.
+    private static long lastBroadcastSequence() {
+        MessageStore store = history;
+        return store != null ? store.getLastSequence() : broadcastSequence;
+    }
+
+    // Наибольшее отставание доставки среди участников, которые подтверждают полученное.
+    static long maxDeliveryLag() {
+        long max = 0;
+        for (Session connection : users.sessions()) {
+            if (connection.hasFeature(ProtocolCodec.FEATURE_ACK))
+                max = Math.max(max, connection.deliveryLag());
+        }
+        return max;
+    }
+
+    // Отставание доставки по участникам, строка на участника: "имя sent=N acked=M lag=K".
+    // Старые клиенты, которые ACK не присылают, не перечисляются.
+    static String deliveryReport() {
+        StringBuilder report = new StringBuilder();
+        for (String name : users.names()) {
+            Session connection = users.get(name);
+            if (connection == null || !connection.hasFeature(ProtocolCodec.FEATURE_ACK))
+                continue;
+            report.append(name).append(" sent=").append(connection.getSentSequence())
+                    .append(" acked=").append(connection.getAcknowledgedSequence())
+                    .append(" lag=").append(connection.deliveryLag()).append('\n');
+        }
+        return report.toString();
+    }
+
+    // Остановка сервера (SIGTERM, Ctrl+C): новые соединения больше не принимаются, каждому участнику
+    // после уже поставленных в очередь сообщений уходит SERVER_SHUTDOWN, и сервер ждёт не дольше
+    // shutdownDrainMs, пока очереди допишутся в сокеты. Затем соединения закрываются, а история
+    // и журнал сбрасываются на диск.
+    static void shutdown() {
+        if (stopping)
+            return;
+        stopping = true;
+        ConsoleHelper.writeMessage("Сервер останавливается...");
+        LOGGER.info("Сервер останавливается");
+        try {
+            if (acceptor != null)
+                acceptor.close();
+        } catch (IOException e) {
+            LOGGER.warning("Не удалось закрыть серверный сокет: " + e.getMessage());
+        }
+        if (mailboxes != null) { // После перезапуска участники догонят то, что было без них.
+            for (String name : users.names())
+                mailboxes.departed(name, history != null ? history.getLastSequence() : 0);
+        }
+        int undrained = drain(users.sessions(), ServerSettings.getShutdownRetryAfterMs(), ServerSettings.getShutdownDrainMs());
+        if (cluster != null)
+            cluster.close();
+        idle.close();
+        fanout.close();
+        if (mailboxes != null)
+            mailboxes.close();
+        if (search != null)
+            search.close();
+        if (history != null)
+            history.close();
+        ConsoleHelper.writeMessage("Сервер остановлен.");
+        LOGGER.info("Сервер остановлен, соединений с недописанной очередью: " + undrained);
+        stopped.countDown();
+        for (Handler handler : LOGGER.getHandlers())
+            handler.close(); // Асинхронный журнал дописывает накопленные записи.
+    }
+
+    // Уведомление SERVER_SHUTDOWN, ожидание записи очередей не дольше drainMillis и закрытие соединений.
+    // Возвращает, у скольких соединений очередь не успела записаться.
+    static int drain(Session[] sessions, long retryAfterMillis, long drainMillis) {
+        SharedFrame notice = new SharedFrame(new Message(MessageType.SERVER_SHUTDOWN, String.valueOf(retryAfterMillis)));
+        broadcastLock.lock(); // Уведомление встаёт в очередь после уже начатых рассылок.
+        try {
+            for (Session connection : sessions) {
+                if (connection.hasFeature(ProtocolCodec.FEATURE_SHUTDOWN)) // Старый клиент такого сообщения не знает.
+                    sendFrame(connection, notice);
+            }
+        } finally {
+            broadcastLock.unlock();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        int undrained;
+        while (true) {
+            undrained = 0;
+            for (Session connection : sessions) {
+                if (!connection.isFlushed())
+                    undrained++;
+            }
+            if (undrained == 0 || System.nanoTime() - deadline >= 0)
+                break;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Session connection : sessions) {
+            try {
+                connection.close();
             } catch (IOException e) {
-                LOGGER.warning("Не получилось отправить сообщение " + connection.getRemoteSocketAddress());
-                e.printStackTrace();
+                LOGGER.warning("Не удалось закрыть соединение с " + connection.getRemoteSocketAddress());
             }
         }
+        return undrained;
+    }
+
+    // Файл настроек можно указать первым аргументом: так на одной машине запускается несколько узлов кластера.
+    private static void loadSettings(String fileName) {
+        try {
+            ServerSettings.loadFromFile(fileName);
+        } catch (IOException e) {
+            LOGGER.warning("Не удалось прочитать " + fileName + ", используются настройки по умолчанию.");
+        }
+    }
+
+    private static void startCluster() {
+        if (ServerSettings.getClusterPort() <= 0)
+            return;
+        String nodeId = ServerSettings.getNodeId().isEmpty()
+                ? ServerSettings.getHost() + ":" + ServerSettings.getClusterPort() : ServerSettings.getNodeId();
+        ClusterRelay relay = new ClusterRelay(nodeId, CLUSTER_LISTENER, users::names);
+        try {
+            relay.listen(ServerSettings.getClusterHost(), ServerSettings.getClusterPort());
+        } catch (IOException e) {
+            ConsoleHelper.writeMessage("Не удалось открыть порт кластера, сервер работает один.");
+            LOGGER.log(Level.SEVERE, "Не удалось открыть порт кластера " + ServerSettings.getClusterPort(), e);
+            return;
+        }
+        for (String peer : ServerSettings.getClusterPeers())
+            relay.connect(peer);
+        cluster = relay;
     }
 
     private static void setupLogger() {
-        FileHandler fileHandler = null;  // создаем обработчик файлового вывода
+        AsyncLogHandler logHandler = null;  // создаем асинхронный обработчик файлового вывода
         try {
-            fileHandler = new FileHandler("server.log", true);
+            logHandler = new AsyncLogHandler("server.log",
+                    ServerSettings.getLogQueueCapacity(), ServerSettings.getLogOverflowPolicy());
         } catch (IOException e) {
             LOGGER.severe("Ошибка при создании обработчика файлового вывода.");
+            return;
         }
+        LOGGER.setLevel(ServerSettings.getLogLevel());
         LOGGER.setUseParentHandlers(false); // отключаем логирование в консоль.
-        LOGGER.addHandler(fileHandler);  // добавляем обработчик в наш логгер
+        LOGGER.addHandler(logHandler);  // добавляем обработчик в наш логгер
     }
 }
 
@@ -180,23 +994,94 @@ public class Server {
  * Метод public static void main(String[] args) - главный метод класса,
  * который запускает сервер на заданном порту и ожидает входящих подключений.
  * При получении нового соединения создает новый объект класса Handler и запускает его в новом потоке.
+ * Параметр "threads" в settings.json выбирает, какие это потоки: "platform" (обычные потоки ОС)
+ * или "virtual" (виртуальные потоки Java 21, которые дёшево держать заблокированными в receive()).
+ *
+ * Если в settings.json указан "transport": "nio", вместо потоков на каждое соединение
+ * используется неблокирующий транспорт server.NioServer с пулом циклов событий.
+ * Регистрация и обработка сообщений вынесены в статические методы requestUserName, acceptUserName,
+ * userJoined, processMessage и userLeft, которые используют оба транспорта.
  *
  * Метод public static void sendBroadcastMessage(Message message) - метод для отправки сообщения всем клиентам,
- * используя их соединения из словаря connectionMap.
+ * используя их соединения из реестра users. Сообщение кодируется в server.SharedFrame один раз,
+ * и все клиенты с двоичным протоколом получают одни и те же байты. Большую аудиторию обходят
+ * параллельно несколько потоков (поле fanout, server.BroadcastFanout), и метод возвращается,
+ * когда кадр поставлен в очереди всех получателей.
+ *
+ * Поле rooms (server.RoomRegistry) хранит комнаты чата. Сообщения ROOM_JOIN, ROOM_LEAVE, ROOM_LIST
+ * и ROOM_TEXT несут имя комнаты в поле target, а сообщение в комнату и уведомления о входе и выходе
+ * (ROOM_MEMBER_JOINED, ROOM_MEMBER_LEFT) рассылаются только участникам этой комнаты.
+ *
+ * Личное сообщение PRIVATE_TEXT с именем получателя в поле target не проходит через рассылку:
+ * соединение получателя берётся из реестра users по имени, а отправителю приходит PRIVATE_DELIVERED
+ * или PRIVATE_UNKNOWN_RECIPIENT.
+ *
+ * Поле history (server.MessageStore) - история общего чата на диске. Каждое сообщение из
+ * sendBroadcastMessage дописывается в неё тем же закодированным кадром, что уходит клиентам.
+ * По запросу HISTORY_REQUEST клиент получает последние сообщения или сообщения после известного
+ * ему номера, чтобы увидеть то, что было отправлено без него.
+ *
+ * Поле search (server.SearchIndex) - обратный индекс по истории общего чата. На запрос SEARCH
+ * сервер отвечает самыми новыми сообщениями, где есть все слова запроса. Индекс обновляет свой поток,
+ * а рассылка только сообщает ему о новом сообщении.
+ *
+ * Поле mailboxes (server.MailboxStore) - ящики участников, которых нет в чате. Личное сообщение
+ * ушедшему участнику остаётся в его ящике, а при входе участник получает его вместе с пропущенными
+ * сообщениями общего чата пачками MAILBOX. Файлы ящиков пишет отдельный поток, рассылки их не трогают.
+ *
+ * Поле resumes (server.ResumeRegistry) позволяет клиенту вернуться после обрыва связи: при регистрации
+ * он получает токен, а при переподключении присылает RESUME с токеном и номером последнего сообщения.
+ * Пока срок сессии не истёк, имя остаётся за участником, и остальные не получают USER_REMOVED.
+ *
+ * Клиенты, запросившие при регистрации возможность "roster", получают список участников одним
+ * сообщением USER_LIST (большой список сжимается), а входы и выходы - пакетами USER_PRESENCE
+ * раз в presenceBatchMs миллисекунд (server.PresenceBatcher), а не отдельным сообщением на каждое событие.
+ *
+ * Поле idle (server.IdleMonitor) следит за сроками бездействия всех соединений на одном колесе таймеров.
+ * Клиенту с возможностью "heartbeat", которому сервер долго ничего не отправлял, уходит PING, а соединение,
+ * из которого readIdleTimeoutMs ничего не приходило, закрывается, и участник удаляется как при обычном
+ * отключении, с рассылкой USER_REMOVED.
+ *
+ * Поле limits (server.RateLimits) защищает рассылку от флуда: у каждого участника есть норма сообщений
+ * и байт в секунду, длина текста ограничена, а у сервера есть общий бюджет доставок в секунду.
+ * Сообщения сверх ограничений отбрасываются до рассылки, а участник может быть отключён.
+ *
+ * Поле cluster (server.ClusterRelay) объединяет несколько серверов в кластер: если в settings.json указан
+ * clusterPort, сервер принимает на нём (на адресе clusterHost) соединения других узлов и подключается
+ * к узлам из clusterPeers.
+ * Сообщение общего чата уходит другим узлам одним кадром, и каждый узел рассылает его только своим
+ * участникам. Участники других узлов видны в списке участников и занимают свои имена.
+ *
+ * Порт и остальные настройки читаются из settings.json, без вопросов в консоли, поэтому сервер можно
+ * запускать и перезапускать скриптом. При остановке (SIGTERM, Ctrl+C) метод shutdown() прекращает приём
+ * соединений, отправляет участникам SERVER_SHUTDOWN с советом, через сколько переподключаться,
+ * дописывает очереди исходящих сообщений не дольше shutdownDrainMs и закрывает соединения.
+ *
+ * Класс server.Metrics собирает метрики сервера: принятые и отправленные сообщения и байты, время
+ * записи кадров и рассылок, регистрации и отказы. Если в settings.json указан metricsPort,
+ * метод startMetrics() отдаёт их в формате Prometheus на http://127.0.0.1:metricsPort/metrics.
+ *
+ * Каждое сообщение общего чата получает номер: из истории, а если она не ведётся - от самого сервера.
+ * Клиент с возможностью "ack" время от времени присылает ACK с номером последнего полученного
+ * сообщения, один на все сообщения с прошлого подтверждения. Соединение хранит номер последнего
+ * отправленного и последнего подтверждённого сообщения, а их разницу - отставание доставки - показывают
+ * метрика chat_delivery_lag_max и страница http://127.0.0.1:metricsPort/delivery по каждому участнику.
  *
- * Класс private static class Handler extends Thread - вложенный класс, который обрабатывает подключения клиентов.
+ * Класс public static class ServerHandler implements Runnable - вложенный класс, который обрабатывает подключения клиентов.
  * Каждый объект класса Handler работает с одним клиентом и выполняет его регистрацию в чате,
  * обмен сообщениями и т.д. Каждый объект класса Handler работает в отдельном потоке.
  *
  * Метод private String chatRegistration(Connection connection) - метод для регистрации клиента в чате.
  * Метод запрашивает у клиента его имя и проверяет его на уникальность.
- * Если имя прошло проверку, клиент добавляется в словарь connectionMap.
+ * Если имя свободно, клиент занимает его в реестре users.
  * Если имя не прошло проверку, клиенту возвращается запрос на ввод имени заново.
  *
- * Метод public static Map<String, Connection> connectionMap - статическое поле,
- * которое содержит соединения с клиентами в виде словаря,
- * где ключом является имя клиента, а значением - соединение с ним.
+ * Поле static final UserRegistry users (server.UserRegistry) содержит соединения с клиентами,
+ * где ключом является имя клиента (без учёта регистра), а значением - соединение с ним.
+ * Имя занимается и освобождается атомарно, поэтому два клиента с одним именем не зарегистрируются оба.
  *
  * Поле private static final Logger LOGGER - объект класса Logger,
  * который используется для логирования событий сервера в файл server.log.
+ * Записи пишутся в файл асинхронно (server.AsyncLogHandler), по одной строке на запись.
+ * Строки "отправлено сообщение" для каждого получателя рассылки пишутся только на уровне FINE.
  */
\ No newline at end of file
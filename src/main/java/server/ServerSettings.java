@@ -3,12 +3,61 @@ package server;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class ServerSettings {
+    public static final String TRANSPORT_BLOCKING = "blocking"; // Поток на каждое соединение.
+    public static final String TRANSPORT_NIO = "nio"; // Неблокирующие каналы и пул циклов событий.
+
+    public static final String THREADS_PLATFORM = "platform"; // Обычные потоки ОС.
+    public static final String THREADS_VIRTUAL = "virtual"; // Виртуальные потоки Java 21.
+
     private static String host;
-    private static int port;
+    private static int port = 4444;
+    private static String transport = TRANSPORT_BLOCKING;
+    private static String threads = THREADS_PLATFORM;
+    private static int outboundQueueCapacity = 16_384;
+    private static OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DISCONNECT;
+    private static Level logLevel = Level.INFO;
+    private static int logQueueCapacity = 8192;
+    private static AsyncLogHandler.OverflowPolicy logOverflowPolicy = AsyncLogHandler.OverflowPolicy.DROP;
+    private static int eventLoops = Runtime.getRuntime().availableProcessors();
+    private static int broadcastShards = Runtime.getRuntime().availableProcessors();
+    private static String historyDir = "history";
+    private static int historySegmentSize = 16 * 1024 * 1024;
+    private static long historyRetentionBytes = 1024L * 1024 * 1024;
+    private static long historyRetentionHours = 24 * 7;
+    private static long historyFsyncIntervalMs = 1000;
+    private static String searchDir = "search";
+    private static int searchMaxResults = 100;
+    private static String mailboxDir = "mailbox";
+    private static long mailboxMaxBytes = 1024 * 1024;
+    private static long mailboxMaxAgeHours = 24 * 7;
+    private static int mailboxMaxMessages = 10_000;
+    private static long resumeTimeoutMs = 30_000;
+    private static int reconnectAttempts = 10;
+    private static long reconnectMaxDelayMs = 30_000;
+    private static long ackIntervalMs = 1000;
+    private static int metricsPort;
+    private static long presenceBatchMs = 100;
+    private static long readIdleTimeoutMs = 90_000;
+    private static long writeIdleTimeoutMs = 30_000;
+    private static long rateLimitMessagesPerSecond = 50;
+    private static long rateLimitBytesPerSecond = 256 * 1024;
+    private static int maxTextLength = 8192;
+    private static long fanoutPerSecond = 1_000_000;
+    private static boolean rateLimitDisconnect;
+    private static int compressionThreshold = 1024;
+    private static String nodeId = "";
+    private static String clusterHost = "127.0.0.1";
+    private static int clusterPort;
+    private static List<String> clusterPeers = List.of();
+    private static long shutdownDrainMs = 5000;
+    private static long shutdownRetryAfterMs = 2000;
 
     public static String getHost() {
         return host;
@@ -18,13 +67,244 @@ public class ServerSettings {
         return port;
     }
 
+    public static String getTransport() {
+        return transport;
+    }
+
+    public static String getThreads() {
+        return threads;
+    }
+
+    public static int getEventLoops() {
+        return eventLoops;
+    }
+
+    public static int getBroadcastShards() {
+        return broadcastShards;
+    }
+
+    public static int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public static OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public static Level getLogLevel() {
+        return logLevel;
+    }
+
+    public static int getLogQueueCapacity() {
+        return logQueueCapacity;
+    }
+
+    public static AsyncLogHandler.OverflowPolicy getLogOverflowPolicy() {
+        return logOverflowPolicy;
+    }
+
+    // Каталог истории сообщений. Пустая строка - история не ведётся.
+    public static String getHistoryDir() {
+        return historyDir;
+    }
+
+    public static int getHistorySegmentSize() {
+        return historySegmentSize;
+    }
+
+    public static long getHistoryRetentionBytes() {
+        return historyRetentionBytes;
+    }
+
+    public static long getHistoryRetentionHours() {
+        return historyRetentionHours;
+    }
+
+    public static long getHistoryFsyncIntervalMs() {
+        return historyFsyncIntervalMs;
+    }
+
+    public static String getSearchDir() {
+        return searchDir;
+    }
+
+    public static int getSearchMaxResults() {
+        return searchMaxResults;
+    }
+
+    public static String getMailboxDir() {
+        return mailboxDir;
+    }
+
+    public static long getMailboxMaxBytes() {
+        return mailboxMaxBytes;
+    }
+
+    public static long getMailboxMaxAgeHours() {
+        return mailboxMaxAgeHours;
+    }
+
+    public static int getMailboxMaxMessages() {
+        return mailboxMaxMessages;
+    }
+
+    // Сколько сервер ждёт переподключения участника. 0 - переподключение отключено.
+    public static long getResumeTimeoutMs() {
+        return resumeTimeoutMs;
+    }
+
+    public static int getReconnectAttempts() {
+        return reconnectAttempts;
+    }
+
+    public static long getReconnectMaxDelayMs() {
+        return reconnectMaxDelayMs;
+    }
+
+    // Как часто клиент подтверждает серверу полученное в общем чате (ACK). 0 - не подтверждает.
+    public static long getAckIntervalMs() {
+        return ackIntervalMs;
+    }
+
+    // Порт HTTP-сервера метрик на локальном адресе. 0 - метрики по HTTP не отдаются.
+    public static int getMetricsPort() {
+        return metricsPort;
+    }
+
+    // Сколько миллисекунд копить входы и выходы участников перед рассылкой USER_PRESENCE, 0 - не копить.
+    public static long getPresenceBatchMs() {
+        return presenceBatchMs;
+    }
+
+    // Сколько миллисекунд клиент может молчать, прежде чем сервер закроет соединение, 0 - сколько угодно.
+    public static long getReadIdleTimeoutMs() {
+        return readIdleTimeoutMs;
+    }
+
+    // Через сколько миллисекунд без исходящих кадров сервер отправляет клиенту PING, 0 - не отправляет.
+    public static long getWriteIdleTimeoutMs() {
+        return writeIdleTimeoutMs;
+    }
+
+    // Сколько сообщений в секунду может отправлять один участник, 0 - сколько угодно.
+    public static long getRateLimitMessagesPerSecond() {
+        return rateLimitMessagesPerSecond;
+    }
+
+    // Сколько байт в секунду может отправлять один участник, 0 - сколько угодно.
+    public static long getRateLimitBytesPerSecond() {
+        return rateLimitBytesPerSecond;
+    }
+
+    // Наибольшая длина текста сообщения в символах, 0 - без ограничения.
+    public static int getMaxTextLength() {
+        return maxTextLength;
+    }
+
+    // Сколько доставок сообщений всем получателям в секунду может выполнять сервер, 0 - сколько угодно.
+    public static long getFanoutPerSecond() {
+        return fanoutPerSecond;
+    }
+
+    // Отключать ли участника, превысившего ограничения, или только отбрасывать его сообщения.
+    public static boolean isRateLimitDisconnect() {
+        return rateLimitDisconnect;
+    }
+
+    // Данные кадра не короче этого числа символов сжимаются для клиентов с возможностью "deflate", 0 - не сжимать.
+    public static int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    // Имя этого сервера в кластере, пустое - имя строится из адреса и clusterPort.
+    public static String getNodeId() {
+        return nodeId;
+    }
+
+    // Адрес, на котором принимаются соединения других узлов кластера: адрес во внутренней сети узлов.
+    public static String getClusterHost() {
+        return clusterHost;
+    }
+
+    // Порт для соединений других узлов кластера, 0 - сервер работает один.
+    public static int getClusterPort() {
+        return clusterPort;
+    }
+
+    // Адреса "host:port" узлов кластера, к которым этот сервер подключается сам.
+    public static List<String> getClusterPeers() {
+        return clusterPeers;
+    }
+
+    // Сколько при остановке сервер ждёт, пока очереди исходящих сообщений допишутся в сокеты.
+    public static long getShutdownDrainMs() {
+        return shutdownDrainMs;
+    }
+
+    // Через сколько миллисекунд после остановки клиентам советуют переподключаться (SERVER_SHUTDOWN).
+    public static long getShutdownRetryAfterMs() {
+        return shutdownRetryAfterMs;
+    }
+
     public static void loadFromFile(String fileName) throws IOException {
         try {
             byte[] jsonData = Files.readAllBytes(Paths.get(fileName));
             ObjectMapper objectMapper = new ObjectMapper();
             JsonNode rootNode = objectMapper.readTree(jsonData);
             host = rootNode.get("host").asText();
-            port = rootNode.get("port").asInt();
+            port = rootNode.path("port").asInt(port);
+            transport = rootNode.path("transport").asText(TRANSPORT_BLOCKING);
+            threads = rootNode.path("threads").asText(THREADS_PLATFORM);
+            outboundQueueCapacity = rootNode.path("outboundQueueCapacity").asInt(outboundQueueCapacity);
+            if (rootNode.has("overflowPolicy"))
+                overflowPolicy = OutboundQueue.OverflowPolicy.fromSetting(rootNode.get("overflowPolicy").asText());
+            if (rootNode.has("logLevel"))
+                logLevel = Level.parse(rootNode.get("logLevel").asText().trim().toUpperCase());
+            logQueueCapacity = rootNode.path("logQueueCapacity").asInt(logQueueCapacity);
+            if (rootNode.has("logOverflowPolicy"))
+                logOverflowPolicy = AsyncLogHandler.OverflowPolicy.fromSetting(rootNode.get("logOverflowPolicy").asText());
+            historyDir = rootNode.path("historyDir").asText(historyDir);
+            historySegmentSize = rootNode.path("historySegmentSize").asInt(historySegmentSize);
+            historyRetentionBytes = rootNode.path("historyRetentionBytes").asLong(historyRetentionBytes);
+            historyRetentionHours = rootNode.path("historyRetentionHours").asLong(historyRetentionHours);
+            historyFsyncIntervalMs = rootNode.path("historyFsyncIntervalMs").asLong(historyFsyncIntervalMs);
+            searchDir = rootNode.path("searchDir").asText(searchDir);
+            searchMaxResults = rootNode.path("searchMaxResults").asInt(searchMaxResults);
+            mailboxDir = rootNode.path("mailboxDir").asText(mailboxDir);
+            mailboxMaxBytes = rootNode.path("mailboxMaxBytes").asLong(mailboxMaxBytes);
+            mailboxMaxAgeHours = rootNode.path("mailboxMaxAgeHours").asLong(mailboxMaxAgeHours);
+            mailboxMaxMessages = rootNode.path("mailboxMaxMessages").asInt(mailboxMaxMessages);
+            resumeTimeoutMs = rootNode.path("resumeTimeoutMs").asLong(resumeTimeoutMs);
+            reconnectAttempts = rootNode.path("reconnectAttempts").asInt(reconnectAttempts);
+            reconnectMaxDelayMs = rootNode.path("reconnectMaxDelayMs").asLong(reconnectMaxDelayMs);
+            ackIntervalMs = rootNode.path("ackIntervalMs").asLong(ackIntervalMs);
+            metricsPort = rootNode.path("metricsPort").asInt(metricsPort);
+            presenceBatchMs = rootNode.path("presenceBatchMs").asLong(presenceBatchMs);
+            readIdleTimeoutMs = rootNode.path("readIdleTimeoutMs").asLong(readIdleTimeoutMs);
+            writeIdleTimeoutMs = rootNode.path("writeIdleTimeoutMs").asLong(writeIdleTimeoutMs);
+            rateLimitMessagesPerSecond = rootNode.path("rateLimitMessagesPerSecond").asLong(rateLimitMessagesPerSecond);
+            rateLimitBytesPerSecond = rootNode.path("rateLimitBytesPerSecond").asLong(rateLimitBytesPerSecond);
+            maxTextLength = rootNode.path("maxTextLength").asInt(maxTextLength);
+            fanoutPerSecond = rootNode.path("fanoutPerSecond").asLong(fanoutPerSecond);
+            rateLimitDisconnect = rootNode.path("rateLimitDisconnect").asBoolean(rateLimitDisconnect);
+            compressionThreshold = rootNode.path("compressionThreshold").asInt(compressionThreshold);
+            nodeId = rootNode.path("nodeId").asText(nodeId);
+            shutdownDrainMs = rootNode.path("shutdownDrainMs").asLong(shutdownDrainMs);
+            shutdownRetryAfterMs = rootNode.path("shutdownRetryAfterMs").asLong(shutdownRetryAfterMs);
+            clusterHost = rootNode.path("clusterHost").asText(clusterHost);
+            clusterPort = rootNode.path("clusterPort").asInt(clusterPort);
+            if (rootNode.has("clusterPeers")) {
+                List<String> peers = new ArrayList<>();
+                for (JsonNode peer : rootNode.get("clusterPeers"))
+                    peers.add(peer.asText());
+                clusterPeers = List.copyOf(peers);
+            }
+            int loops = rootNode.path("eventLoops").asInt(0);
+            if (loops > 0)
+                eventLoops = loops; // 0 - по одному циклу событий на ядро.
+            int shards = rootNode.path("broadcastShards").asInt(0);
+            if (shards > 0)
+                broadcastShards = shards; // 0 - по одной группе получателей на ядро.
         } catch (IOException e) {
             System.err.println("Ошибка чтения файла настроек: " + e.getMessage());
         }
@@ -0,0 +1,143 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+public abstract class Session implements Closeable {
+    static final int INITIAL_BUFFER_SIZE = 8 * 1024; // Начальный размер буфера чтения.
+
+    private volatile int features; // Возможности протокола, о которых договорились с клиентом (ProtocolCodec.FEATURE_*).
+    private volatile long lastReadNanos = System.nanoTime(); // Когда от клиента последний раз пришли байты.
+    private volatile long lastWriteNanos = System.nanoTime(); // Когда клиенту последний раз ушёл кадр.
+    // Очередная проверка бездействия в server.IdleMonitor, null - соединение не проверяется.
+    final AtomicReference<HashedWheelTimer.Timeout> idleCheck = new AtomicReference<>();
+    // Ограничения частоты сообщений и байт участника (server.RateLimits), null - без ограничения.
+    TokenBucket messageLimit;
+    TokenBucket byteLimit;
+    // Номер последнего отправленного клиенту сообщения общего чата и последний номер, получение
+    // которого клиент подтвердил (ACK). Других отметок для подсчёта отставания соединение не хранит.
+    private volatile long sentSequence;
+    private volatile long acknowledgedSequence;
+    private int receivedFrameLength; // Размер последнего принятого кадра в байтах. Пишет и читает поток чтения.
+
+    public abstract void send(Message message) throws IOException; // Отправка сообщения.
+
+    // Отправка уже закодированного кадра рассылки. По умолчанию сообщение кодируется заново.
+    public void send(SharedFrame frame) throws IOException {
+        send(frame.getMessage());
+    }
+
+    public abstract SocketAddress getRemoteSocketAddress(); // Адрес удалённой стороны.
+
+    // Очередь исходящих кадров или null, если сообщения пишутся в сокет сразу в потоке отправителя.
+    public abstract OutboundQueue getOutboundQueue();
+
+    public int getFeatures() {
+        return features;
+    }
+
+    public void setFeatures(int features) {
+        this.features = features;
+    }
+
+    // Всё, что отправлено через send(), уже записано в сокет. Без очереди сообщения пишутся сразу.
+    public boolean isFlushed() {
+        OutboundQueue queue = getOutboundQueue();
+        return queue == null || queue.isEmpty();
+    }
+
+    public boolean hasFeature(int feature) {
+        return (features & feature) != 0;
+    }
+
+    // С какой длины данных сжимать кадры для этого собеседника, 0 - не сжимать.
+    int deflateThreshold() {
+        return hasFeature(ProtocolCodec.FEATURE_DEFLATE) ? ServerSettings.getCompressionThreshold() : 0;
+    }
+
+    // Отметки активности обновляются на каждом чтении и записи: одна запись volatile-поля, без обращения к таймеру.
+    void markRead() {
+        lastReadNanos = System.nanoTime();
+    }
+
+    void markWritten() {
+        lastWriteNanos = System.nanoTime();
+    }
+
+    long getSentSequence() {
+        return sentSequence;
+    }
+
+    // Рассылки идут по одной под общей блокировкой, поэтому номера отправленных сообщений только растут.
+    void markSent(long sequence) {
+        sentSequence = sequence;
+    }
+
+    long getAcknowledgedSequence() {
+        return acknowledgedSequence;
+    }
+
+    // Подтверждения накопительные: запоздавшее ACK с меньшим номером отметку назад не сдвигает.
+    void acknowledge(long sequence) {
+        if (sequence > acknowledgedSequence)
+            acknowledgedSequence = sequence;
+    }
+
+    // Сколько отправленных сообщений общего чата клиент ещё не подтвердил - число сообщений, а не разница
+    // номеров: номера входов и выходов участников, которые клиенты с "roster" не получают, вычитаются
+    // по общему для всех соединений списку server.Server.rosterSkipped. Считается только у клиентов,
+    // которые присылают ACK.
+    long deliveryLag() {
+        long acknowledged = acknowledgedSequence;
+        long sent = sentSequence;
+        if (!hasFeature(ProtocolCodec.FEATURE_ACK) || sent <= acknowledged)
+            return 0;
+        long lag = sent - acknowledged;
+        if (hasFeature(ProtocolCodec.FEATURE_ROSTER))
+            lag -= Server.rosterSkipped.count(acknowledged, sent);
+        return lag;
+    }
+
+    int getReceivedFrameLength() {
+        return receivedFrameLength;
+    }
+
+    void setReceivedFrameLength(int length) {
+        receivedFrameLength = length;
+    }
+
+    long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    long getLastWriteNanos() {
+        return lastWriteNanos;
+    }
+
+    // Увеличивает буфер чтения вдвое, если в него не помещается очередной кадр.
+    static ByteBuffer expand(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() >= MessageCodec.MAX_FRAME_LENGTH * 2) {
+            throw new IOException("Превышен максимальный размер кадра");
+        }
+        ByteBuffer expanded = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        expanded.put(buffer);
+        return expanded;
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.Session" - общая часть для всех видов соединений с клиентом,
+ *   через которые сервер отправляет сообщения участникам чата.
+ *
+ *   Сервер работает с участниками только через этот класс, поэтому одни и те же
+ *   регистрация и рассылка сообщений работают как с блокирующим транспортом (server.Connection,
+ *   отдельный поток на каждого клиента), так и с неблокирующим (server.NioConnection,
+ *   небольшой пул потоков с Selector).
+ *
+ */
@@ -0,0 +1,114 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public final class SharedFrame {
+    private static final BinaryMessageCodec BINARY_CODEC = new BinaryMessageCodec(); // Без сжатия encode() не хранит состояния.
+    // Сжимающий кодек переиспользует свой Deflater, поэтому в каждый момент сжимает один кадр: писатель
+    // берёт свободный кодек из пула (или создаёт новый) и после сжатия возвращает его. В пуле остаётся
+    // не больше кодеков, чем ядер, - столько кадров и сжимается одновременно.
+    private static final Queue<BinaryMessageCodec> DEFLATE_CODECS = new ConcurrentLinkedQueue<>();
+    private static final int MAX_POOLED_CODECS = Runtime.getRuntime().availableProcessors();
+
+    private final Message message;
+    private volatile byte[] binary; // Кадр версии 2, закодированный один раз. После создания не изменяется.
+    private volatile byte[] deflated; // Тот же кадр для получателей с возможностью "deflate".
+
+    public SharedFrame(Message message) {
+        this.message = message;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public int length() {
+        return length(false);
+    }
+
+    public int length(boolean deflate) {
+        return bytes(deflate).length;
+    }
+
+    // Отдельное представление кадра для одного получателя: своя позиция, общие байты.
+    public ByteBuffer buffer() {
+        return buffer(false);
+    }
+
+    public ByteBuffer buffer(boolean deflate) {
+        return ByteBuffer.wrap(bytes(deflate)).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(out, false);
+    }
+
+    public void writeTo(OutputStream out, boolean deflate) throws IOException {
+        out.write(bytes(deflate));
+    }
+
+    private byte[] bytes(boolean deflate) {
+        return deflate ? deflated() : binary();
+    }
+
+    // Кадр кодируется при первом обращении: если получателей версии 2 нет, кодировать не придётся.
+    // Два писателя могут закодировать его одновременно, но результат одинаковый, и сохранится любой.
+    private byte[] binary() {
+        byte[] bytes = binary;
+        if (bytes == null) {
+            ByteBuffer frame = BINARY_CODEC.encode(message, ByteBuffer.allocate(64));
+            bytes = new byte[frame.position()];
+            frame.flip().get(bytes);
+            binary = bytes;
+        }
+        return bytes;
+    }
+
+    // Сжатый кадр тоже получается один раз на всю рассылку (как и binary(), одновременно его могут сжать
+    // несколько писателей). Короткие сообщения не сжимаются, и для них это тот же массив, что и binary().
+    private byte[] deflated() {
+        byte[] bytes = deflated;
+        if (bytes != null)
+            return bytes;
+        int threshold = ServerSettings.getCompressionThreshold();
+        String data = message.getData();
+        if (threshold <= 0 || data == null || data.length() < threshold) {
+            bytes = binary();
+        } else {
+            BinaryMessageCodec codec = DEFLATE_CODECS.poll();
+            if (codec == null)
+                codec = new BinaryMessageCodec();
+            ByteBuffer frame = codec.encode(message, ByteBuffer.allocate(64), threshold);
+            bytes = new byte[frame.position()];
+            frame.flip().get(bytes);
+            if (DEFLATE_CODECS.size() < MAX_POOLED_CODECS)
+                DEFLATE_CODECS.offer(codec);
+        }
+        deflated = bytes;
+        return bytes;
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.SharedFrame" - сообщение, закодированное для рассылки один раз.
+ *
+ *   При рассылке всем участникам сообщение больше не кодируется заново для каждого соединения:
+ *   server.Server.sendBroadcastMessage создаёт один SharedFrame, и все соединения с двоичным
+ *   протоколом (версия 2) отправляют одни и те же байты. Неблокирующие соединения кладут в очередь
+ *   только обёртку buffer() над общим массивом, без копирования.
+ *
+ *   Большое сообщение (длиннее compressionThreshold) для клиентов с возможностью "deflate" сжимается
+ *   тоже один раз, при первой отправке такому клиенту: buffer(true) отдаёт всем им общий сжатый кадр.
+ *   Сжатие - самая дорогая часть кодирования, а тысяча получателей стоит столько же, сколько один.
+ *   Разные кадры сжимаются параллельно: у каждого писателя свой Deflater из небольшого пула.
+ *
+ *   Соединения со старыми клиентами (версия 1) используют getMessage() и кодируют сообщение сами,
+ *   потому что поток Java-сериализации у каждого соединения свой.
+ *
+ */
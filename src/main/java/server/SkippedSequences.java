@@ -0,0 +1,77 @@
+package server;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+final class SkippedSequences {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long[] sequences; // Последние записанные номера по возрастанию, кольцом.
+    private int head;
+    private int count;
+
+    SkippedSequences(int capacity) {
+        this.sequences = new long[capacity];
+    }
+
+    // Номер пропущенной рассылки. Номера идут по возрастанию; меньший номер значит, что нумерация
+    // началась заново (открыта другая история), и прежние отметки больше ничего не говорят.
+    void add(long sequence) {
+        lock.lock();
+        try {
+            if (count > 0 && sequence <= at(count - 1))
+                count = 0;
+            if (count == sequences.length) { // Самый старый номер вытесняется.
+                head = (head + 1) % sequences.length;
+                count--;
+            }
+            sequences[(head + count) % sequences.length] = sequence;
+            count++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Сколько пропущенных номеров больше after и не больше upTo. Вытесненные номера не учитываются,
+    // поэтому для очень старого after результат может быть меньше настоящего.
+    long count(long after, long upTo) {
+        if (upTo <= after)
+            return 0;
+        lock.lock();
+        try {
+            return above(after) - above(upTo);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Сколько записанных номеров больше sequence: двоичный поиск по кольцу.
+    private int above(long sequence) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (at(middle) <= sequence)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return count - low;
+    }
+
+    private long at(int index) {
+        return sequences[(head + index) % sequences.length];
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.SkippedSequences" - номера рассылок общего чата, которые часть клиентов не получает.
+ *
+ *   Клиентам с возможностью "roster" входы и выходы участников (USER_ADDED, USER_REMOVED) не отправляются,
+ *   хотя номера у этих сообщений есть. Чтобы отставание доставки (server.Session.deliveryLag) считалось
+ *   в сообщениях, а не в разнице номеров, сервер записывает такие номера сюда - один раз на всю рассылку,
+ *   а соединение хранит только номер последнего отправленного и последнего подтверждённого сообщения.
+ *
+ *   Помнятся последние capacity номеров: подтверждения клиентов отстают на секунды, а не на тысячи входов.
+ *
+ */
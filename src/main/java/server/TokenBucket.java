@@ -0,0 +1,54 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TokenBucket {
+    private final long nanosPerToken; // За сколько наносекунд в ведро добавляется один жетон.
+    private final long capacityNanos; // Вместимость ведра, выраженная во времени: capacity * nanosPerToken.
+    // Момент, к которому ведро снова станет полным, если больше ничего не брать.
+    // Всё состояние - одно число, поэтому ведро обходится без блокировок и без создания объектов.
+    private final AtomicLong fullAt;
+
+    // tokensPerSecond - скорость пополнения, capacity - сколько жетонов можно взять разом после паузы.
+    public TokenBucket(long tokensPerSecond, long capacity) {
+        this.nanosPerToken = Math.max(1, TimeUnit.SECONDS.toNanos(1) / Math.max(1, tokensPerSecond));
+        this.capacityNanos = Math.max(1, capacity) * nanosPerToken;
+        this.fullAt = new AtomicLong(System.nanoTime()); // Сначала ведро полное.
+    }
+
+    // Взять tokens жетонов. Возвращает false и ничего не берёт, если жетонов не хватает.
+    public boolean tryAcquire(long tokens) {
+        long cost = tokens * nanosPerToken;
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + cost; // Полное ведро не копит жетоны сверх вместимости.
+            if (next - now > capacityNanos)
+                return false;
+            if (fullAt.compareAndSet(current, next))
+                return true;
+        }
+    }
+
+    public long getCapacity() {
+        return capacityNanos / nanosPerToken;
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.TokenBucket" - "ведро жетонов" для ограничения частоты.
+ *
+ *   В ведро с постоянной скоростью tokensPerSecond добавляются жетоны, но не больше capacity.
+ *   Каждое действие забирает жетоны (одно сообщение - один жетон, байт - жетон), а если их не хватает,
+ *   действие отклоняется. Так клиент может отправить короткую пачку сообщений сразу, но в среднем
+ *   не чаще заданной скорости.
+ *
+ *   Вместо числа жетонов хранится момент, когда ведро снова станет полным (алгоритм GCRA): взять жетоны -
+ *   значит сдвинуть этот момент вперёд, а жетонов не хватает, если он ушёл дальше, чем на вместимость ведра.
+ *   Одно поле AtomicLong и compareAndSet() позволяют пользоваться одним ведром из многих потоков
+ *   (общий бюджет рассылок сервера), а проверка не создаёт объектов и не берёт блокировок.
+ *
+ */
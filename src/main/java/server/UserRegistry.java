@@ -0,0 +1,140 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class UserRegistry {
+    private static final Session[] NO_SESSIONS = new Session[0];
+    private static final String[] NO_NAMES = new String[0];
+
+    // Нормализованное имя -> участник. Имя под своим ключом может занять только одно соединение.
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong(); // Увеличивается после каждого изменения словаря.
+    private volatile Snapshot snapshot = new Snapshot(0, NO_SESSIONS, NO_NAMES);
+
+    // Участник: имя в том виде, в каком он его ввёл, и его соединение.
+    private record User(String name, Session connection) {
+    }
+
+    // Снимок участников в массивах. Пересобирается при первом обращении после изменения словаря.
+    private record Snapshot(long version, Session[] sessions, String[] names) {
+    }
+
+    // Имена сравниваются без учёта регистра: "Anna" и "anna" - одно и то же имя.
+    public static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    // Занять имя для соединения. Возвращает false, если имя уже занято, в том числе в другом регистре.
+    // Проверка и запись выполняются одной атомарной операцией, поэтому из двух одновременных
+    // регистраций с одним именем проходит ровно одна.
+    public boolean claim(String name, Session connection) {
+        if (users.putIfAbsent(normalize(name), new User(name, connection)) != null)
+            return false;
+        version.incrementAndGet();
+        return true;
+    }
+
+    // Передать имя новому соединению того же участника (возобновление сессии).
+    // Возвращает прежнее соединение или null, если имя было свободно.
+    public Session replace(String name, Session connection) {
+        User previous = users.put(normalize(name), new User(name, connection));
+        version.incrementAndGet();
+        return previous != null ? previous.connection() : null;
+    }
+
+    // Освободить имя, если оно всё ещё принадлежит этому соединению.
+    // Возвращает false, если имя уже занято новым соединением того же участника.
+    public boolean release(String name, Session connection) {
+        String key = normalize(name);
+        User user = users.get(key);
+        if (user == null || user.connection() != connection || !users.remove(key, user))
+            return false;
+        version.incrementAndGet();
+        return true;
+    }
+
+    // Соединение участника или null, если такого участника нет.
+    public Session get(String name) {
+        User user = users.get(normalize(name));
+        return user != null ? user.connection() : null;
+    }
+
+    // Имя участника в том виде, в каком он его ввёл, или null, если такого участника нет.
+    public String nameOf(String name) {
+        User user = users.get(normalize(name));
+        return user != null ? user.name() : null;
+    }
+
+    public boolean contains(String name) {
+        return users.containsKey(normalize(name));
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    // Соединения всех участников. Массив общий для всех вызовов до следующего изменения - менять его нельзя.
+    public Session[] sessions() {
+        return snapshot().sessions();
+    }
+
+    // Имена всех участников, в том виде, в каком они их ввели. Менять массив нельзя.
+    public String[] names() {
+        return snapshot().names();
+    }
+
+    public void clear() {
+        users.clear();
+        version.incrementAndGet();
+    }
+
+    private Snapshot snapshot() {
+        Snapshot current = snapshot;
+        long actual = version.get();
+        if (current.version() == actual)
+            return current;
+        // Изменение, случившееся во время сборки, увеличит version, и следующий вызов соберёт снимок заново.
+        int size = users.size();
+        Session[] sessions = new Session[size];
+        String[] names = new String[size];
+        int count = 0;
+        for (User user : users.values()) {
+            if (count == sessions.length) { // Словарь вырос во время обхода.
+                sessions = Arrays.copyOf(sessions, count * 2 + 1);
+                names = Arrays.copyOf(names, count * 2 + 1);
+            }
+            sessions[count] = user.connection();
+            names[count++] = user.name();
+        }
+        if (count != sessions.length) {
+            sessions = Arrays.copyOf(sessions, count);
+            names = Arrays.copyOf(names, count);
+        }
+        current = new Snapshot(actual, sessions, names);
+        snapshot = current;
+        return current;
+    }
+}
+
+
+/**
+ *
+ *   Класс "server.UserRegistry" - реестр участников чата: имя -> соединение.
+ *
+ *   Имя занимается методом claim() - одной атомарной операцией putIfAbsent(), поэтому два клиента,
+ *   одновременно приславшие одно и то же имя, не могут зарегистрироваться оба (раньше проверка
+ *   containsKey() и запись put() шли отдельно, и второй молча затирал первого). Освобождает имя
+ *   только то соединение, которому оно принадлежит: если участник уже вернулся через новое
+ *   соединение, закрытие старого его не удалит.
+ *
+ *   Имена сравниваются без учёта регистра. Ключ словаря нормализуется один раз - при регистрации
+ *   и при поиске, а участникам показывается имя в том виде, в каком его ввёл владелец.
+ *
+ *   Для рассылки всем участникам реестр отдаёт снимок соединений в обычном массиве (sessions()).
+ *   Снимок собирается заново только после изменения состава участников, поэтому рассылки между
+ *   входами и выходами обходят готовый массив, а не узлы ConcurrentHashMap.
+ *
+ */
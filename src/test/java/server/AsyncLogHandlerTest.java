@@ -0,0 +1,72 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncLogHandlerTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testBlockPolicyWritesEveryRecordFromManyThreads() throws Exception {
+        Path file = directory.resolve("test.log");
+        AsyncLogHandler handler = new AsyncLogHandler(file.toString(), 16, AsyncLogHandler.OverflowPolicy.BLOCK);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 5_000; i++) {
+                    handler.publish(new LogRecord(Level.INFO, "поток " + id + " запись " + i));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        handler.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(20_000, lines.size());
+        assertEquals(0, handler.getDropped());
+        assertTrue(lines.get(0).contains(" INFO ["));
+    }
+
+    @Test
+    void testDropPolicyCountsDroppedRecords() throws Exception {
+        Path file = directory.resolve("drop.log");
+        AsyncLogHandler handler = new AsyncLogHandler(file.toString(), 2, AsyncLogHandler.OverflowPolicy.DROP);
+        for (int i = 0; i < 10_000; i++) {
+            handler.publish(new LogRecord(Level.INFO, "запись " + i));
+        }
+        handler.close();
+
+        long written = Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+                .filter(line -> line.contains("запись")).count();
+        assertEquals(10_000, written + handler.getDropped());
+    }
+
+    @Test
+    void testDisabledLevelIsNotQueued() throws Exception {
+        Path file = directory.resolve("level.log");
+        AsyncLogHandler handler = new AsyncLogHandler(file.toString(), 16, AsyncLogHandler.OverflowPolicy.DROP);
+        handler.setLevel(Level.WARNING);
+        handler.publish(new LogRecord(Level.INFO, "не пишется"));
+        handler.publish(new LogRecord(Level.WARNING, "пишется"));
+        handler.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith("пишется"));
+    }
+}
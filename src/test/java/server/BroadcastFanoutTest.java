@@ -0,0 +1,65 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BroadcastFanoutTest {
+
+    @AfterEach
+    void tearDown() {
+        Server.fanout.close();
+        Server.fanout = new BroadcastFanout(1);
+        Server.users.clear();
+        Server.limits = RateLimits.fromSettings();
+    }
+
+    @Test
+    void testLargeBroadcastKeepsOrderForEveryRecipient() throws Exception {
+        Server.fanout = new BroadcastFanout(4);
+        Server.limits = new RateLimits(0, 0, 0, 0, false);
+        List<RecordingSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            RecordingSession session = new RecordingSession();
+            assertEquals("user" + i, Server.acceptUserName(session, new Message(MessageType.USER_NAME, "user" + i)));
+            sessions.add(session);
+        }
+        for (int i = 0; i < 20; i++)
+            Server.processMessage(sessions.get(0), "user0", new Message(MessageType.TEXT, "сообщение " + i));
+
+        for (RecordingSession session : sessions) { // Рассылка вернулась - кадр уже у всех получателей.
+            List<Message> texts = session.received.stream()
+                    .filter(message -> message.getType() == MessageType.TEXT).toList();
+            assertEquals(20, texts.size());
+            for (int i = 0; i < 20; i++)
+                assertEquals("user0: сообщение " + i, texts.get(i).getData());
+        }
+    }
+
+    @Test
+    void testRecipientsAreSplitAcrossWorkers() {
+        Session[] recipients = new Session[5000];
+        for (int i = 0; i < recipients.length; i++)
+            recipients[i] = new RecordingSession();
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        Set<Session> visited = ConcurrentHashMap.newKeySet();
+        try (BroadcastFanout fanout = new BroadcastFanout(4)) {
+            fanout.forEach(recipients, connection -> {
+                threads.add(Thread.currentThread());
+                assertTrue(visited.add(connection)); // Каждый получатель - ровно один раз.
+            });
+            assertEquals(recipients.length, visited.size());
+            assertTrue(threads.size() > 1);
+
+            threads.clear();
+            fanout.forEach(new Session[]{new RecordingSession()}, connection -> threads.add(Thread.currentThread()));
+            assertEquals(Set.of(Thread.currentThread()), threads); // Маленькая рассылка - без пула.
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClusterRelayTest {
+
+    // Что узел получил от других узлов, в порядке получения.
+    private static class RecordingListener implements ClusterRelay.Listener {
+        final List<String> events = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void remoteText(String text) {
+            events.add("text " + text);
+        }
+
+        @Override
+        public void remoteUserAdded(String userName) {
+            events.add("+" + userName);
+        }
+
+        @Override
+        public void remoteUserRemoved(String userName) {
+            events.add("-" + userName);
+        }
+    }
+
+    private final RecordingListener aEvents = new RecordingListener();
+    private final RecordingListener bEvents = new RecordingListener();
+    private final ClusterRelay a = new ClusterRelay("a", aEvents, () -> new String[]{"anna"});
+    private final ClusterRelay b = new ClusterRelay("b", bEvents, () -> new String[]{"boris", "vera"});
+
+    @AfterEach
+    void tearDown() {
+        a.close();
+        b.close();
+        if (Server.cluster != null)
+            Server.cluster.close();
+        Server.cluster = null;
+        Server.users.clear();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    void testNodesShareUsersAndMessages() throws Exception {
+        int port = a.listen("127.0.0.1", 0);
+        b.connect("127.0.0.1:" + port);
+        await(() -> a.peerCount() == 1 && b.peerCount() == 1);
+        await(() -> a.isRemoteUser("BORIS") && a.isRemoteUser("vera") && b.isRemoteUser("anna")); // Снимки участников.
+
+        a.publishText("anna: привет");
+        b.publishUserAdded("gleb");
+        await(() -> bEvents.events.contains("text anna: привет") && a.isRemoteUser("gleb"));
+        b.publishUserRemoved("gleb");
+        a.publishUserRemoved("boris"); // Чужого участника узел удалить не может.
+        await(() -> !a.isRemoteUser("gleb"));
+        assertTrue(b.isRemoteUser("anna"));
+        assertFalse(bEvents.events.contains("-boris"));
+
+        b.close(); // Узел пропал: его участники покидают чат.
+        await(() -> a.remoteUserNames().isEmpty());
+        assertTrue(aEvents.events.containsAll(List.of("-boris", "-vera")));
+    }
+
+    @Test
+    void testRestartedNodeIsNotTakenForDuplicates() throws Exception {
+        int port = a.listen("127.0.0.1", 0);
+        b.connect("127.0.0.1:" + port);
+        await(() -> a.isRemoteUser("boris"));
+        b.publishText("boris: до перезапуска");
+        await(() -> aEvents.events.contains("text boris: до перезапуска"));
+        b.close();
+        await(() -> a.remoteUserNames().isEmpty());
+
+        // Тот же узел после перезапуска: его счётчик номеров начинается заново.
+        ClusterRelay restarted = new ClusterRelay("b", bEvents, () -> new String[]{"boris", "vera"});
+        try {
+            restarted.connect("127.0.0.1:" + port);
+            await(() -> a.isRemoteUser("boris") && a.isRemoteUser("vera")); // Снимок не принят за повтор.
+            restarted.publishText("boris: после перезапуска");
+            await(() -> aEvents.events.contains("text boris: после перезапуска"));
+        } finally {
+            restarted.close();
+        }
+    }
+
+    @Test
+    void testMutualPeersKeepOneLinkInOrder() throws Exception {
+        int portA = a.listen("127.0.0.1", 0);
+        int portB = b.listen("127.0.0.1", 0);
+        a.connect("127.0.0.1:" + portB);
+        await(() -> a.peerCount() == 1 && b.peerCount() == 1);
+        b.connect("127.0.0.1:" + portA); // Оба узла указали друг друга: второе соединение лишнее.
+        Thread.sleep(1000); // Несколько попыток переподключения, если бы "b" их делал.
+        assertEquals(1, a.peerCount());
+        assertEquals(1, b.peerCount());
+
+        List<String> sent = new ArrayList<>();
+        a.publishUserAdded("gleb");
+        sent.add("+gleb");
+        for (int i = 0; i < 100; i++) {
+            a.publishText("anna: " + i);
+            sent.add("text anna: " + i);
+        }
+        a.publishUserRemoved("gleb");
+        sent.add("-gleb");
+        await(() -> bEvents.events.contains("-gleb"));
+        assertEquals(sent, bEvents.events.stream().filter(event -> !event.equals("+anna")).toList());
+        assertEquals(1, bEvents.events.stream().filter(event -> event.equals("+anna")).count());
+        assertEquals(List.of("+boris", "+vera"), aEvents.events);
+    }
+
+    @Test
+    void testServerRelaysChatThroughCluster() throws Exception {
+        Server.cluster = new ClusterRelay("server", Server.CLUSTER_LISTENER, Server.users::names);
+        b.connect("127.0.0.1:" + Server.cluster.listen("127.0.0.1", 0));
+        await(() -> Server.cluster.isRemoteUser("vera"));
+
+        RecordingSession anna = new RecordingSession();
+        assertEquals("anna", Server.acceptUserName(anna, new Message(MessageType.USER_NAME, "anna")));
+        Server.userJoined(anna, "anna");
+        assertNull(Server.acceptUserName(new RecordingSession(), new Message(MessageType.USER_NAME, "Vera"))); // Имя занято на другом узле.
+        assertTrue(anna.received.stream().anyMatch(message ->
+                message.getType() == MessageType.USER_ADDED && "boris".equals(message.getData())));
+
+        Server.processMessage(anna, "anna", new Message(MessageType.TEXT, "привет"));
+        b.publishText("boris: здравствуй");
+        await(() -> bEvents.events.contains("text anna: привет") && anna.received.stream().anyMatch(message ->
+                message.getType() == MessageType.TEXT && "boris: здравствуй".equals(message.getData())));
+        assertTrue(b.isRemoteUser("anna"));
+    }
+}
@@ -0,0 +1,120 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeliveryAckTest {
+
+    @AfterEach
+    void tearDown() {
+        Server.users.clear();
+        Server.limits = RateLimits.fromSettings();
+    }
+
+    private static List<Long> textSequences(RecordingSession session) {
+        return session.received.stream()
+                .filter(message -> message.getType() == MessageType.TEXT)
+                .map(Message::getSequence)
+                .toList();
+    }
+
+    @Test
+    void testBroadcastsAreNumberedWithoutHistory() throws Exception {
+        Server.limits = new RateLimits(0, 0, 0, 0, false);
+        RecordingSession anna = new RecordingSession();
+        assertEquals("anna", Server.acceptUserName(anna, new Message(MessageType.USER_NAME, "anna")));
+        for (int i = 0; i < 3; i++)
+            Server.processMessage(anna, "anna", new Message(MessageType.TEXT, "сообщение " + i));
+
+        List<Long> sequences = textSequences(anna);
+        assertEquals(3, sequences.size());
+        assertTrue(sequences.get(0) > 0);
+        assertEquals(sequences.get(0) + 1, sequences.get(1));
+        assertEquals(sequences.get(1) + 1, sequences.get(2));
+        assertEquals(sequences.get(2), anna.getSentSequence());
+
+        Server.processMessage(anna, "anna", new Message(MessageType.ROOM_JOIN, "кино"));
+        Server.processMessage(anna, "anna", new Message(MessageType.ROOM_TEXT, "кино", "в комнате"));
+        assertEquals(sequences.get(2), anna.getSentSequence()); // Сообщения комнат номеров не получают.
+        Server.rooms.leaveAll("anna");
+    }
+
+    @Test
+    void testCumulativeAckMovesWatermark() throws Exception {
+        Server.limits = new RateLimits(0, 0, 0, 0, false);
+        RecordingSession anna = new RecordingSession();
+        RecordingSession boris = new RecordingSession(); // Старый клиент: ACK не присылает.
+        assertEquals("anna", Server.acceptUserName(anna, new Message(MessageType.USER_NAME, "ack", "anna")));
+        assertEquals("boris", Server.acceptUserName(boris, new Message(MessageType.USER_NAME, "boris")));
+        assertTrue(anna.hasFeature(ProtocolCodec.FEATURE_ACK));
+        for (int i = 0; i < 5; i++)
+            Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "сообщение " + i));
+
+        long last = anna.getSentSequence();
+        assertEquals(5, Server.maxDeliveryLag()); // Ещё ничего не подтверждено.
+        Server.processMessage(anna, "anna", new Message(MessageType.ACK, null, null, last - 2));
+        assertEquals(2, anna.deliveryLag());
+        assertEquals(2, Server.maxDeliveryLag());
+        Server.processMessage(anna, "anna", new Message(MessageType.ACK, null, null, last - 4)); // Запоздавшее.
+        assertEquals(2, anna.deliveryLag());
+        assertEquals("anna sent=" + last + " acked=" + (last - 2) + " lag=2\n", Server.deliveryReport());
+
+        Server.processMessage(anna, "anna", new Message(MessageType.ACK, null, null, last + 100));
+        assertEquals(last, anna.getAcknowledgedSequence()); // Дальше отправленного отметка не уходит.
+        assertEquals(0, Server.maxDeliveryLag());
+    }
+
+    @Test
+    void testLagCountsMessagesNotSequenceGap() throws Exception {
+        Server.limits = new RateLimits(0, 0, 0, 0, false);
+        RecordingSession anna = new RecordingSession(); // Входы и выходы получает пакетами, без номеров.
+        RecordingSession boris = new RecordingSession();
+        RecordingSession vera = new RecordingSession();
+        assertEquals("anna", Server.acceptUserName(anna, new Message(MessageType.USER_NAME, "ack,roster", "anna")));
+        assertEquals("boris", Server.acceptUserName(boris, new Message(MessageType.USER_NAME, "boris")));
+        Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "раз"));
+        assertEquals("vera", Server.acceptUserName(vera, new Message(MessageType.USER_NAME, "vera")));
+        Server.userJoined(vera, "vera"); // USER_ADDED получает номер, но anna его не отправляется.
+        Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "два"));
+        Server.userLeft(vera, "vera");
+        Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "три"));
+
+        List<Long> sequences = textSequences(anna);
+        assertEquals(3, sequences.size());
+        assertTrue(sequences.get(2) - sequences.get(0) >= 4); // Между номерами - входы и выходы.
+        assertEquals(3, anna.deliveryLag());
+        Server.processMessage(anna, "anna", new Message(MessageType.ACK, null, null, sequences.get(1)));
+        assertEquals(1, anna.deliveryLag());
+    }
+
+    @Test
+    void testLagIsComputedFromWatermarks() {
+        RecordingSession anna = new RecordingSession();
+        anna.setFeatures(ProtocolCodec.FEATURE_ACK);
+        int sent = 1_000_000; // Соединение не помнит номеров по отдельности, сколько бы их ни было.
+        for (int sequence = 1; sequence <= sent; sequence++)
+            anna.markSent(sequence);
+        assertEquals(sent, anna.deliveryLag());
+        anna.acknowledge(500);
+        assertEquals(sent - 500, anna.deliveryLag());
+        anna.acknowledge(sent - 1);
+        assertEquals(1, anna.deliveryLag());
+    }
+
+    @Test
+    void testSkippedSequencesCountRanges() {
+        SkippedSequences skipped = new SkippedSequences(4);
+        for (long sequence : new long[]{3, 5, 6, 9, 12})
+            skipped.add(sequence);
+        assertEquals(2, skipped.count(4, 6));
+        assertEquals(1, skipped.count(6, 11));
+        assertEquals(0, skipped.count(12, 20));
+        assertEquals(4, skipped.count(0, 100)); // Номер 3 вытеснен и не учитывается.
+        skipped.add(2); // Нумерация началась заново.
+        assertEquals(1, skipped.count(0, 100));
+    }
+}
@@ -0,0 +1,97 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdleMonitorTest {
+
+    @AfterEach
+    void tearDown() {
+        Server.users.clear();
+        Server.idle.close();
+        Server.idle = new IdleMonitor(ServerSettings.getReadIdleTimeoutMs(), ServerSettings.getWriteIdleTimeoutMs());
+    }
+
+    private static long count(RecordingSession session, MessageType type) {
+        return session.received.stream().filter(message -> message.getType() == type).count();
+    }
+
+    @Test
+    void testTimerRunsTasksInDeadlineOrder() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, 4); // Оборот колеса - 20 мс.
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        long start = System.nanoTime();
+        timer.newTimeout(() -> { fired.add(120); done.countDown(); }, 120);
+        timer.newTimeout(() -> { fired.add(10); done.countDown(); }, 10);
+        timer.newTimeout(() -> fired.add(-1), 30).cancel();
+        timer.newTimeout(() -> { fired.add(45); done.countDown(); }, 45);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(120)); // Не раньше срока.
+        Thread.sleep(20);
+        assertEquals(List.of(10, 45, 120), fired); // Отменённая задача не выполнилась.
+        timer.close();
+    }
+
+    @Test
+    void testSilentClientIsPingedThenClosed() throws Exception {
+        IdleMonitor monitor = new IdleMonitor(1000, 200);
+        RecordingSession silent = new RecordingSession();
+        silent.setFeatures(ProtocolCodec.FEATURE_HEARTBEAT);
+        RecordingSession active = new RecordingSession();
+        active.setFeatures(ProtocolCodec.FEATURE_HEARTBEAT);
+        RecordingSession legacy = new RecordingSession();
+        monitor.watch(silent);
+        monitor.watch(active);
+        monitor.watch(legacy);
+        monitor.unwatch(legacy); // Так сервер поступает со старым клиентом после регистрации.
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!silent.closed && System.currentTimeMillis() < deadline) {
+            active.markRead(); // Отвечает на PING.
+            Thread.sleep(20);
+        }
+        assertTrue(silent.closed);
+        assertTrue(count(silent, MessageType.PING) >= 2, "PING: " + count(silent, MessageType.PING));
+        assertFalse(active.closed);
+        assertTrue(count(active, MessageType.PING) >= 2);
+        assertFalse(legacy.closed);
+        assertEquals(0, count(legacy, MessageType.PING));
+        monitor.close();
+    }
+
+    @Test
+    void testVanishedClientIsRemovedFromChat() throws Exception {
+        Server.idle = new IdleMonitor(300, 100);
+        RecordingSession boris = new RecordingSession();
+        assertEquals("boris", Server.acceptUserName(boris, new Message(MessageType.USER_NAME, "boris")));
+
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket socket = new Socket("127.0.0.1", serverSocket.getLocalPort())) {
+            Thread handler = new Thread(new Server.ServerHandler(serverSocket.accept(),
+                    Server.handlerExecutor(ServerSettings.THREADS_PLATFORM)));
+            handler.start();
+            // Клиент регистрируется с возможностью "heartbeat", а потом пропадает: на PING не отвечает.
+            Connection client = new Connection(socket);
+            assertEquals(MessageType.NAME_REQUEST, client.receive().getType());
+            client.send(new Message(MessageType.USER_NAME, "heartbeat", "anna"));
+            assertEquals(MessageType.NAME_ACCEPTED, client.receive().getType());
+
+            handler.join(30_000); // С запасом: предыдущие тесты могут ещё дописывать журнал.
+            assertFalse(handler.isAlive());
+        }
+        assertFalse(Server.users.contains("anna"));
+        assertTrue(boris.received.stream().anyMatch(message ->
+                message.getType() == MessageType.USER_REMOVED && "anna".equals(message.getData())));
+    }
+}
@@ -0,0 +1,34 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    void testBucketBoundaries() {
+        for (long value : new long[]{0, 1, 127, 128, 129, 255, 256, 1_000_000, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.highestValueAt(index) >= value, "value " + value);
+            if (index > 0)
+                assertTrue(LatencyHistogram.highestValueAt(index - 1) < value, "value " + value);
+        }
+    }
+
+    @Test
+    void testPercentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 10_000; micros++)
+            histogram.record(micros * 1000); // 1 мкс .. 10 мс, равномерно
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(10_000_000, histogram.getMax());
+        assertEquals(5_000_000, histogram.getValueAtPercentile(50), 5_000_000 / 64.0);
+        assertEquals(9_900_000, histogram.getValueAtPercentile(99), 9_900_000 / 64.0);
+        assertEquals(10_000_000, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LegacyClientTest {
+
+    @AfterEach
+    void tearDown() {
+        Server.users.clear();
+        Server.limits = RateLimits.fromSettings();
+    }
+
+    // Клиент первой версии чата: поток объектов без кадров в обе стороны, как в исходном server.Connection.
+    private static void chatAsLegacyClient(int port) throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            assertEquals(MessageType.NAME_REQUEST, ((Message) in.readObject()).getType());
+            out.writeObject(new Message(MessageType.USER_NAME, "old"));
+            assertEquals(MessageType.NAME_ACCEPTED, ((Message) in.readObject()).getType());
+
+            out.writeObject(new Message(MessageType.TEXT, "привет"));
+            Message message;
+            while ((message = (Message) in.readObject()).getType() != MessageType.TEXT)
+                assertEquals(MessageType.USER_ADDED, message.getType()); // Других типов старый клиент не знает.
+            assertEquals("old: привет", message.getData());
+        }
+    }
+
+    @Test
+    void testLegacyClientOnBlockingTransport() throws Exception {
+        Server.limits = new RateLimits(0, 0, 0, 0, false);
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread handler = new Thread(() -> {
+                try {
+                    new Server.ServerHandler(serverSocket.accept(),
+                            Server.handlerExecutor(ServerSettings.THREADS_PLATFORM)).run();
+                } catch (Exception e) {
+                    fail(e);
+                }
+            });
+            handler.start();
+            chatAsLegacyClient(serverSocket.getLocalPort());
+            handler.join(10_000);
+            assertFalse(handler.isAlive());
+        }
+        assertFalse(Server.users.contains("old"));
+    }
+
+    @Test
+    void testLegacyClientOnNioTransport() throws Exception {
+        Server.limits = new RateLimits(0, 0, 0, 0, false);
+        try (NioServer server = new NioServer(0, 1)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (Exception e) {
+                    fail(e);
+                }
+            });
+            acceptor.start();
+            chatAsLegacyClient(server.getLocalPort());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LongSessionTest {
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    void testMillionsOfMessagesKeepHeapFlat() throws Exception {
+        int messages = 2_000_000;
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket socket = new Socket("127.0.0.1", serverSocket.getLocalPort());
+             Socket accepted = serverSocket.accept()) {
+            Connection sender = new Connection(socket); // Протокол первой версии чата: один поток объектов без кадров на всё соединение.
+            Connection receiver = new Connection(accepted);
+            Thread writer = Thread.ofPlatform().start(() -> {
+                try {
+                    for (int i = 0; i < messages; i++)
+                        sender.send(new Message(MessageType.TEXT, "участник: сообщение " + i));
+                } catch (IOException e) {
+                    fail(e);
+                }
+            });
+
+            long baseline = 0;
+            for (int i = 0; i < messages; i++) {
+                Message message = receiver.receive();
+                if (i % 100_000 == 0)
+                    assertEquals("участник: сообщение " + i, message.getData());
+                if (i == messages / 10)
+                    baseline = usedHeap(); // После прогрева: буферы и описания классов уже созданы.
+            }
+            writer.join();
+            long growth = usedHeap() - baseline;
+            // Без reset() потоки объектов обеих сторон держали бы все 2 миллиона сообщений - сотни мегабайт.
+            assertTrue(growth < 16 * 1024 * 1024, "Рост кучи, байт: " + growth);
+        }
+    }
+
+    @Test
+    void testWriterBatchesQueuedFrames() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream counting = new OutputStream() {
+            @Override
+            public void write(int b) {
+                bytes.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writes.incrementAndGet();
+                bytes.write(b, off, len);
+            }
+        };
+        Connection connection = new Connection(InputStream.nullInputStream(), counting,
+                new InetSocketAddress("127.0.0.1", 1), () -> { });
+        connection.setProtocolVersion(MessageCodec.VERSION_BINARY);
+        OutboundQueue queue = new OutboundQueue(10_000, OutboundQueue.OverflowPolicy.DISCONNECT);
+        for (int i = 0; i < 5000; i++) // Кадры накопились до того, как поток-писатель начал работу.
+            assertTrue(queue.offer(new SharedFrame(new Message(MessageType.TEXT, "сообщение " + i))));
+        connection.startWriter(Server.handlerExecutor(ServerSettings.THREADS_PLATFORM), queue);
+        while (!connection.isFlushed())
+            Thread.sleep(10);
+        assertTrue(writes.get() < 50, "Записей в сокет: " + writes.get()); // Пачками по BATCH_BYTES, а не по кадру.
+
+        Connection reader = new Connection(new ByteArrayInputStream(bytes.toByteArray()), OutputStream.nullOutputStream(),
+                new InetSocketAddress("127.0.0.1", 2), () -> { });
+        for (int i = 0; i < 5000; i++)
+            assertEquals("сообщение " + i, reader.receive().getData());
+        connection.close();
+    }
+}
@@ -0,0 +1,189 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MailboxStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void tearDown() {
+        if (Server.history != null)
+            Server.history.close();
+        Server.history = null;
+        Server.mailboxes = null;
+        Server.users.clear();
+        Server.limits = RateLimits.fromSettings();
+    }
+
+    // Всё, что участник получил из ящика, в порядке получения: "текст" или "(лично) отправитель: текст".
+    private static List<String> unpacked(RecordingSession session) throws Exception {
+        List<String> messages = new ArrayList<>();
+        for (Message message : session.received) {
+            if (message.getType() != MessageType.MAILBOX)
+                continue;
+            for (Message missed : MailboxStore.unpack(message.getData()))
+                messages.add(missed.getType() == MessageType.PRIVATE_TEXT
+                        ? "(лично) " + missed.getTarget() + ": " + missed.getData() : missed.getData());
+        }
+        return messages;
+    }
+
+    @Test
+    void testBacklogIsMergedAndBatched() throws Exception {
+        MessageStore history = new MessageStore(directory.resolve("history"), 1 << 20, 0, 0, 0);
+        MailboxStore mailboxes = new MailboxStore(directory.resolve("mailbox"), 0, 0, 10_000);
+        history.append(new Message(MessageType.TEXT, "до ухода"));
+        assertFalse(mailboxes.isKnown("anna"));
+        mailboxes.departed("anna", history.getLastSequence());
+        assertTrue(mailboxes.isKnown("ANNA"));
+        history.append(new Message(MessageType.TEXT, "первое"));
+        mailboxes.store("anna", new Message(MessageType.PRIVATE_TEXT, "boris", "привет"), history.getLastSequence());
+        history.append(new Message(MessageType.USER_REMOVED, "vera"));
+        for (int i = 0; i < 3000; i++)
+            history.append(new Message(MessageType.TEXT, "сообщение " + i + " " + "x".repeat(100)));
+
+        RecordingSession anna = new RecordingSession();
+        anna.setFeatures(ProtocolCodec.FEATURE_MAILBOX);
+        mailboxes.deliver("anna", anna, history);
+        mailboxes.close(); // Дожидается доставки.
+
+        List<String> backlog = unpacked(anna);
+        assertEquals(3002, backlog.size()); // Без "до ухода" и без USER_REMOVED.
+        assertEquals(List.of("первое", "(лично) boris: привет"), backlog.subList(0, 2));
+        assertTrue(backlog.get(3001).startsWith("сообщение 2999 "));
+        assertTrue(anna.received.size() > 1 && anna.received.size() < 10, "Пачек: " + anna.received.size());
+        assertTrue(new MailboxStore(directory.resolve("mailbox"), 0, 0, 10_000).isKnown("anna")); // После перезапуска.
+
+        RecordingSession again = new RecordingSession();
+        again.setFeatures(ProtocolCodec.FEATURE_MAILBOX);
+        MailboxStore reopened = new MailboxStore(directory.resolve("mailbox"), 0, 0, 10_000);
+        reopened.deliver("anna", again, history);
+        reopened.close();
+        assertTrue(again.received.isEmpty()); // Ящик опустел после доставки.
+        history.close();
+    }
+
+    @Test
+    void testBatchesFitInFramesAndFailedDeliveryKeepsMailbox() throws Exception {
+        MailboxStore mailboxes = new MailboxStore(directory, 0, 0, 10_000);
+        mailboxes.departed("anna", 0);
+        String wide = "😀".repeat(25_000); // 50 тысяч символов, в байтах - вчетверо-вшестеро больше.
+        for (int i = 0; i < 40; i++)
+            mailboxes.store("anna", new Message(MessageType.PRIVATE_TEXT, "boris", i + wide), 0);
+
+        Session broken = new Session() { // Соединение оборвалось, пока доставлялся ящик.
+            @Override
+            public void send(Message message) throws IOException {
+                throw new IOException("Соединение закрыто");
+            }
+
+            @Override
+            public SocketAddress getRemoteSocketAddress() {
+                return null;
+            }
+
+            @Override
+            public OutboundQueue getOutboundQueue() {
+                return null;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        broken.setFeatures(ProtocolCodec.FEATURE_MAILBOX);
+        mailboxes.deliver("anna", broken, null);
+
+        RecordingSession anna = new RecordingSession();
+        anna.setFeatures(ProtocolCodec.FEATURE_MAILBOX);
+        mailboxes.deliver("anna", anna, null);
+        mailboxes.close();
+
+        List<String> backlog = unpacked(anna);
+        assertEquals(40, backlog.size()); // Ничего не потеряно при неудачной доставке.
+        assertEquals("(лично) boris: 39" + wide, backlog.get(39));
+        for (Message batch : anna.received) {
+            assertTrue(new BinaryMessageCodec().encode(batch, ByteBuffer.allocate(64)).position()
+                    <= MessageCodec.MAX_FRAME_LENGTH);
+            assertTrue(new ObjectStreamCodec().encode(batch, ByteBuffer.allocate(64)).position()
+                    <= MessageCodec.MAX_FRAME_LENGTH);
+        }
+    }
+
+    @Test
+    void testFullMailboxDropsOldestAndLegacyClientGetsPrivatesOnly() throws Exception {
+        MailboxStore mailboxes = new MailboxStore(directory, 4096, 0, 10_000);
+        mailboxes.departed("anna", 0);
+        for (int i = 0; i < 200; i++)
+            mailboxes.store("anna", new Message(MessageType.PRIVATE_TEXT, "boris", "сообщение " + i), 0);
+        RecordingSession anna = new RecordingSession(); // Старый клиент: пачек MAILBOX не понимает.
+        mailboxes.deliver("anna", anna, null);
+        mailboxes.close();
+
+        assertTrue(anna.received.size() < 200);
+        assertTrue(anna.received.stream().allMatch(message -> message.getType() == MessageType.PRIVATE_TEXT));
+        assertEquals("сообщение 199", anna.received.get(anna.received.size() - 1).getData()); // Новые остались.
+    }
+
+    @Test
+    void testExpiredRecordsAreRemovedAndAbsentUserForgotten() throws Exception {
+        MailboxStore mailboxes = new MailboxStore(directory, 0, 300, 10_000);
+        mailboxes.departed("anna", 0);
+        mailboxes.store("anna", new Message(MessageType.PRIVATE_TEXT, "boris", "старое"), 0);
+        mailboxes.departed("vera", 0);
+        Thread.sleep(400);
+        mailboxes.store("anna", new Message(MessageType.PRIVATE_TEXT, "boris", "новое"), 0); // Запись чистит ящик.
+
+        long deadline = System.currentTimeMillis() + 5000; // Ящик vera никто не трогает - его удалит просмотр.
+        while (mailboxes.isKnown("vera") && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertFalse(mailboxes.isKnown("vera"));
+        RecordingSession anna = new RecordingSession();
+        mailboxes.deliver("anna", anna, null);
+        mailboxes.close();
+        assertTrue(mailboxes.isKnown("anna"));
+        assertEquals(List.of("новое"), anna.received.stream().map(Message::getData).toList());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.count()); // Остался только ящик anna.
+        }
+    }
+
+    @Test
+    void testServerKeepsPrivateMessagesForAbsentUser() throws Exception {
+        Server.limits = new RateLimits(0, 0, 0, 0, false);
+        Server.mailboxes = new MailboxStore(directory, 0, 0, 10_000);
+        RecordingSession anna = new RecordingSession();
+        RecordingSession boris = new RecordingSession();
+        assertEquals("anna", Server.acceptUserName(anna, new Message(MessageType.USER_NAME, "anna")));
+        assertEquals("boris", Server.acceptUserName(boris, new Message(MessageType.USER_NAME, "boris")));
+        Server.userLeft(anna, "anna");
+
+        Server.processMessage(boris, "boris", new Message(MessageType.PRIVATE_TEXT, "anna", "ты где?"));
+        Server.processMessage(boris, "boris", new Message(MessageType.PRIVATE_TEXT, "gleb", "привет"));
+        assertTrue(boris.received.stream().anyMatch(message -> message.getType() == MessageType.PRIVATE_DELIVERED
+                && "anna".equals(message.getTarget()) && "mailbox".equals(message.getData())));
+        assertTrue(boris.received.stream().anyMatch(message -> // Участника gleb сервер никогда не видел.
+                message.getType() == MessageType.PRIVATE_UNKNOWN_RECIPIENT && "gleb".equals(message.getTarget())));
+
+        RecordingSession returned = new RecordingSession();
+        assertEquals("anna", Server.acceptUserName(returned, new Message(MessageType.USER_NAME, "mailbox", "anna")));
+        Server.userJoined(returned, "anna");
+        Server.mailboxes.close();
+        assertEquals(List.of("(лично) boris: ты где?"), unpacked(returned));
+    }
+}
@@ -0,0 +1,206 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageCodecTest {
+
+    @Test
+    void testBinaryRoundTrip() throws Exception {
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer = codec.encode(new Message(MessageType.TEXT, "Иван: привет 😀"), buffer);
+        buffer = codec.encode(new Message(MessageType.NAME_ACCEPTED), buffer);
+        buffer.flip();
+
+        Message text = codec.decode(buffer);
+        assertEquals(MessageType.TEXT, text.getType());
+        assertEquals("Иван: привет 😀", text.getData());
+        Message accepted = codec.decode(buffer);
+        assertEquals(MessageType.NAME_ACCEPTED, accepted.getType());
+        assertNull(accepted.getData());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void testBinaryFrameIsCompact() throws Exception {
+        ByteBuffer binary = new BinaryMessageCodec().encode(new Message(MessageType.TEXT, "hello"), ByteBuffer.allocate(64));
+        ByteBuffer objects = new ObjectStreamCodec().encode(new Message(MessageType.TEXT, "hello"), ByteBuffer.allocate(64));
+        assertEquals(7, binary.position()); // тег + длина + 5 байт текста
+        assertTrue(objects.position() > binary.position() * 10);
+    }
+
+    @Test
+    void testPartialFrameLeavesBufferUntouched() throws Exception {
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        ByteBuffer frame = codec.encode(new Message(MessageType.TEXT, "x".repeat(300)), ByteBuffer.allocate(512)).flip();
+        for (int length = 0; length < frame.limit(); length++) {
+            ByteBuffer part = ByteBuffer.wrap(frame.array(), 0, length);
+            assertNull(codec.decode(part));
+            assertEquals(0, part.position());
+        }
+        assertEquals("x".repeat(300), codec.decode(frame).getData());
+    }
+
+    @Test
+    void testProtocolCodecDetectsVersion() throws Exception {
+        ProtocolCodec oldClient = new ProtocolCodec();
+        ProtocolCodec framedClient = new ProtocolCodec();
+        framedClient.setVersion(MessageCodec.VERSION_OBJECT_STREAM);
+        ProtocolCodec newClient = new ProtocolCodec();
+        newClient.setVersion(MessageCodec.VERSION_BINARY);
+
+        ProtocolCodec serverForOld = new ProtocolCodec();
+        assertNull(serverForOld.decode(oldClient.encode(new Message(MessageType.USER_NAME, "old"), ByteBuffer.allocate(16)).flip()));
+        assertTrue(serverForOld.isLegacy()); // Поток без кадров дальше читает транспорт.
+
+        ProtocolCodec serverForFramed = new ProtocolCodec();
+        serverForFramed.decode(framedClient.encode(new Message(MessageType.USER_NAME, "framed"), ByteBuffer.allocate(16)).flip());
+        assertEquals(MessageCodec.VERSION_OBJECT_STREAM, serverForFramed.getVersion());
+
+        ProtocolCodec serverForNew = new ProtocolCodec();
+        Message name = serverForNew.decode(newClient.encode(new Message(MessageType.USER_NAME, "new"), ByteBuffer.allocate(16)).flip());
+        assertEquals("new", name.getData());
+        assertEquals(MessageCodec.VERSION_BINARY, serverForNew.getVersion());
+    }
+
+    @Test
+    void testObjectStreamRejectsForeignClasses() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new ArrayList<String>());
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + bytes.size()).putInt(bytes.size()).put(bytes.toByteArray()).flip();
+        assertThrows(InvalidClassException.class, () -> new ObjectStreamCodec().decode(frame));
+    }
+
+    @Test
+    void testUnknownTagIsRejected() {
+        assertThrows(IOException.class, () -> new BinaryMessageCodec().decode(ByteBuffer.wrap(new byte[]{63, 0})));
+    }
+
+    @Test
+    void testOverflowingLengthIsRejected() {
+        // Длина из пяти байт, пятый - 0x7F: без проверки значение становится отрицательным, как у неполного кадра.
+        byte[] frame = {(byte) MessageType.TEXT.getCode(), (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F};
+        assertThrows(IOException.class, () -> new BinaryMessageCodec().decode(ByteBuffer.wrap(frame)));
+    }
+
+    @Test
+    void testBinaryTargetRoundTrip() throws Exception {
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        ByteBuffer frame = codec.encode(new Message(MessageType.ROOM_TEXT, "комната", "привет"), ByteBuffer.allocate(4));
+        int textLength = frame.position();
+        frame = codec.encode(new Message(MessageType.ROOM_JOIN, "java", null), frame).flip();
+        for (int length = 0; length < textLength; length++) {
+            ByteBuffer part = ByteBuffer.wrap(frame.array(), 0, length);
+            assertNull(codec.decode(part));
+            assertEquals(0, part.position());
+        }
+        Message text = codec.decode(frame);
+        assertEquals("комната", text.getTarget());
+        assertEquals("привет", text.getData());
+        Message join = codec.decode(frame);
+        assertEquals(MessageType.ROOM_JOIN, join.getType());
+        assertEquals("java", join.getTarget());
+        assertNull(join.getData());
+        assertNull(new BinaryMessageCodec().decode(ByteBuffer.wrap(new byte[]{(byte) 0x8A})));
+
+        ByteBuffer numbered = codec.encode(new Message(MessageType.TEXT, null, "x", 1L << 40), ByteBuffer.allocate(4)).flip();
+        Message history = codec.decode(numbered);
+        assertEquals(1L << 40, history.getSequence());
+        assertNull(history.getTarget());
+        assertEquals("x", history.getData());
+    }
+
+    @Test
+    void testLargeUserListIsDeflated() throws Exception {
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            names.append(i > 0 ? "\n" : "").append("участник").append(i);
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        Message list = new Message(MessageType.USER_LIST, names.toString());
+        int plainLength = codec.encode(list, ByteBuffer.allocate(4)).position(); // Без договорённости - не сжимается.
+        assertTrue(plainLength > names.length());
+        ByteBuffer frame = codec.encode(list, ByteBuffer.allocate(4), 1024);
+        assertTrue(frame.position() < plainLength / 3, "Кадр: " + frame.position());
+        frame = codec.encode(new Message(MessageType.USER_LIST, "anna\nboris"), frame, 1024).flip();
+        int compressedLength = frame.limit();
+        for (int length = 0; length < compressedLength - 12; length += 97) {
+            ByteBuffer part = ByteBuffer.wrap(frame.array(), 0, length);
+            assertNull(codec.decode(part));
+            assertEquals(0, part.position());
+        }
+        assertEquals(names.toString(), codec.decode(frame).getData());
+        assertEquals("anna\nboris", codec.decode(frame).getData()); // Короткий список не сжимается.
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    void testCompressionIsSkippedOrRejectedWhenUseless() throws Exception {
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        Message distinct = new Message(MessageType.TEXT, "0123456789abcdef"); // Повторов нет, сжатие только удлинит.
+        ByteBuffer frame = codec.encode(distinct, ByteBuffer.allocate(4), 8);
+        assertEquals(0, frame.get(1) & BinaryMessageCodec.FIELD_DEFLATED); // Сжатие не помогло - данные как есть.
+        assertEquals(distinct.getData(), codec.decode(frame.flip()).getData());
+
+        // Заявленная исходная длина больше допустимой: распаковка не начинается.
+        ByteBuffer bomb = ByteBuffer.allocate(16);
+        bomb.put((byte) (MessageType.TEXT.getCode() | BinaryMessageCodec.EXTENDED))
+                .put((byte) BinaryMessageCodec.FIELD_DEFLATED);
+        BinaryMessageCodec.writeVarInt(bomb, BinaryMessageCodec.MAX_INFLATED_LENGTH + 1);
+        BinaryMessageCodec.writeVarInt(bomb, 1);
+        bomb.put((byte) 0).flip();
+        assertThrows(IOException.class, () -> codec.decode(bomb));
+    }
+
+    @Test
+    void testSharedFrameIsDeflatedOnce() {
+        SharedFrame roster = new SharedFrame(new Message(MessageType.USER_LIST, "участник\n".repeat(1000)));
+        long deflated = Metrics.DEFLATE_INPUT_BYTES.get();
+        for (int i = 0; i < 3; i++) // Трое получателей с возможностью "deflate".
+            roster.buffer(true);
+        assertEquals("участник\n".repeat(1000).getBytes(StandardCharsets.UTF_8).length,
+                Metrics.DEFLATE_INPUT_BYTES.get() - deflated); // Сжат один раз.
+        assertTrue(roster.length(true) < roster.length() / 10);
+        SharedFrame text = new SharedFrame(new Message(MessageType.TEXT, "привет"));
+        assertEquals(text.length(), text.length(true)); // Короткое сообщение не сжимается.
+    }
+
+    @Test
+    void testSharedFramesDeflateInParallel() throws Exception {
+        int threads = 8;
+        List<Thread> writers = new ArrayList<>();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int writer = t;
+            // Каждый писатель сжимает свои кадры: кодеки из пула не должны достаться двоим сразу.
+            writers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    BinaryMessageCodec decoder = new BinaryMessageCodec();
+                    for (int i = 0; i < 200; i++) {
+                        String data = ("писатель " + writer + " кадр " + i + "\n").repeat(200);
+                        SharedFrame frame = new SharedFrame(new Message(MessageType.TEXT, data));
+                        assertEquals(data, decoder.decode(frame.buffer(true)).getData());
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread writer : writers)
+            writer.join();
+        assertEquals(List.of(), errors);
+    }
+}
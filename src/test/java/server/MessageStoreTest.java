@@ -0,0 +1,106 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private static Message text(String text) {
+        return new Message(MessageType.TEXT, text);
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        return messages.stream().map(Message::getData).toList();
+    }
+
+    private MessageStore open(int segmentSize, long retentionBytes) throws IOException {
+        return new MessageStore(directory, segmentSize, retentionBytes, 0, 0);
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(".log")).count();
+        }
+    }
+
+    @Test
+    void testReadLastAndAfterAcrossSegments() throws Exception {
+        try (MessageStore store = open(256, 0)) {
+            for (int i = 1; i <= 100; i++)
+                assertEquals(i, store.append(text("сообщение " + i)).getMessage().getSequence());
+
+            assertTrue(segmentCount() > 5);
+            assertEquals(List.of("сообщение 98", "сообщение 99", "сообщение 100"), texts(store.readLast(3)));
+            List<Message> after = store.readAfter(10, 30);
+            assertEquals(30, after.size());
+            assertEquals(11, after.get(0).getSequence());
+            assertEquals("сообщение 40", after.get(29).getData());
+            assertTrue(store.readAfter(100, 10).isEmpty());
+        }
+    }
+
+    @Test
+    void testMessageLargerThanSegmentIsRejected() throws Exception {
+        try (MessageStore store = open(256, 0)) {
+            store.append(text("до"));
+            assertThrows(IOException.class, () -> store.append(text("x".repeat(300))));
+            assertEquals(1, segmentCount()); // Пустой сегмент под такое сообщение не заводится.
+            assertEquals(2, store.append(text("после")).getMessage().getSequence());
+            assertEquals(List.of("до", "после"), texts(store.readLast(2)));
+        }
+    }
+
+    @Test
+    void testReopenRecoversHistoryAndDropsTornTail() throws Exception {
+        try (MessageStore store = open(4096, 0)) {
+            for (int i = 1; i <= 10; i++)
+                store.append(text("m" + i));
+        }
+        // Портим CRC последней записи, как будто запись не успела дойти до диска целиком.
+        Path segment = directory.resolve(String.format("%020d.log", 1));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int position = 0;
+            for (int i = 1; i < 10; i++) {
+                ByteBuffer length = ByteBuffer.allocate(4);
+                channel.read(length, position);
+                position += 4 + length.flip().getInt();
+            }
+            channel.write(ByteBuffer.allocate(4).putInt(0, 12345), position + 4);
+        }
+
+        try (MessageStore store = open(4096, 0)) {
+            assertEquals(9, store.getLastSequence());
+            assertEquals(List.of("m8", "m9"), texts(store.readLast(2)));
+            assertEquals(10, store.append(text("после перезапуска")).getMessage().getSequence());
+            assertEquals("после перезапуска", store.readLast(1).get(0).getData());
+        }
+    }
+
+    @Test
+    void testRetentionDeletesOldestSegments() throws Exception {
+        try (MessageStore store = open(256, 1024)) {
+            for (int i = 1; i <= 200; i++)
+                store.append(text("сообщение " + i));
+
+            assertTrue(segmentCount() <= 6);
+            assertTrue(store.getFirstSequence() > 1);
+            List<Message> all = store.readAfter(0, 1000);
+            assertEquals(store.getFirstSequence(), all.get(0).getSequence());
+            assertEquals("сообщение 200", all.get(all.size() - 1).getData());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsTest {
+
+    @Test
+    void testPrometheusFormat() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter taken = metrics.counter("rejections_total{reason=\"taken\"}", "Отказы");
+        Metrics.Counter empty = metrics.counter("rejections_total{reason=\"empty\"}", "Отказы");
+        metrics.gauge("users", "Участники", () -> 7);
+        Metrics.Summary time = metrics.summary("send_seconds", "Запись кадра");
+        taken.add(3);
+        empty.increment();
+        time.recordNanos(1_000_000);
+        time.recordNanos(3_000_000);
+
+        String text = metrics.format();
+        assertEquals(1, text.split("# TYPE rejections_total counter", -1).length - 1); // Одна строка на семейство.
+        assertTrue(text.contains("rejections_total{reason=\"taken\"} 3\n"));
+        assertTrue(text.contains("rejections_total{reason=\"empty\"} 1\n"));
+        assertTrue(text.contains("# TYPE users gauge\nusers 7\n"));
+        assertTrue(text.contains("# TYPE send_seconds summary\n"));
+        assertTrue(text.contains("send_seconds_sum 0.004\n"));
+        assertTrue(text.contains("send_seconds_count 2\n"));
+    }
+
+    @Test
+    void testHttpEndpoint() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.counter("requests_total", "Запросы").add(42);
+        HttpServer http = metrics.startHttpEndpoint(0);
+        try {
+            HttpResponse<String> response = HttpClient.newHttpClient().send(HttpRequest.newBuilder(
+                    URI.create("http://127.0.0.1:" + http.getAddress().getPort() + "/metrics")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertTrue(response.body().contains("requests_total 42\n"));
+        } finally {
+            http.stop(0);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NioServerTest {
+
+    @AfterEach
+    void tearDown() {
+        Server.users.clear();
+        Server.limits = RateLimits.fromSettings();
+    }
+
+    // Регистрация клиента с кадрами версии version: так же, как это делает client.ChatClient.
+    private static Connection register(int port, int version, String name) throws Exception {
+        Connection connection = new Connection(new Socket("127.0.0.1", port));
+        Message request = connection.receive();
+        assertEquals(MessageType.NAME_REQUEST, request.getType());
+        assertTrue(ProtocolCodec.supportsBinary(request));
+        connection.setProtocolVersion(version);
+        connection.send(new Message(MessageType.USER_NAME, ProtocolCodec.formatFeatures(0), name));
+        assertEquals(MessageType.NAME_ACCEPTED, receive(connection, MessageType.NAME_ACCEPTED).getType());
+        return connection;
+    }
+
+    // Первое сообщение типа type; вход участников и другие служебные сообщения пропускаются.
+    private static Message receive(Connection connection, MessageType type) throws IOException, ClassNotFoundException {
+        Message message;
+        while ((message = connection.receive()).getType() != type)
+            assertNotEquals(MessageType.NAME_REQUEST, message.getType()); // Имя не должно запрашиваться повторно.
+        return message;
+    }
+
+    @Test
+    void testFramedClientsRegisterAndChat() throws Exception {
+        Server.limits = new RateLimits(0, 0, 0, 0, false);
+        try (NioServer server = new NioServer(0, 1)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (Exception e) {
+                    fail(e);
+                }
+            });
+            acceptor.start();
+            try (Connection anna = register(server.getLocalPort(), MessageCodec.VERSION_OBJECT_STREAM, "anna");
+                 Connection boris = register(server.getLocalPort(), MessageCodec.VERSION_BINARY, "boris")) {
+                while (!receive(anna, MessageType.USER_ADDED).getData().equals("boris"))
+                    ; // Сначала участнице приходит её собственный вход.
+
+                anna.send(new Message(MessageType.TEXT, "привет"));
+                assertEquals("anna: привет", receive(anna, MessageType.TEXT).getData());
+                assertEquals("anna: привет", receive(boris, MessageType.TEXT).getData());
+
+                boris.send(new Message(MessageType.TEXT, "здравствуй"));
+                assertEquals("boris: здравствуй", receive(boris, MessageType.TEXT).getData());
+                assertEquals("boris: здравствуй", receive(anna, MessageType.TEXT).getData());
+            }
+            // Выход участника обрабатывается после его сообщений, в том же порядке.
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (Server.users.size() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(0, Server.users.size());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OutboundQueueTest {
+
+    private static SharedFrame frame(String text) {
+        return new SharedFrame(new Message(MessageType.TEXT, text));
+    }
+
+    @Test
+    void testDropOldestKeepsNewestFrames() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        assertTrue(queue.offer(frame("1")));
+        assertTrue(queue.offer(frame("2")));
+        assertTrue(queue.offer(frame("3")));
+        assertEquals("2", queue.poll().getMessage().getData());
+        assertEquals("3", queue.poll().getMessage().getData());
+        assertEquals(3, queue.getQueued());
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    void testDropNewKeepsOldestFrames() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_NEW);
+        queue.offer(frame("1"));
+        queue.offer(frame("2"));
+        assertTrue(queue.offer(frame("3")));
+        assertEquals("1", queue.poll().getMessage().getData());
+        assertEquals("2", queue.poll().getMessage().getData());
+        assertNull(queue.poll());
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    void testDisconnectPolicyRejectsSlowConsumer() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DISCONNECT);
+        assertTrue(queue.offer(frame("1")));
+        assertFalse(queue.offer(frame("2")));
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    void testTakenFrameKeepsQueueUndrainedUntilWritten() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DISCONNECT);
+        assertTrue(queue.isDrained());
+        queue.offer(frame("1"));
+        queue.offer(frame("2"));
+        assertEquals("1", queue.take().getMessage().getData());
+        assertEquals("2", queue.poll().getMessage().getData());
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.isDrained()); // Кадры у писателя, в сокет ещё не записаны.
+        queue.written();
+        assertTrue(queue.isDrained());
+    }
+
+    @Test
+    void testCloseWakesWriter() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DISCONNECT);
+        Thread writer = new Thread(() -> {
+            try {
+                assertNull(queue.take());
+            } catch (InterruptedException e) {
+                fail(e);
+            }
+        });
+        writer.start();
+        queue.close();
+        writer.join(5_000);
+        assertFalse(writer.isAlive());
+        assertFalse(queue.offer(frame("late")));
+    }
+}
@@ -0,0 +1,82 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PresenceTest {
+
+    @AfterEach
+    void tearDown() {
+        Server.users.clear();
+        Server.presence = new PresenceBatcher(ServerSettings.getPresenceBatchMs(), Server::sendPresence);
+    }
+
+    private static RecordingSession register(String name, boolean roster) throws Exception {
+        RecordingSession session = new RecordingSession();
+        Message request = new Message(MessageType.USER_NAME, roster ? "roster" : null, name);
+        assertEquals(name, Server.acceptUserName(session, request));
+        Server.userJoined(session, name);
+        return session;
+    }
+
+    private static List<Message> ofType(RecordingSession session, MessageType type) {
+        return session.received.stream().filter(message -> message.getType() == type).toList();
+    }
+
+    private static Set<String> changes(RecordingSession session) {
+        Set<String> changes = new HashSet<>();
+        for (Message message : ofType(session, MessageType.USER_PRESENCE))
+            changes.addAll(Arrays.asList(message.getData().split("\n")));
+        return changes;
+    }
+
+    @Test
+    void testRosterClientGetsListAndBatchedChanges() throws Exception {
+        Server.presence = new PresenceBatcher(60_000, Server::sendPresence); // Отправляем пакет вручную.
+        RecordingSession boris = register("boris", false);
+        RecordingSession anna = register("anna", true);
+        assertEquals(Set.of("anna", "boris"),
+                Set.of(ofType(anna, MessageType.USER_LIST).get(0).getData().split("\n")));
+
+        RecordingSession vera = register("vera", true);
+        register("gleb", false);
+        Server.userLeft(vera, "vera");
+        Server.presence.flush();
+
+        assertTrue(ofType(anna, MessageType.USER_ADDED).isEmpty()); // Ни одного сообщения на каждое событие.
+        assertTrue(ofType(anna, MessageType.USER_REMOVED).isEmpty());
+        assertEquals(1, ofType(anna, MessageType.USER_PRESENCE).size()); // Все изменения одним пакетом.
+        assertEquals(Set.of("+anna", "+boris", "-vera", "+gleb"), changes(anna));
+        // Клиент без возможности "roster" получает уведомления по-старому.
+        assertEquals(List.of("boris", "anna", "vera", "gleb"),
+                ofType(boris, MessageType.USER_ADDED).stream().map(Message::getData).toList());
+        assertEquals("vera", ofType(boris, MessageType.USER_REMOVED).get(0).getData());
+        assertTrue(ofType(boris, MessageType.USER_PRESENCE).isEmpty());
+    }
+
+    @Test
+    void testBatchIsSentAfterWindow() throws Exception {
+        Server.presence = new PresenceBatcher(20, Server::sendPresence);
+        RecordingSession anna = register("anna", true);
+        for (int i = 0; i < 50; i++)
+            register("user" + i, true);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (changes(anna).size() < 51 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(51, changes(anna).size());
+        assertTrue(ofType(anna, MessageType.USER_PRESENCE).size() < 51); // Изменения склеиваются в пакеты.
+    }
+
+    @Test
+    void testNameWithLineBreakIsRejected() throws Exception {
+        assertNull(Server.acceptUserName(new RecordingSession(), new Message(MessageType.USER_NAME, "anna\nboris")));
+    }
+}
@@ -0,0 +1,47 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrivateMessageTest {
+
+    private final RecordingSession anna = new RecordingSession();
+    private final RecordingSession boris = new RecordingSession();
+    private final RecordingSession vera = new RecordingSession();
+
+    @AfterEach
+    void tearDown() {
+        Server.users.clear();
+    }
+
+    @Test
+    void testPrivateTextReachesOnlyRecipient() {
+        Server.users.claim("anna", anna);
+        Server.users.claim("boris", boris);
+        Server.users.claim("vera", vera);
+
+        Server.processMessage(anna, "anna", new Message(MessageType.PRIVATE_TEXT, "boris", "привет"));
+
+        assertEquals(1, boris.received.size());
+        Message delivered = boris.received.get(0);
+        assertEquals(MessageType.PRIVATE_TEXT, delivered.getType());
+        assertEquals("anna", delivered.getTarget());
+        assertEquals("привет", delivered.getData());
+        assertTrue(vera.received.isEmpty());
+        assertEquals(MessageType.PRIVATE_DELIVERED, anna.received.get(0).getType());
+        assertEquals("boris", anna.received.get(0).getTarget());
+    }
+
+    @Test
+    void testUnknownRecipientIsReportedToSender() {
+        Server.users.claim("anna", anna);
+
+        Server.processMessage(anna, "anna", new Message(MessageType.PRIVATE_TEXT, "nobody", "привет"));
+
+        assertEquals(1, anna.received.size());
+        assertEquals(MessageType.PRIVATE_UNKNOWN_RECIPIENT, anna.received.get(0).getType());
+        assertEquals("nobody", anna.received.get(0).getTarget());
+    }
+}
@@ -0,0 +1,98 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimitTest {
+
+    private final RecordingSession anna = new RecordingSession();
+    private final RecordingSession boris = new RecordingSession();
+
+    @AfterEach
+    void tearDown() {
+        Server.users.clear();
+        Server.limits = RateLimits.fromSettings();
+    }
+
+    private void register() throws Exception {
+        assertEquals("anna", Server.acceptUserName(anna, new Message(MessageType.USER_NAME, "anna")));
+        assertEquals("boris", Server.acceptUserName(boris, new Message(MessageType.USER_NAME, "boris")));
+    }
+
+    private static long texts(RecordingSession session) {
+        return session.received.stream().filter(message -> message.getType() == MessageType.TEXT).count();
+    }
+
+    @Test
+    void testBucketAllowsBurstThenRefills() throws Exception {
+        TokenBucket bucket = new TokenBucket(20, 10);
+        for (int i = 0; i < 10; i++)
+            assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(11)); // Больше вместимости не дать никогда.
+        Thread.sleep(200); // За 200 мс набралось 4 жетона.
+        assertTrue(bucket.tryAcquire(3));
+        assertFalse(bucket.tryAcquire(5));
+    }
+
+    @Test
+    void testSharedBucketNeverOvershoots() throws Exception {
+        TokenBucket bucket = new TokenBucket(1, 10_000); // Пополнение за время теста - меньше одного жетона.
+        AtomicInteger acquired = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    if (bucket.tryAcquire(1))
+                        acquired.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(10_000, acquired.get());
+    }
+
+    @Test
+    void testFloodAndLongTextAreNotBroadcast() throws Exception {
+        Server.limits = new RateLimits(5, 0, 100, 0, false);
+        register();
+        for (int i = 0; i < 20; i++)
+            Server.processMessage(anna, "anna", new Message(MessageType.TEXT, "сообщение " + i));
+        assertEquals(5, texts(boris)); // Только пачка в пределах нормы.
+        assertFalse(anna.closed);
+
+        Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "x".repeat(101)));
+        Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "x".repeat(100)));
+        assertEquals(6, texts(anna));
+    }
+
+    @Test
+    void testViolatorIsDisconnected() throws Exception {
+        Server.limits = new RateLimits(5, 0, 0, 0, true);
+        register();
+        for (int i = 0; i < 5; i++)
+            Server.processMessage(anna, "anna", new Message(MessageType.TEXT, "сообщение " + i));
+        assertFalse(anna.closed);
+        Server.processMessage(anna, "anna", new Message(MessageType.TEXT, "лишнее"));
+        assertTrue(anna.closed);
+        assertEquals(5, texts(boris));
+    }
+
+    @Test
+    void testFanoutBudgetIsShared() throws Exception {
+        Server.limits = new RateLimits(0, 0, 0, 3, false); // Три доставки в секунду на весь сервер.
+        register();
+        Server.processMessage(anna, "anna", new Message(MessageType.TEXT, "первое")); // Две доставки.
+        Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "второе")); // Бюджета уже не хватает.
+        assertEquals(1, texts(boris));
+        assertEquals(1, texts(anna));
+        assertFalse(boris.closed); // За перегрузку сервера отправителя не отключают.
+    }
+}
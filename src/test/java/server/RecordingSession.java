@@ -0,0 +1,31 @@
+package server;
+
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Соединение для тестов, которое запоминает отправленные ему сообщения.
+class RecordingSession extends Session {
+    final List<Message> received = new CopyOnWriteArrayList<>();
+    volatile boolean closed;
+
+    @Override
+    public void send(Message message) {
+        received.add(message);
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return null;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
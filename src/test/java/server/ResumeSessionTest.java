@@ -0,0 +1,115 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResumeSessionTest {
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void tearDown() {
+        Server.users.clear();
+        Server.history.close();
+        Server.history = null;
+        Server.resumes = null;
+    }
+
+    private static String register(RecordingSession session, String name) throws Exception {
+        assertEquals(name, Server.acceptUserName(session, new Message(MessageType.USER_NAME, name)));
+        Message accepted = session.received.get(session.received.size() - 1);
+        assertEquals(MessageType.NAME_ACCEPTED, accepted.getType());
+        return accepted.getData();
+    }
+
+    private static List<Message> ofType(RecordingSession session, MessageType type) {
+        return session.received.stream().filter(message -> message.getType() == type).toList();
+    }
+
+    @Test
+    void testResumeReplaysOnlyMissedMessages() throws Exception {
+        Server.history = new MessageStore(directory, 4096, 0, 0, 0);
+        Server.resumes = new ResumeRegistry(60_000, Server::userRemoved);
+        RecordingSession anna = new RecordingSession();
+        RecordingSession boris = new RecordingSession();
+        String token = register(anna, "anna");
+        register(boris, "boris");
+
+        Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "до обрыва"));
+        long lastSeen = ofType(anna, MessageType.TEXT).get(0).getSequence();
+        assertTrue(lastSeen > 0);
+
+        Server.userLeft(anna, "anna");
+        Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "пропущено 1"));
+        Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "пропущено 2"));
+        assertTrue(ofType(boris, MessageType.USER_REMOVED).isEmpty()); // Остальные не видят обрыва.
+        assertNull(Server.acceptUserName(new RecordingSession(), new Message(MessageType.USER_NAME, "anna")));
+        assertNull(Server.acceptUserName(new RecordingSession(),
+                new Message(MessageType.RESUME, "anna", "чужой токен", lastSeen)));
+
+        RecordingSession resumed = new RecordingSession();
+        assertEquals("anna", Server.acceptUserName(resumed, new Message(MessageType.RESUME, "anna", token, lastSeen)));
+        assertEquals(MessageType.NAME_ACCEPTED, resumed.received.get(0).getType());
+        assertEquals(List.of("boris: пропущено 1", "boris: пропущено 2"),
+                ofType(resumed, MessageType.TEXT).stream().map(Message::getData).toList());
+        assertEquals(MessageType.HISTORY_END, resumed.received.get(resumed.received.size() - 1).getType());
+        assertNull(resumed.received.get(resumed.received.size() - 1).getTarget()); // Повторено всё пропущенное.
+        assertTrue(ofType(resumed, MessageType.USER_ADDED).isEmpty()); // Список участников не рассылается заново.
+        assertSame(resumed, Server.users.get("anna"));
+
+        Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "после возврата"));
+        assertEquals("boris: после возврата", ofType(resumed, MessageType.TEXT).get(2).getData());
+    }
+
+    @Test
+    void testLongGapReportsWhereReplayStarted() throws Exception {
+        Server.history = new MessageStore(directory, 1 << 20, 0, 0, 0);
+        Server.resumes = new ResumeRegistry(60_000, Server::userRemoved);
+        RecordingSession anna = new RecordingSession();
+        String token = register(anna, "anna");
+        long lastSeen = Server.history.append(new Message(MessageType.TEXT, "boris: до обрыва")).getMessage().getSequence();
+        Server.userLeft(anna, "anna");
+
+        int missed = ServerSettings.getOutboundQueueCapacity(); // Вдвое больше, чем повторяется при возврате.
+        for (int i = 1; i <= missed; i++)
+            Server.history.append(new Message(MessageType.TEXT, "boris: пропущено " + i));
+
+        RecordingSession resumed = new RecordingSession();
+        assertEquals("anna", Server.acceptUserName(resumed, new Message(MessageType.RESUME, "anna", token, lastSeen)));
+        List<Message> texts = ofType(resumed, MessageType.TEXT);
+        Message end = resumed.received.get(resumed.received.size() - 1);
+        assertEquals(MessageType.HISTORY_END, end.getType());
+        assertEquals(Server.history.getLastSequence(), end.getSequence());
+        // Повтор начат не сразу после lastSeen, и клиент знает, после какого номера.
+        long skippedUpTo = Long.parseLong(end.getTarget());
+        assertTrue(skippedUpTo > lastSeen);
+        assertEquals(skippedUpTo + 1, texts.get(0).getSequence());
+        assertEquals(end.getSequence() - skippedUpTo, texts.size());
+    }
+
+    @Test
+    void testExpiredSessionIsRemovedForEveryone() throws Exception {
+        Server.history = new MessageStore(directory, 4096, 0, 0, 0);
+        Server.resumes = new ResumeRegistry(50, Server::userRemoved);
+        RecordingSession anna = new RecordingSession();
+        RecordingSession boris = new RecordingSession();
+        String token = register(anna, "anna");
+        register(boris, "boris");
+
+        Server.userLeft(anna, "anna");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ofType(boris, MessageType.USER_REMOVED).isEmpty() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        assertEquals("anna", ofType(boris, MessageType.USER_REMOVED).get(0).getData());
+        assertNull(Server.acceptUserName(new RecordingSession(), new Message(MessageType.RESUME, "anna", token, 0)));
+        assertNotNull(Server.acceptUserName(new RecordingSession(), new Message(MessageType.USER_NAME, "anna")));
+    }
+}
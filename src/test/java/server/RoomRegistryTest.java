@@ -0,0 +1,72 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RoomRegistryTest {
+
+    @Test
+    void testJoinLeaveAndEmptyRoomRemoval() {
+        RoomRegistry registry = new RoomRegistry();
+        Session session = new RecordingSession();
+        assertTrue(registry.join("java", "anna", session));
+        assertFalse(registry.join("java", "anna", session));
+        assertTrue(registry.join("java", "boris", new RecordingSession()));
+        assertTrue(registry.join("kotlin", "anna", session));
+        assertEquals(2, registry.members("java").size());
+        assertTrue(registry.isMember("kotlin", "anna"));
+
+        assertTrue(registry.leave("java", "boris"));
+        assertFalse(registry.leave("java", "boris"));
+        assertEquals(List.of("java", "kotlin"), registry.leaveAll("anna").stream().sorted().toList());
+        assertEquals(0, registry.roomCount());
+        assertTrue(registry.members("java").isEmpty());
+    }
+
+    @Test
+    void testConcurrentJoinLeaveAcrossManyRooms() throws Exception {
+        RoomRegistry registry = new RoomRegistry();
+        int threads = 8;
+        int rooms = 20_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String user = "user" + t;
+            Session session = new RecordingSession();
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int round = 0; round < 3; round++) {
+                    for (int r = 0; r < rooms; r++)
+                        registry.join("room" + r, user, session);
+                    for (int r = 0; r < rooms; r += 2)
+                        registry.leave("room" + r, user);
+                    if (round < 2)
+                        registry.leaveAll(user);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+
+        // Остались только нечётные комнаты, и в каждой все участники: ни один вход не потерялся
+        // из-за одновременного удаления опустевшей комнаты.
+        assertEquals(rooms / 2, registry.roomCount());
+        for (int r = 1; r < rooms; r += 2)
+            assertEquals(threads, registry.members("room" + r).size());
+        for (int t = 0; t < threads; t++)
+            registry.leaveAll("user" + t);
+        assertEquals(0, registry.roomCount());
+    }
+}
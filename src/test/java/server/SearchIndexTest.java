@@ -0,0 +1,95 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SearchIndexTest {
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void tearDown() {
+        if (Server.search != null)
+            Server.search.close();
+        Server.search = null;
+        if (Server.history != null)
+            Server.history.close();
+        Server.history = null;
+        Server.users.clear();
+        Server.limits = RateLimits.fromSettings();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        return messages.stream().map(Message::getData).toList();
+    }
+
+    @Test
+    void testTokenize() {
+        assertEquals(List.of("anna", "привет", "мир", "42"), SearchIndex.tokenize("anna: Привет, МИР! 42 я"));
+        assertEquals(SearchIndex.MAX_TERM_LENGTH, SearchIndex.tokenize("x".repeat(100)).get(0).length());
+    }
+
+    @Test
+    void testSegmentsAreMergedAndSurviveRestart() throws Exception {
+        MessageStore history = new MessageStore(directory.resolve("history"), 1 << 20, 0, 0, 0);
+        SearchIndex index = SearchIndex.open(directory.resolve("search"), history, 100);
+        for (int i = 0; i < 2000; i++) {
+            String text = i % 100 == 7 ? "anna: встреча в пятницу " + i : "boris: сообщение " + i;
+            history.append(new Message(i % 3 == 0 ? MessageType.USER_ADDED : MessageType.TEXT, text));
+            index.changed();
+        }
+        await(() -> index.getIndexedSequence() == 2000);
+        await(() -> index.segmentCount() < SearchIndex.MERGE_FACTOR * 3); // Сегменты по ~66 сообщений слиты.
+
+        List<Message> found = index.search("Встреча пятницу", 3);
+        assertEquals(List.of("anna: встреча в пятницу 1907", "anna: встреча в пятницу 1807",
+                "anna: встреча в пятницу 1607"), texts(found)); // 1707 - это USER_ADDED, а не TEXT.
+        assertTrue(found.get(0).getSequence() > found.get(1).getSequence());
+        assertEquals(14, index.search("встреча", 100).size());
+        assertTrue(index.search("встреча суббота", 10).isEmpty());
+        assertTrue(index.search("я", 10).isEmpty()); // Слишком короткое слово не индексируется.
+        index.close();
+
+        history.append(new Message(MessageType.TEXT, "vera: встреча отменена"));
+        SearchIndex reopened = SearchIndex.open(directory.resolve("search"), history, 100);
+        assertTrue(reopened.getIndexedSequence() > 0); // Записанные сегменты не строятся заново.
+        await(() -> reopened.getIndexedSequence() == 2001);
+        assertEquals(List.of("vera: встреча отменена", "anna: встреча в пятницу 1907"),
+                texts(reopened.search("встреча", 2)));
+        reopened.close();
+        history.close();
+    }
+
+    @Test
+    void testServerAnswersSearchRequest() throws Exception {
+        Server.limits = new RateLimits(0, 0, 0, 0, false);
+        Server.history = new MessageStore(directory.resolve("history"), 1 << 20, 0, 0, 0);
+        Server.search = SearchIndex.open(directory.resolve("search"), Server.history, 1000);
+        RecordingSession anna = new RecordingSession();
+        assertEquals("anna", Server.acceptUserName(anna, new Message(MessageType.USER_NAME, "anna")));
+        Server.processMessage(anna, "anna", new Message(MessageType.TEXT, "кто идёт в кино?"));
+        Server.processMessage(anna, "anna", new Message(MessageType.TEXT, "кино в семь"));
+        await(() -> Server.search.getIndexedSequence() == Server.history.getLastSequence());
+
+        Server.processMessage(anna, "anna", new Message(MessageType.SEARCH, "1", "КИНО"));
+        Message answer = anna.received.get(anna.received.size() - 1);
+        assertEquals(MessageType.SEARCH, answer.getType());
+        assertEquals("КИНО", answer.getTarget());
+        assertEquals(List.of("anna: кино в семь"), texts(MailboxStore.unpack(answer.getData())));
+    }
+}
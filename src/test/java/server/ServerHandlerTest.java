@@ -4,9 +4,24 @@ import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class ServerHandlerTest {
@@ -19,6 +34,134 @@ public class ServerHandlerTest {
 
     }
 
+    @Test
+    void testVirtualThreadsHoldTenThousandConnections() throws Exception {
+        int connections = 10_000;
+        Logger logger = Logger.getLogger(Server.class.getName());
+        Level level = logger.getLevel();
+        logger.setLevel(Level.OFF); // Десять тысяч запросов имени не пишутся в журнал.
+        try {
+            Executor executor = Server.handlerExecutor(ServerSettings.THREADS_VIRTUAL);
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            int threadsBefore = threads.getThreadCount();
+            CountDownLatch nameRequested = new CountDownLatch(connections);
+            CountDownLatch finished = new CountDownLatch(connections);
+            List<Pipe> pipes = new ArrayList<>();
 
-}
+            for (int i = 0; i < connections; i++) {
+                Pipe toServer = new Pipe(null);
+                Pipe toClient = new Pipe(nameRequested);
+                pipes.add(toServer);
+                Connection connection = new Connection(toServer.input(), toClient.output(),
+                        new InetSocketAddress("127.0.0.1", i + 1), toServer::close);
+                Server.ServerHandler handler = new Server.ServerHandler(connection, executor);
+                executor.execute(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            }
+
+            // Каждый обработчик запросил имя и теперь ждёт ответа в receive().
+            assertTrue(nameRequested.await(60, TimeUnit.SECONDS));
+            // Считаются все живые платформенные потоки, а не только носители: ни обработчик, ни писатель
+            // соединения не должны занимать собственный поток ОС.
+            int started = threads.getThreadCount() - threadsBefore;
+            int maxCarriers = Integer.getInteger("jdk.virtualThreadScheduler.maxPoolSize", 256);
+            assertTrue(started <= maxCarriers, "Новых платформенных потоков: " + started);
+            assertTrue(started < connections / 10, "Новых платформенных потоков: " + started);
+            assertEquals(0, Server.users.size());
+
+            for (Pipe pipe : pipes) {
+                pipe.close();
+            }
+            // Уровень журнала возвращаем, только когда все обработчики отписали обрыв соединения.
+            assertTrue(finished.await(60, TimeUnit.SECONDS));
+        } finally {
+            logger.setLevel(level); // Следующие тесты в этой JVM журнал видят.
+        }
+    }
+
+    // Однонаправленный канал байтов внутри процесса на ReentrantLock (без synchronized, как PipedInputStream).
+    private static class Pipe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final CountDownLatch firstWrite;
+        private byte[] bytes = new byte[64];
+        private int readPosition;
+        private int writePosition;
+        private boolean closed;
+
+        Pipe(CountDownLatch firstWrite) {
+            this.firstWrite = firstWrite;
+        }
 
+        InputStream input() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    lock.lock();
+                    try {
+                        while (readPosition == writePosition && !closed) {
+                            notEmpty.awaitUninterruptibly();
+                        }
+                        if (readPosition == writePosition)
+                            return -1;
+                        int n = Math.min(len, writePosition - readPosition);
+                        System.arraycopy(bytes, readPosition, b, off, n);
+                        readPosition += n;
+                        return n;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            };
+        }
+
+        OutputStream output() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    lock.lock();
+                    try {
+                        if (bytes.length - writePosition < len) {
+                            byte[] grown = new byte[Math.max(bytes.length * 2, writePosition + len)];
+                            System.arraycopy(bytes, 0, grown, 0, writePosition);
+                            bytes = grown;
+                        }
+                        System.arraycopy(b, off, bytes, writePosition, len);
+                        if (writePosition == 0 && firstWrite != null)
+                            firstWrite.countDown();
+                        writePosition += len;
+                        notEmpty.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            };
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShutdownTest {
+
+    @AfterEach
+    void tearDown() {
+        Server.users.clear();
+        Server.limits = RateLimits.fromSettings();
+    }
+
+    @Test
+    void testQueuedMessagesAreDeliveredBeforeShutdownNotice() throws Exception {
+        Server.limits = new RateLimits(0, 0, 0, 0, false);
+        RecordingSession boris = new RecordingSession(); // Старый клиент: о возможности "shutdown" не знает.
+        assertEquals("boris", Server.acceptUserName(boris, new Message(MessageType.USER_NAME, "boris")));
+
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             Socket socket = new Socket("127.0.0.1", serverSocket.getLocalPort())) {
+            Thread handler = new Thread(new Server.ServerHandler(serverSocket.accept(),
+                    Server.handlerExecutor(ServerSettings.THREADS_PLATFORM)));
+            handler.start();
+            Connection client = new Connection(socket);
+            assertEquals(MessageType.NAME_REQUEST, client.receive().getType());
+            client.send(new Message(MessageType.USER_NAME, "shutdown", "anna"));
+            assertEquals(MessageType.NAME_ACCEPTED, client.receive().getType());
+            while (!Server.users.contains("anna"))
+                Thread.sleep(10);
+
+            // Клиент пока не читает: сообщения копятся в очереди соединения и в буфере сокета.
+            for (int i = 0; i < 2000; i++)
+                Server.processMessage(boris, "boris", new Message(MessageType.TEXT, "сообщение " + i));
+            int[] undrained = {-1};
+            Thread drain = new Thread(() -> undrained[0] = Server.drain(Server.users.sessions(), 1500, 10_000));
+            drain.start();
+
+            int texts = 0;
+            Message message;
+            while ((message = client.receive()).getType() != MessageType.SERVER_SHUTDOWN) {
+                if (message.getType() == MessageType.TEXT)
+                    assertEquals("boris: сообщение " + texts++, message.getData());
+            }
+            assertEquals(2000, texts); // Ни одно сообщение из очереди не потеряно.
+            assertEquals("1500", message.getData());
+            assertThrows(EOFException.class, client::receive); // После уведомления сервер закрыл соединение.
+
+            drain.join(10_000);
+            assertEquals(0, undrained[0]);
+            handler.join(10_000);
+        }
+        assertTrue(boris.closed);
+        assertTrue(boris.received.stream().noneMatch(message -> message.getType() == MessageType.SERVER_SHUTDOWN));
+    }
+}
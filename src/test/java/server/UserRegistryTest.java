@@ -0,0 +1,110 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserRegistryTest {
+
+    @AfterEach
+    void tearDown() {
+        Server.users.clear();
+    }
+
+    @Test
+    void testClaimReleaseIgnoringCase() {
+        UserRegistry registry = new UserRegistry();
+        Session anna = new RecordingSession();
+        Session other = new RecordingSession();
+        assertTrue(registry.claim("Anna", anna));
+        assertFalse(registry.claim("anna", other));
+        assertSame(anna, registry.get("ANNA"));
+        assertArrayEquals(new String[]{"Anna"}, registry.names());
+
+        assertFalse(registry.release("anna", other)); // Чужое соединение не освобождает имя.
+        Session resumed = new RecordingSession();
+        assertSame(anna, registry.replace("Anna", resumed));
+        assertFalse(registry.release("Anna", anna)); // Старое соединение закрылось после возврата участника.
+        assertArrayEquals(new Session[]{resumed}, registry.sessions());
+        assertTrue(registry.release("anna", resumed));
+        assertEquals(0, registry.sessions().length);
+    }
+
+    // Потоки одновременно занимают одни и те же имена в разном регистре: каждое имя достаётся одному.
+    @Test
+    void testNoDuplicateNamesUnderContention() throws Exception {
+        UserRegistry registry = new UserRegistry();
+        int threads = 8;
+        int names = 10_000;
+        AtomicInteger claimed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            boolean upper = t % 2 == 0;
+            Thread worker = new Thread(() -> {
+                Session session = new RecordingSession();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < names; i++) {
+                    String name = upper ? "USER" + i : "user" + i;
+                    if (registry.claim(name, session))
+                        claimed.incrementAndGet();
+                    if (i % 100 == 0)
+                        registry.sessions(); // Снимки собираются во время изменений.
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+
+        assertEquals(names, claimed.get());
+        assertEquals(names, registry.size());
+        Set<String> normalized = new HashSet<>();
+        for (String name : registry.names())
+            assertTrue(normalized.add(UserRegistry.normalize(name)), "Имя занято дважды: " + name);
+        assertEquals(names, registry.sessions().length);
+    }
+
+    // Одновременная регистрация с одним именем через сервер: имя принимается ровно один раз.
+    @Test
+    void testConcurrentRegistrationAcceptsOnlyOne() throws Exception {
+        int clients = 64;
+        AtomicInteger accepted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            String name = i % 2 == 0 ? "Vera" : "vera";
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    if (Server.acceptUserName(new RecordingSession(), new Message(MessageType.USER_NAME, name)) != null)
+                        accepted.incrementAndGet();
+                } catch (Exception e) {
+                    fail(e);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+
+        assertEquals(1, accepted.get());
+        assertEquals(1, Server.users.size());
+    }
+}